@@ -0,0 +1,81 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Generates the files the benchmarks read, in a temporary directory that is deleted again once the trial is over.
+ */
+final class BenchmarkFiles {
+
+    private BenchmarkFiles() {
+    }
+
+    static Path createDirectory() {
+        try {
+            return Files.createTempDirectory("vsync-jmh");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Write a file of random bytes, seeded so every fork reads the same file.
+     */
+    static Path createFile(Path file, long size) {
+        Random random = new Random(size);
+        byte[] block = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return file;
+    }
+
+    /**
+     * Build a tree of directories, each holding the given number of small files and the next level of directories.
+     */
+    static Path createTree(Path root, int depth, int directoriesPerLevel, int filesPerDirectory) {
+        try {
+            Files.createDirectories(root);
+            for (int i = 0; i < filesPerDirectory; i++) {
+                createFile(root.resolve("file-" + i + ".bin"), 1024);
+            }
+            if (depth > 0) {
+                for (int i = 0; i < directoriesPerLevel; i++) {
+                    createTree(root.resolve("dir-" + i), depth - 1, directoriesPerLevel, filesPerDirectory);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return root;
+    }
+
+    static void delete(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
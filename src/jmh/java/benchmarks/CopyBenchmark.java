@@ -0,0 +1,82 @@
+package benchmarks;
+
+import ninja.foxyv.vsync.CopyEngine;
+import ninja.foxyv.vsync.ReactiveDirectorySynchronizer;
+import ninja.foxyv.vsync.SyncOptions;
+import ninja.foxyv.vsync.SyncSchedulers;
+import ninja.foxyv.vsync.entities.CopyCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies one file with each copy engine. The copy is driven through copyDirectory on the file itself, which hands a
+ * single file straight to the same copy the directory sync uses, on the calling thread. The target is deleted before
+ * every copy so each one writes the whole file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark {
+
+    @Param({"STREAM", "TRANSFER"})
+    public CopyEngine copyEngine;
+
+    @Param({"4096", "1048576", "67108864"})
+    public long fileSize;
+
+    @Param({"false", "true"})
+    public boolean hashOnCopy;
+
+    private Path directory;
+    private File source;
+    private File target;
+    private SyncSchedulers schedulers;
+    private SyncOptions options;
+
+    @Setup(Level.Trial)
+    public void createFile() {
+        directory = BenchmarkFiles.createDirectory();
+        source = BenchmarkFiles.createFile(directory.resolve("source.bin"), fileSize).toFile();
+        target = directory.resolve("target.bin").toFile();
+        schedulers = SyncSchedulers.of(Schedulers.immediate());
+        options = SyncOptions.defaults()
+                .withCopyEngine(copyEngine)
+                .withHashOnCopy(hashOnCopy);
+    }
+
+    @Setup(Level.Invocation)
+    public void deleteTarget() {
+        target.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public File copyFile() {
+        return ReactiveDirectorySynchronizer.copyDirectory(source, target, false, schedulers, new CopyCounters(), options)
+                .sequential()
+                .blockLast();
+    }
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import ninja.foxyv.vsync.react.fs.FingerprintMono;
+import ninja.foxyv.vsync.react.fs.InputStreamFlux;
+import ninja.foxyv.vsync.utils.ReactiveFileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads and checksums one file through the reactive stream at different buffer sizes, next to a plain read loop that
+ * shows what the stream costs on top of the disk and the checksum. The file stays in the page cache after the first
+ * read, so these measure the CPU and allocation cost of the stream rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HashingBenchmark {
+
+    @Param({"4096", "12288", "65536", "1048576"})
+    public int bufferSize;
+
+    @Param({"16777216"})
+    public long fileSize;
+
+    private Path directory;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createFile() {
+        directory = BenchmarkFiles.createDirectory();
+        file = BenchmarkFiles.createFile(directory.resolve("hash.bin"), fileSize).toFile();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public long inputStreamFlux() throws IOException {
+        try (InputStream is = new FileInputStream(file)) {
+            return InputStreamFlux.flux(is, bufferSize)
+                    .map(ByteBuffer::remaining)
+                    .reduce(0L, (total, read) -> total + read)
+                    .block();
+        }
+    }
+
+    @Benchmark
+    public long fingerprintMono() {
+        return FingerprintMono.fromFileBytesFlux(file.getName(), ReactiveFileUtils.streamFile(file, bufferSize))
+                .block()
+                .checksum()
+                .getValue();
+    }
+
+    @Benchmark
+    public long plainCrc32c() throws IOException {
+        CRC32C crc = new CRC32C();
+        byte[] buffer = new byte[bufferSize];
+        try (InputStream is = new FileInputStream(file)) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import ninja.foxyv.vsync.ReactiveDirectorySynchronizer;
+import ninja.foxyv.vsync.SyncSchedulers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks generated trees of small files. A wide tree has many files per directory, a deep one many directories with few
+ * files each, which is where listing a directory at a time shows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalkBenchmark {
+
+    /**
+     * depth:directoriesPerLevel:filesPerDirectory
+     */
+    @Param({"1:4:1000", "4:4:16"})
+    public String shape;
+
+    private Path directory;
+    private File tree;
+    private Scheduler fileScheduler;
+    private SyncSchedulers schedulers;
+
+    @Setup(Level.Trial)
+    public void createTree() {
+        String[] parts = shape.split(":");
+        directory = BenchmarkFiles.createDirectory();
+        tree = BenchmarkFiles.createTree(directory.resolve("tree"),
+                Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2])).toFile();
+        fileScheduler = Schedulers.newBoundedElastic(Schedulers.DEFAULT_BOUNDED_ELASTIC_SIZE, Integer.MAX_VALUE, "jmh-files");
+        schedulers = SyncSchedulers.create();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() {
+        fileScheduler.dispose();
+        schedulers.dispose();
+        BenchmarkFiles.delete(directory);
+    }
+
+    @Benchmark
+    public Long filesInDirectory() {
+        return ReactiveDirectorySynchronizer.filesInDirectory(tree, true, fileScheduler)
+                .sequential()
+                .count()
+                .block();
+    }
+
+    @Benchmark
+    public Long countFiles() {
+        return ReactiveDirectorySynchronizer.countFiles(tree, true, schedulers).block();
+    }
+}
@@ -0,0 +1,19 @@
+package ninja.foxyv.vsync;
+
+/**
+ * How a source file is compared with a target file that already exists.
+ */
+public enum ComparisonStrategy {
+    /**
+     * Only compare the size and last modified time, like the rsync quick check. Files are never read to compare them.
+     */
+    METADATA_ONLY,
+    /**
+     * Compare the size and last modified time first and only hash files whose metadata differs.
+     */
+    METADATA_THEN_HASH,
+    /**
+     * Always compare the checksums of the source and target files.
+     */
+    ALWAYS_HASH
+}
@@ -0,0 +1,16 @@
+package ninja.foxyv.vsync;
+
+/**
+ * How the bytes of a file are copied from the source to the target.
+ */
+public enum CopyEngine {
+    /**
+     * Stream the file through heap buffers with the reactive file stream. Works with any input stream.
+     */
+    STREAM,
+    /**
+     * Copy between file channels with FileChannel.transferTo, letting the kernel move the bytes (copy_file_range or
+     * sendfile) without copying them through the JVM heap.
+     */
+    TRANSFER
+}
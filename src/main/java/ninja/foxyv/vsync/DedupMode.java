@@ -0,0 +1,17 @@
+package ninja.foxyv.vsync;
+
+/**
+ * How a source file is written when the target already holds a file with the same contents.
+ */
+public enum DedupMode {
+    /**
+     * Hard link the target to the file holding the contents. A hard link shares its last modified time and permissions
+     * with the file it links to, so files whose time differs are copied locally instead, as are files on file systems
+     * without hard links.
+     */
+    LINK,
+    /**
+     * Copy the file holding the contents on the target device, rather than writing the source to it.
+     */
+    COPY
+}
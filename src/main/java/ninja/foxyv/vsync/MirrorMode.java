@@ -0,0 +1,20 @@
+package ninja.foxyv.vsync;
+
+/**
+ * What a mirror pass does with target entries whose source no longer exists.
+ */
+public enum MirrorMode {
+    /**
+     * Leave them alone, the target only ever grows.
+     */
+    OFF,
+    /**
+     * Delete them, directories along with everything below them.
+     */
+    DELETE,
+    /**
+     * Move them to the quarantine directory, keeping their path below the target, so they can be looked over before
+     * they are deleted by hand.
+     */
+    QUARANTINE
+}
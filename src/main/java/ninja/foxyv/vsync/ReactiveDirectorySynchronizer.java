@@ -1,12 +1,39 @@
 package ninja.foxyv.vsync;
 
+import ninja.foxyv.vsync.entities.CompactFingerprint;
+import ninja.foxyv.vsync.entities.CopiedFile;
 import ninja.foxyv.vsync.entities.CopyCounters;
+import ninja.foxyv.vsync.entities.DeltaResult;
+import ninja.foxyv.vsync.entities.DirectoryFingerprint;
+import ninja.foxyv.vsync.entities.FileEntry;
 import ninja.foxyv.vsync.entities.FileFingerprint;
+import ninja.foxyv.vsync.entities.ProgressEstimator;
+import ninja.foxyv.vsync.index.ContentIndex;
+import ninja.foxyv.vsync.index.FingerprintIndex;
+import ninja.foxyv.vsync.index.FingerprintTable;
+import ninja.foxyv.vsync.index.MerkleIndex;
+import ninja.foxyv.vsync.index.SyncJournal;
+import ninja.foxyv.vsync.metrics.MetricsReporter;
+import ninja.foxyv.vsync.metrics.StageTimer;
+import ninja.foxyv.vsync.metrics.SyncCounter;
+import ninja.foxyv.vsync.metrics.SyncMetrics;
+import ninja.foxyv.vsync.metrics.SyncOutcome;
+import ninja.foxyv.vsync.metrics.SyncStage;
+import ninja.foxyv.vsync.plan.PlanAction;
+import ninja.foxyv.vsync.plan.PlannedFile;
+import ninja.foxyv.vsync.plan.SyncPlan;
+import ninja.foxyv.vsync.react.fs.DirectoryWalker;
+import ninja.foxyv.vsync.utils.AtomicFileUtils;
+import ninja.foxyv.vsync.utils.DeltaUtils;
 import ninja.foxyv.vsync.utils.DirectorySyncUtils;
+import ninja.foxyv.vsync.utils.FileChannelUtils;
+import ninja.foxyv.vsync.utils.HashUtils;
+import ninja.foxyv.vsync.utils.MetadataUtils;
 import ninja.foxyv.vsync.utils.ReactiveFileUtils;
 import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.ParallelFlux;
@@ -14,42 +41,114 @@ import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+import java.util.function.LongConsumer;
 import java.util.stream.Collectors;
 
 public class ReactiveDirectorySynchronizer {
 
     private static final Logger LOG = LoggerFactory.getLogger(ReactiveDirectorySynchronizer.class);
 
-    public static void main(String[] args) throws ExecutionException, InterruptedException {
+    // How much of an interrupted copy is compared with the source before the copy is resumed.
+    private static final int RESUME_VERIFY_LENGTH = 1024 * 64;
+
+    public static void main(String[] args) throws ExecutionException, InterruptedException, IOException {
         Scheduler progressScheduler = Schedulers.single();
-        Scheduler fileScheduler = Schedulers.newParallel("FileCountScheduler", 100);
 
         File zDrive = new File("V:\\");
         File dDrive = new File("D:\\");
 
+        // Reads and writes are limited per drive, checksums run on a pool sized to the processors. Waiting on the drives
+        // is cheaper on virtual threads when the JDK has them.
+        SyncSchedulers schedulers = (SyncSchedulers.isVirtualThreadsSupported() ? SyncSchedulers.virtual() : SyncSchedulers.create())
+                .withIoConcurrency(zDrive.toPath(), 8)
+                .withIoConcurrency(dDrive.toPath(), 16);
+
         File[] zDriveFiles = zDrive.listFiles();
         Arrays.stream(Objects.requireNonNull(zDriveFiles, "Could not list files in: " + zDrive.getAbsolutePath()))
                 .filter(File::isDirectory)
                 .forEach(file -> System.out.println(file.getAbsolutePath()));
 
-        final long totalFiles = Optional.ofNullable(countFiles(zDrive, true, fileScheduler).block()).orElseThrow(() -> new RuntimeException("Could not count files. (NULL)"));
+        // A dry run only logs what each directory sync would do.
+        boolean dryRun = Arrays.asList(args).contains("--dry-run");
+        boolean mirror = Arrays.asList(args).contains("--mirror");
+        // Carry out the plans a dry run wrote, exactly as they were reviewed, rather than synchronizing the tree again.
+        boolean executePlans = Arrays.asList(args).contains("--execute-plans");
+        File plansDirectory = new File(dDrive, ".vsync-plans");
         AtomicReference<File> currentFile = new AtomicReference<>();
-        CopyCounters copyCounter = new CopyCounters();
+        // The remaining work is estimated from the files the sync walk has found so far, rather than counted up front.
+        ProgressEstimator progressEstimator = new ProgressEstimator();
+        FingerprintIndex fingerprintIndex = FingerprintIndex.open(new File(dDrive, ".vsync-fingerprints.idx").toPath());
+        // Target files keyed by their fingerprints, so duplicates are linked to the copy already on the target.
+        ContentIndex contentIndex = ContentIndex.open(new File(dDrive, ".vsync-content.idx").toPath());
+        // Directory fingerprints of both drives, so subtrees unchanged on both sides since the last run are skipped.
+        MerkleIndex merkleIndex = MerkleIndex.open(new File(dDrive, ".vsync-merkle.idx").toPath());
+        // Finished files and the progress of large copies, so a run that dies picks up where it left off.
+        SyncJournal journal = SyncJournal.open(new File(dDrive, ".vsync-journal").toPath());
+        // Stage timings are published over JMX and appended to a JSON lines file so the run can be graphed afterwards.
+        SyncMetrics metrics = SyncMetrics.create();
+        Disposable metricsBeans = metrics.registerMBeans(zDrive.getAbsolutePath());
+        Disposable metricsReporter = MetricsReporter.writeJsonLines(metrics, new File(dDrive, ".vsync-metrics.jsonl").toPath(), Duration.ofSeconds(10), progressScheduler);
+        CopyCounters copyCounter = new CopyCounters(metrics);
+        SyncOptions syncOptions = SyncOptions.defaults()
+                .withFingerprintIndex(fingerprintIndex)
+                .withMerkleIndex(merkleIndex)
+                .withJournal(journal)
+                .withMetrics(metrics)
+                .withProgressEstimator(progressEstimator)
+                .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH)
+                .withHashOnCopy(true)
+                .withDeltaCopy(1024 * 1024 * 64, DeltaUtils.DEFAULT_BLOCK_SIZE)
+                .withSmallFileThreshold(1024 * 64)
+                // Changed files are usually told apart by a few samples, long before the whole file has been hashed.
+                .withSampledComparison(1024 * 1024, FileChannelUtils.DEFAULT_MIDDLE_SAMPLES, FileChannelUtils.DEFAULT_SAMPLE_SIZE)
+                // Duplicate exports and installers are linked to the copy already on the target rather than read again.
+                .withDeduplication(contentIndex, DedupMode.LINK, 1024 * 1024)
+                // Files deleted from the source are moved aside rather than deleted, until they have been looked over.
+                .withMirror(mirror ? MirrorMode.QUARANTINE : MirrorMode.OFF, new File(dDrive, ".vsync-quarantine").toPath())
+                // Renamed and moved folders are renamed on the target instead of copied again.
+                .withMoveDetection(mirror);
         try {
             progressScheduler.schedulePeriodically(() -> {
-                        long remainingFiles = totalFiles - copyCounter.fileCounter.get() - copyCounter.filesHashed.get();
-                        LOG.info("Current directory: " + currentFile.get().getName() + " - Files copied: " + copyCounter.fileCounter.get() + " - Bytes copied: " + FileUtils.byteCountToDisplaySize(copyCounter.byteCounter.get())
-                                + " - Files hashed: " + copyCounter.filesHashed.get() + " - Remaining: " + remainingFiles);
+                        Duration timeRemaining = progressEstimator.estimatedTimeRemaining();
+                        LOG.info("Current directory: " + currentFile.get().getName() + " - Files copied: " + metrics.getFilesCopied() + " - Bytes copied: " + FileUtils.byteCountToDisplaySize(metrics.getBytesWritten())
+                                + " - Files hashed: " + metrics.getFilesHashed() + " - Samples differed: " + metrics.getSamplesDiffered()
+                                + " - Files unchanged: " + metrics.getFilesUnchanged() + " - Files skipped: " + metrics.getFilesSkipped()
+                                + " - Directories pruned: " + metrics.getDirectoriesPruned() + " - Moved: " + metrics.getEntriesMoved() + " - Removed: " + metrics.getEntriesRemoved()
+                                + " - Deduplicated: " + FileUtils.byteCountToDisplaySize(metrics.getBytesDeduplicated())
+                                + " - Delta matched: " + FileUtils.byteCountToDisplaySize(metrics.getBytesMatched()) + " - Delta literal: " + FileUtils.byteCountToDisplaySize(metrics.getBytesLiteral())
+                                + " - Discovered: " + progressEstimator.filesDiscovered() + " - Remaining: " + progressEstimator.remainingFiles()
+                                + " (" + FileUtils.byteCountToDisplaySize(progressEstimator.remainingBytes()) + ")"
+                                + (timeRemaining == null ? "" : " - At least " + timeRemaining.toMinutes() + " minutes left"));
                     },
                     1, 1, TimeUnit.SECONDS);
 
@@ -67,141 +166,1468 @@ public class ReactiveDirectorySynchronizer {
                 // Use the relative path to create a File location in the target directory
                 File targetDirectory = new File(dDrive, relativize.toString());
 
-                Long aLong = countFiles(zDriveDirectory, true, fileScheduler).block();
+                File planFile = new File(plansDirectory, zDriveDirectory.getName() + ".plan");
+                if (dryRun) {
+                    SyncPlan plan = Objects.requireNonNull(planDirectory(zDriveDirectory, targetDirectory, true, schedulers, syncOptions).block());
+                    LOG.info(plan.summary());
+                    Files.createDirectories(plansDirectory.toPath());
+                    plan.write(planFile.toPath());
+                    continue;
+                }
+
+                detectMoves(zDriveDirectory, targetDirectory, schedulers, copyCounter, syncOptions)
+                        .doOnNext(path -> LOG.info("Moved: " + path))
+                        .blockLast();
 
-                LOG.debug("Total file(s) in " + zDriveDirectory.getAbsolutePath() + ": " + aLong);
+                // A plan walks both trees in full, without one the Merkle tree lets unchanged subtrees be skipped.
+                Flux<CopiedFile> sync;
+                if (executePlans && planFile.isFile()) {
+                    SyncPlan plan = SyncPlan.read(planFile.toPath());
+                    LOG.info("Executing plan: " + planFile.getAbsolutePath() + " - " + plan.summary());
+                    sync = executePlan(plan, schedulers, copyCounter, syncOptions);
+                } else {
+                    // Refresh the source nodes first, only files whose metadata changed since the last run are read.
+                    DirectorySyncUtils.fingerprintDirectory(zDriveDirectory, fingerprintIndex, merkleIndex, schedulers).block();
+                    sync = synchronizeTree(zDriveDirectory, targetDirectory, schedulers, copyCounter, syncOptions);
+                }
 
                 CompletableFuture<String> completableFuture = new CompletableFuture<>();
 
-                copyDirectory(zDriveDirectory, targetDirectory, true, fileScheduler, copyCounter)
-                        .doOnNext(file -> LOG.debug("Copied file: " + file.getAbsolutePath()))
+                sync
+                        .doOnNext(copied -> LOG.debug("Copied file: " + copied.file().getAbsolutePath()))
                         .doOnComplete(() -> completableFuture.complete("Done"))
                         .doOnError(t -> LOG.error("FOXE-7137204502349216775 - Error copying file.", t))
                         .doOnTerminate(() -> completableFuture.completeExceptionally(new RuntimeException("FOXE-2058797770128287305 - Terminated.")))
                         .subscribe();
 
                 completableFuture.get();
+                fingerprintIndex.flush();
+                merkleIndex.flush();
+                contentIndex.flush();
+                journal.flush();
+                Files.deleteIfExists(planFile.toPath());
+
+                mirrorDirectory(zDriveDirectory, targetDirectory, schedulers, copyCounter, syncOptions)
+                        .doOnNext(path -> LOG.info("Removed: " + path))
+                        .blockLast();
 
             }
+
+            // Every directory made it, the next run has to check everything again.
+            if (!dryRun) {
+                journal.clear();
+            }
+
+            // Keep the copy fresh by only synchronizing what changes from now on.
+            if (!dryRun && Arrays.asList(args).contains("--watch")) {
+                currentFile.set(zDrive);
+                LOG.info("Watching for changes: " + zDrive.getAbsolutePath());
+                // Watched changes are few and small, there is nothing worth journaling.
+                WatchSynchronizer.of(zDrive, dDrive, schedulers, copyCounter, syncOptions.withJournal(null))
+                        .watch()
+                        .doOnNext(copied -> LOG.debug("Copied file: " + copied.file().getAbsolutePath()))
+                        .blockLast();
+            }
         } finally {
-            fileScheduler.disposeGracefully().block();
+            metricsReporter.dispose();
+            metricsBeans.dispose();
+            fingerprintIndex.close();
+            merkleIndex.close();
+            contentIndex.close();
+            journal.close();
+            schedulers.dispose();
             progressScheduler.disposeGracefully().block();
         }
 
     }
 
     public static Mono<Long> countFiles(File directory, boolean recursive, Scheduler scheduler) {
-        return filesInDirectory(directory, recursive, scheduler)
+        return countFiles(directory, recursive, SyncSchedulers.of(scheduler));
+    }
+
+    public static Mono<Long> countFiles(File directory, boolean recursive, SyncSchedulers schedulers) {
+        return entriesInDirectory(directory, recursive, schedulers, SyncOptions.defaults())
                 // Turn this into a flux of grouped fluxes that we can do stuff with
                 .groups()
-                // Get a count from each group
-                .flatMap(gf -> gf.collect(Collectors.counting()))
+                // Get a count from each group, every rail has to be subscribed to or the walk stalls
+                .flatMap(gf -> gf.collect(Collectors.counting()), schedulers.parallelism())
                 // Sum up all the counts
                 .collect(Collectors.summingLong(l -> l));
     }
 
 
     public static ParallelFlux<File> filesInDirectory(File directory, boolean recursive, Scheduler fileScheduler) {
-        if (directory.isDirectory()) {
-            if (!recursive) {
-                // Emit all the files from the directory
-                return Mono.just(directory)
-                        .flatMapMany(
-                                dir -> Optional.ofNullable(dir.listFiles())
-                                        .map(Flux::fromArray)
-                                        .orElse(Flux.empty())
-                        )
-                        .filter(File::isFile)
-                        .subscribeOn(fileScheduler)
-                        .parallel();
-            } else {
-                // Emit all the files and directories from the directory then recursively apply it
-                return Mono.just(directory)
-                        .flatMapMany(
-                                dir -> Optional.ofNullable(dir.listFiles())
-                                        .map(Flux::fromArray)
-                                        .orElse(Flux.empty())
-                        )
-                        .subscribeOn(fileScheduler)
-                        .parallel()
-                        .flatMap(file -> filesInDirectory(file, true, fileScheduler))
-                        .filter(File::isFile);
-            }
-        } else {
+        return entriesInDirectory(directory, recursive, SyncSchedulers.of(fileScheduler), SyncOptions.defaults()).map(FileEntry::toFile);
+    }
+
+    /**
+     * Walk the directory once, emitting every file found along with the attributes read during the walk. Files are
+     * counted by the progress estimator of the options as soon as the walk finds them. Directories are listed on the walk
+     * scheduler and the files are emitted on the I/O scheduler of the device holding the directory, split over as many
+     * rails as the schedulers allow files to be worked on at once.
+     */
+    public static ParallelFlux<FileEntry> entriesInDirectory(File directory, boolean recursive, SyncSchedulers schedulers, SyncOptions options) {
+        if (!directory.isDirectory()) {
             // If a file is passed in then just return it.
-            return Flux.just(directory).parallel();
+            return Mono.fromCallable(() -> new FileEntry(directory.toPath(), Files.readAttributes(directory.toPath(), BasicFileAttributes.class)))
+                    .doOnNext(entry -> discovered(entry, options))
+                    .flux()
+                    .parallel();
         }
 
+        return walkFiles(directory, recursive, schedulers, options)
+                .doOnNext(entry -> discovered(entry, options))
+                .parallel(schedulers.parallelism())
+                .runOn(schedulers.io(directory.toPath()));
+    }
+
+    private static Flux<FileEntry> walkFiles(File directory, boolean recursive, SyncSchedulers schedulers, SyncOptions options) {
+        return DirectoryWalker.of(directory.toPath())
+                .withOrder(options.getWalkOrder())
+                .withMaxConcurrentReads(options.getMaxConcurrentReads())
+                .withMaxDepth(recursive ? Integer.MAX_VALUE : 1)
+                .withMetrics(options.getMetrics())
+                .flux(schedulers.walk())
+                .filter(FileEntry::isFile);
+    }
+
+    private static void discovered(FileEntry entry, SyncOptions options) {
+        ProgressEstimator estimator = options.getProgressEstimator();
+        if (estimator != null) {
+            estimator.discovered(entry);
+        }
     }
 
     public static ParallelFlux<File> copyDirectory(File src, File target, boolean recursive, Scheduler fileScheduler, CopyCounters copyCounter) {
-        return filesInDirectory(src, recursive, fileScheduler)
-                .flatMap(file -> {
+        return copyDirectory(src, target, recursive, fileScheduler, copyCounter, SyncOptions.defaults());
+    }
+
+    public static ParallelFlux<File> copyDirectory(File src, File target, boolean recursive, Scheduler fileScheduler, CopyCounters copyCounter, SyncOptions options) {
+        return copyDirectory(src, target, recursive, SyncSchedulers.of(fileScheduler), copyCounter, options);
+    }
+
+    public static ParallelFlux<File> copyDirectory(File src, File target, boolean recursive, SyncSchedulers schedulers, CopyCounters copyCounter, SyncOptions options) {
+        return synchronizeDirectory(src, target, recursive, schedulers, copyCounter, options).map(CopiedFile::file);
+    }
+
+    public static ParallelFlux<CopiedFile> synchronizeDirectory(File src, File target, boolean recursive, Scheduler fileScheduler, CopyCounters copyCounter, SyncOptions options) {
+        return synchronizeDirectory(src, target, recursive, SyncSchedulers.of(fileScheduler), copyCounter, options);
+    }
+
+    /**
+     * Synchronize the source directory to the target directory, emitting each target file along with its fingerprint
+     * when the sync read the contents of the file. Files are copied on the I/O scheduler of the source device within the
+     * write limit of the target device, checksums are calculated on the hash scheduler. Target directories are created
+     * once per sync.
+     */
+    public static ParallelFlux<CopiedFile> synchronizeDirectory(File src, File target, boolean recursive, SyncSchedulers schedulers, CopyCounters copyCounter, SyncOptions options) {
+        Set<Path> targetDirectories = ConcurrentHashMap.newKeySet();
+        SyncSchedulers.DeviceLimit writes = schedulers.writes(target.toPath());
+        return entriesInDirectory(src, recursive, schedulers, options)
+                .flatMap(entry -> {
                     // Convert the path to its relative path from the source directory
-                    Path relativize = src.toPath().relativize(file.toPath());
+                    Path relativize = src.toPath().relativize(entry.path());
 
                     // Use the relative path to create a File location in the target directory
                     File targetFile = new File(target, relativize.toString());
-                    return copyFile(file, targetFile, copyCounter);
+                    return writes.limit(copyEntry(entry, targetFile, targetDirectories, schedulers.hash(), copyCounter, options));
+                });
+    }
+
+    /**
+     * Plan a sync of the source directory to the target directory without reading or writing any file contents. Both
+     * trees are walked at the same time and every file is classified from its metadata with the quick check of the
+     * options, so the plan can be reviewed as a dry run or executed with executePlan.
+     */
+    public static Mono<SyncPlan> planDirectory(File src, File target, boolean recursive, SyncSchedulers schedulers, SyncOptions options) {
+        Path sourcePath = src.toPath();
+        Path targetPath = target.toPath();
+        Mono<Map<Path, BasicFileAttributes>> targetFiles = Mono.defer(() -> target.isDirectory()
+                ? walkFiles(target, recursive, schedulers, options).collectMap(entry -> targetPath.relativize(entry.path()), FileEntry::attributes)
+                : Mono.just(Map.of()));
+        Mono<List<FileEntry>> sourceFiles = walkFiles(src, recursive, schedulers, options).collectList();
+
+        return Mono.zip(sourceFiles, targetFiles)
+                .map(tuple2 -> {
+                    Map<Path, BasicFileAttributes> unmatched = new HashMap<>(tuple2.getT2());
+                    List<PlannedFile> files = new ArrayList<>();
+                    for (FileEntry entry : tuple2.getT1()) {
+                        Path relative = sourcePath.relativize(entry.path());
+                        BasicFileAttributes targetAttributes = unmatched.remove(relative);
+                        PlanAction action;
+                        if (targetAttributes == null) {
+                            action = PlanAction.NEW;
+                        } else if (quickCheck(entry.toFile(), entry.attributes(), targetAttributes, options)) {
+                            action = PlanAction.UNCHANGED;
+                        } else {
+                            action = PlanAction.CHANGED;
+                        }
+                        files.add(new PlannedFile(relative, action, entry.size(), targetAttributes == null ? -1 : targetAttributes.size()));
+                    }
+                    unmatched.forEach((relative, attributes) -> files.add(new PlannedFile(relative, PlanAction.EXTRA, -1, attributes.size())));
+                    return SyncPlan.of(sourcePath, targetPath, files);
+                });
+    }
+
+    /**
+     * Carry out a sync plan. Unchanged files are skipped without being read unless the comparison strategy always
+     * hashes or they are paranoid, the rest are synchronized like synchronizeDirectory would in the execution order of
+     * the plan. The progress estimator of the options is given every file to be worked on before the first one starts.
+     * Extra target files are left alone.
+     */
+    public static Flux<CopiedFile> executePlan(SyncPlan plan, SyncSchedulers schedulers, CopyCounters copyCounter, SyncOptions options) {
+        return Flux.defer(() -> {
+            File target = plan.target().toFile();
+            List<PlannedFile> work = new ArrayList<>();
+            List<PlannedFile> skipped = new ArrayList<>();
+            for (PlannedFile file : plan.files()) {
+                if (file.action() == PlanAction.NEW || file.action() == PlanAction.CHANGED) {
+                    work.add(file);
+                } else if (file.action() == PlanAction.UNCHANGED) {
+                    boolean verify = options.getComparisonStrategy() == ComparisonStrategy.ALWAYS_HASH || options.isParanoid(plan.source().resolve(file.path()));
+                    (verify ? work : skipped).add(file);
+                }
+            }
+
+            ProgressEstimator estimator = options.getProgressEstimator();
+            if (estimator != null) {
+                work.forEach(file -> estimator.discovered(file.size()));
+            }
+
+            Flux<CopiedFile> skippedFiles = Flux.fromIterable(skipped).map(file -> {
+                metrics(copyCounter, options).outcome(SyncOutcome.SKIPPED);
+                return CopiedFile.unread(new File(target, file.path().toString()));
+            });
+
+            Scheduler ioScheduler = schedulers.io(plan.source());
+            SyncSchedulers.DeviceLimit writes = schedulers.writes(plan.target());
+            Set<Path> targetDirectories = ConcurrentHashMap.newKeySet();
+            Flux<CopiedFile> copiedFiles = Flux.fromIterable(SyncPlan.executionOrder(work, SyncPlan.DEFAULT_LARGE_FILE_SIZE))
+                    .flatMap(file -> Mono.fromCallable(() -> stat(plan.source().resolve(file.path()), metrics(copyCounter, options)))
+                            .flatMap(attributes -> {
+                                if (attributes.isEmpty() || !attributes.get().isRegularFile()) {
+                                    // Removed since the plan was made.
+                                    if (estimator != null) {
+                                        estimator.completed(file.size());
+                                    }
+                                    return Mono.empty();
+                                }
+                                FileEntry entry = new FileEntry(plan.source().resolve(file.path()), attributes.get());
+                                return writes.limit(copyEntry(entry, new File(target, file.path().toString()), targetDirectories, schedulers.hash(), copyCounter, options));
+                            })
+                            .subscribeOn(ioScheduler), schedulers.parallelism());
+
+            return skippedFiles.concatWith(copiedFiles);
+        });
+    }
+
+    /**
+     * Synchronize the source tree to the target tree top down, skipping every directory whose Merkle node matches the
+     * node recorded for its target. The source nodes must have been recorded with DirectorySyncUtils.fingerprintDirectory
+     * or kept up to date with DirectorySyncUtils.updateDirectoryFingerprint, a source directory whose node is not current
+     * is synchronized in full. Once a directory has been synchronized without errors its target is recorded with the node
+     * of its source.
+     * <p>
+     * A node is only trusted while the listing hash of its directory matches and the nodes of every directory below it
+     * are current too, so files added deep in the tree or modified in place on either side are noticed. Checking a node
+     * lists and reads the metadata of its subtree once per sync, no contents are read.
+     */
+    public static Flux<CopiedFile> synchronizeTree(File src, File target, SyncSchedulers schedulers, CopyCounters copyCounter, SyncOptions options) {
+        MerkleIndex merkleIndex = Objects.requireNonNull(options.getMerkleIndex(), "FOXE-4611182474675418267 - Synchronizing a tree needs a merkle index.");
+        return Flux.defer(() -> synchronizeTree(src, target, merkleIndex, schedulers, schedulers.io(src.toPath()), schedulers.writes(target.toPath()), ConcurrentHashMap.newKeySet(),
+                new ConcurrentHashMap<>(), copyCounter, options));
+    }
+
+    private static Flux<CopiedFile> synchronizeTree(File src, File target, MerkleIndex merkleIndex, SyncSchedulers schedulers, Scheduler ioScheduler, SyncSchedulers.DeviceLimit writes,
+                                                    Set<Path> targetDirectories, Map<Path, Optional<DirectoryFingerprint>> currentNodes, CopyCounters copyCounter, SyncOptions options) {
+        return Flux.defer(() -> {
+            // Checking the nodes lists the subtrees below, so it runs on the I/O scheduler rather than a walking thread.
+            Optional<DirectoryFingerprint> sourceNode = currentNode(src.toPath(), merkleIndex, currentNodes);
+            Optional<DirectoryFingerprint> targetNode = currentNode(target.toPath(), merkleIndex, currentNodes);
+            if (sourceNode.isPresent() && targetNode.isPresent() && sourceNode.get().hash().equals(targetNode.get().hash())) {
+                metrics(copyCounter, options).count(SyncCounter.DIRECTORIES_PRUNED);
+                return Flux.empty();
+            }
+
+            // Subdirectories are only descended in to once the listing has finished, so no reading thread is held
+            // while the subtrees below it are synchronized.
+            List<File> subdirectories = Collections.synchronizedList(new ArrayList<>());
+            Flux<CopiedFile> files = DirectoryWalker.of(src.toPath())
+                    .withMaxConcurrentReads(1)
+                    .withMaxDepth(1)
+                    .withMetrics(metrics(copyCounter, options))
+                    .flux(schedulers.walk())
+                    .flatMap(entry -> {
+                        File targetFile = new File(target, entry.path().getFileName().toString());
+                        if (entry.isFile()) {
+                            discovered(entry, options);
+                            return writes.limit(copyEntry(entry, targetFile, targetDirectories, schedulers.hash(), copyCounter, options)).subscribeOn(ioScheduler);
+                        }
+                        // Like the walker, linked directories are not descended in to.
+                        if (entry.isDirectory() && !Files.isSymbolicLink(entry.path())) {
+                            subdirectories.add(entry.toFile());
+                        }
+                        return Mono.empty();
+                    });
+
+            Flux<CopiedFile> subtrees = Flux.defer(() -> Flux.fromIterable(subdirectories)
+                    .flatMap(subdirectory -> synchronizeTree(subdirectory, new File(target, subdirectory.getName()), merkleIndex, schedulers, ioScheduler, writes, targetDirectories, currentNodes, copyCounter, options),
+                            options.getMaxConcurrentReads()));
+
+            return files.concatWith(subtrees)
+                    .concatWith(Mono.fromRunnable(() -> sourceNode.ifPresent(node -> MetadataUtils.readAttributes(target.toPath())
+                            .ifPresent(attributes -> merkleIndex.record(target.toPath(), attributes, DirectorySyncUtils.listingHash(target.toPath(), subdirectory -> {
+                            }), node)))));
+        }).subscribeOn(ioScheduler);
+    }
+
+    /**
+     * The node recorded for the directory when it, and the node of every directory below it, is still current. Each
+     * directory is checked once per sync, the outcome is kept in the map passed.
+     */
+    private static Optional<DirectoryFingerprint> currentNode(Path directory, MerkleIndex merkleIndex, Map<Path, Optional<DirectoryFingerprint>> currentNodes) {
+        Path path = directory.toAbsolutePath().normalize();
+        Optional<DirectoryFingerprint> checked = currentNodes.get(path);
+        if (checked != null) {
+            return checked;
+        }
+
+        Optional<DirectoryFingerprint> node = MetadataUtils.readAttributes(path)
+                .filter(BasicFileAttributes::isDirectory)
+                .flatMap(attributes -> {
+                    List<Path> subdirectories = new ArrayList<>();
+                    long listing = DirectorySyncUtils.listingHash(path, subdirectories::add);
+                    return merkleIndex.lookup(path, attributes, listing)
+                            .filter(recorded -> subdirectories.stream().allMatch(subdirectory -> currentNode(subdirectory, merkleIndex, currentNodes).isPresent()));
+                });
+        currentNodes.put(path, node);
+        return node;
+    }
+
+    /**
+     * Synchronize only the passed source paths. Files are compared and copied like synchronizeDirectory would, directories
+     * are synchronized recursively and paths that no longer exist are ignored, or removed from the target when the
+     * options mirror. When the options hold a Merkle index the
+     * source nodes above the paths are updated once they have been synchronized.
+     *
+     * @param changedPaths Paths below the source directory.
+     */
+    public static Flux<CopiedFile> synchronizePaths(File src, File target, Collection<Path> changedPaths, SyncSchedulers schedulers, CopyCounters copyCounter, SyncOptions options) {
+        Path sourcePath = src.toPath().toAbsolutePath().normalize();
+        Scheduler ioScheduler = schedulers.io(sourcePath);
+        SyncSchedulers.DeviceLimit writes = schedulers.writes(target.toPath());
+        Flux<CopiedFile> synchronizedPaths = Flux.fromIterable(changedPaths)
+                .map(path -> path.toAbsolutePath().normalize())
+                .filter(path -> path.startsWith(sourcePath))
+                .flatMap(path -> Mono.fromCallable(() -> MetadataUtils.readAttributes(path))
+                        .subscribeOn(ioScheduler)
+                        .flatMapMany(attributes -> {
+                            File targetFile = new File(target, sourcePath.relativize(path).toString());
+                            if (attributes.isEmpty()) {
+                                if (options.getMirrorMode() == MirrorMode.OFF || !Files.exists(targetFile.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+                                    return Flux.empty();
+                                }
+                                // The source was deleted, mirror the deletion.
+                                Path targetPath = target.toPath().toAbsolutePath().normalize();
+                                return Mono.fromCallable(() -> removeExtra(targetFile.toPath().toAbsolutePath().normalize(), targetPath, quarantineDirectory(options), metrics(copyCounter, options)))
+                                        .subscribeOn(schedulers.io(targetPath))
+                                        .thenMany(Flux.empty());
+                            }
+
+                            if (attributes.get().isDirectory()) {
+                                return synchronizeDirectory(path.toFile(), targetFile, true, schedulers, copyCounter, options).sequential();
+                            }
+
+                            FileEntry entry = new FileEntry(path, attributes.get());
+                            discovered(entry, options);
+                            return writes.limit(copyFile(entry, targetFile, schedulers.hash(), copyCounter, options));
+                        }), options.getMaxConcurrentReads());
+
+        MerkleIndex merkleIndex = options.getMerkleIndex();
+        if (merkleIndex == null) {
+            return synchronizedPaths;
+        }
+
+        return synchronizedPaths.concatWith(Mono.defer(() -> DirectorySyncUtils.updateDirectoryFingerprint(src, changedPaths, options.getFingerprintIndex(), merkleIndex))
+                .subscribeOn(ioScheduler)
+                .then(Mono.empty()));
+    }
+
+    /**
+     * Move target entries to the path their source was renamed or moved to, so a renamed folder is renamed on the target
+     * in one step rather than copied again, emitting the new target path of each entry moved. Run it before the
+     * directory is synchronized, once the moves are done the sync finds the entries already in place.
+     * <p>
+     * Both trees are listed to find the source entries missing from the target and the target entries missing from the
+     * source. A missing source directory is matched with a missing target directory holding the same relative paths,
+     * each with the same size and a last modified time within the modify window. The files of the directories left are
+     * matched the same way one by one. When the comparison strategy always hashes, or a file is paranoid, a match is
+     * only moved once its fingerprints are the same on both sides. An entry moved is gone from its old target path, as
+     * after a mirror pass.
+     * <p>
+     * Fingerprints recorded in the fingerprint index for both sides are compared while matching, which reads nothing.
+     * A source file recorded at the path that mirrors a candidate, with the same file key, is the same file moved and is
+     * preferred. A single file is only moved without being hashed when its match was settled by recorded fingerprints,
+     * every other match is hashed first.
+     */
+    public static Flux<Path> detectMoves(File src, File target, SyncSchedulers schedulers, CopyCounters copyCounter, SyncOptions options) {
+        if (!options.isMoveDetection()) {
+            return Flux.empty();
+        }
+
+        return Flux.defer(() -> {
+            Path sourcePath = src.toPath().toAbsolutePath().normalize();
+            Path targetPath = target.toPath().toAbsolutePath().normalize();
+            if (!Files.isDirectory(sourcePath)) {
+                return Flux.error(new RuntimeException("FOXE-1073729055350433528 - Can not detect moves from a source that is not a directory: " + sourcePath));
+            }
+            if (!Files.isDirectory(targetPath)) {
+                return Flux.empty();
+            }
+
+            Scheduler ioScheduler = schedulers.io(targetPath);
+            return Mono.fromCallable(() -> findMoves(sourcePath, targetPath, options))
+                    .subscribeOn(schedulers.walk())
+                    .flatMapIterable(moves -> moves)
+                    .concatMap(move -> confirmMove(move, schedulers, options)
+                            .filter(Boolean::booleanValue)
+                            .flatMap(confirmed -> Mono.fromCallable(() -> moveEntry(move, metrics(copyCounter, options))).subscribeOn(ioScheduler)));
+        });
+    }
+
+    /**
+     * @param source The source entry the target entry is moved for.
+     * @param from   The target entry without a source.
+     * @param to     The target path of the source entry.
+     * @param verify True when the fingerprints have to be compared before the entry is moved.
+     */
+    private record Move(Path source, Path from, Path to, boolean directory, boolean verify) {
+    }
+
+    private static List<Move> findMoves(Path sourceRoot, Path targetRoot, SyncOptions options) {
+        List<Path> sourceOnly = new ArrayList<>();
+        List<Path> targetOnly = new ArrayList<>();
+        listDifferences(sourceRoot, targetRoot, sourceOnly, targetOnly, options);
+        if (sourceOnly.isEmpty() || targetOnly.isEmpty()) {
+            return List.of();
+        }
+
+        FingerprintIndex index = options.getFingerprintIndex();
+        ComparisonStrategy strategy = options.getComparisonStrategy();
+        List<Move> moves = new ArrayList<>();
+        List<FileEntry> sourceFiles = new ArrayList<>();
+        List<FileEntry> targetFiles = new ArrayList<>();
+        Map<TreeSize, List<Path>> targetTrees = new HashMap<>();
+        // The files of the target directories are held in a table outside the heap, with the checksum recorded for them,
+        // as a renamed tree can hold millions of files. Directories are keyed by their number of files and bytes, so only
+        // likely matches are compared.
+        try (FingerprintTable targetTable = FingerprintTable.create(targetOnly.size())) {
+            for (Path extra : targetOnly) {
+                if (Files.isDirectory(extra, LinkOption.NOFOLLOW_LINKS)) {
+                    TreeSize size = walkTree(extra, (file, attributes) -> {
+                        targetTable.put(HashUtils.pathHash(file), recordedChecksum(index, file, attributes), attributes.size());
+                        return true;
+                    });
+                    targetTrees.computeIfAbsent(size, key -> new ArrayList<>()).add(extra);
+                } else {
+                    MetadataUtils.readAttributes(extra)
+                            .filter(BasicFileAttributes::isRegularFile)
+                            .ifPresent(attributes -> targetFiles.add(new FileEntry(extra, attributes)));
+                }
+            }
+
+            for (Path missing : sourceOnly) {
+                if (!Files.isDirectory(missing, LinkOption.NOFOLLOW_LINKS)) {
+                    MetadataUtils.readAttributes(missing)
+                            .filter(BasicFileAttributes::isRegularFile)
+                            .ifPresent(attributes -> sourceFiles.add(new FileEntry(missing, attributes)));
+                    continue;
+                }
+
+                boolean[] paranoid = {false};
+                TreeSize size = walkTree(missing, (file, attributes) -> {
+                    paranoid[0] |= options.isParanoid(file);
+                    return true;
+                });
+                List<Path> candidates = size.files() == 0 ? null : targetTrees.get(size);
+                Path match = candidates == null ? null : candidates.stream()
+                        .filter(candidate -> sameTree(missing, candidate, targetTable, options))
+                        .findFirst()
+                        .orElse(null);
+                if (match != null) {
+                    candidates.remove(match);
+                    boolean verify = strategy == ComparisonStrategy.ALWAYS_HASH || paranoid[0];
+                    moves.add(new Move(missing, match, targetRoot.resolve(sourceRoot.relativize(missing).toString()), true, verify));
+                } else {
+                    walkTree(missing, (file, attributes) -> sourceFiles.add(new FileEntry(file, attributes)));
+                }
+            }
+        }
+
+        // The files of target directories left unmatched can still have been moved one at a time.
+        targetTrees.values().forEach(trees -> trees.forEach(tree -> walkTree(tree, (file, attributes) -> targetFiles.add(new FileEntry(file, attributes)))));
+        Map<Long, List<FileEntry>> targetsBySize = targetFiles.stream().collect(Collectors.groupingBy(file -> file.attributes().size()));
+        for (FileEntry sourceFile : sourceFiles) {
+            List<FileEntry> sameSize = targetsBySize.get(sourceFile.attributes().size());
+            if (sameSize == null) {
+                continue;
+            }
+
+            Optional<FileFingerprint> sourceFingerprint = index == null ? Optional.empty() : index.lookup(sourceFile.path(), sourceFile.attributes());
+            FileEntry match = null;
+            FileEntry sameFile = null;
+            boolean settled = false;
+            List<FileEntry> candidates = new ArrayList<>();
+            for (FileEntry candidate : sameSize) {
+                if (!MetadataUtils.metadataMatches(sourceFile.attributes(), candidate.attributes(), options.getModifyWindow())) {
+                    continue;
+                }
+
+                // The source recorded at the path the candidate mirrors, when it is the same file under its old name.
+                Path formerSource = sourceRoot.resolve(targetRoot.relativize(candidate.path()).toString());
+                Optional<FileFingerprint> movedFingerprint = index == null ? Optional.empty() : index.lookupMoved(formerSource, sourceFile.attributes());
+                Optional<FileFingerprint> candidateFingerprint = index == null ? Optional.empty() : index.lookup(candidate.path(), candidate.attributes());
+                Optional<FileFingerprint> recordedSource = sourceFingerprint.or(() -> movedFingerprint);
+                if (recordedSource.isPresent() && candidateFingerprint.isPresent()) {
+                    if (recordedSource.get().checksum().getValue() != candidateFingerprint.get().checksum().getValue()) {
+                        continue;
+                    }
+                    if (!settled || movedFingerprint.isPresent()) {
+                        match = candidate;
+                        settled = true;
+                    }
+                } else if (movedFingerprint.isPresent()) {
+                    sameFile = candidate;
+                }
+                candidates.add(candidate);
+            }
+
+            if (!settled) {
+                match = sameFile != null ? sameFile : candidates.stream().findFirst().orElse(null);
+            }
+            if (match != null) {
+                sameSize.remove(match);
+                boolean verify = !settled || strategy == ComparisonStrategy.ALWAYS_HASH || options.isParanoid(sourceFile.path());
+                moves.add(new Move(sourceFile.path(), match.path(), targetRoot.resolve(sourceRoot.relativize(sourceFile.path()).toString()), false, verify));
+            }
+        }
+        return moves;
+    }
+
+    /**
+     * @return The checksum recorded for the file, zero when none is.
+     */
+    private static long recordedChecksum(FingerprintIndex index, Path file, BasicFileAttributes attributes) {
+        if (index == null) {
+            return 0;
+        }
+        return index.lookup(file, attributes).map(fingerprint -> fingerprint.checksum().getValue()).orElse(0L);
+    }
+
+    /**
+     * Collect the source entries missing from the target and the target entries missing from the source, descending in
+     * to the directories found on both sides. Temporary files of the sync and the quarantine are never moved.
+     */
+    private static void listDifferences(Path source, Path target, List<Path> sourceOnly, List<Path> targetOnly, SyncOptions options) {
+        List<String> sourceNames = sortedNames(source, options.getMetrics());
+        List<String> targetNames = sortedNames(target, options.getMetrics());
+        if (sourceNames == null || targetNames == null) {
+            return;
+        }
+
+        Set<String> sourceSet = new HashSet<>(sourceNames);
+        Set<String> targetSet = new HashSet<>(targetNames);
+        Path quarantine = options.getQuarantineDirectory() == null ? null : options.getQuarantineDirectory().toAbsolutePath().normalize();
+        // On a case insensitive file system a name can be missing from the other listing and still exist, looking it up
+        // settles it.
+        for (String name : sourceNames) {
+            Path sourceEntry = source.resolve(name);
+            Path targetEntry = target.resolve(name);
+            if (!targetSet.contains(name) && !Files.exists(targetEntry, LinkOption.NOFOLLOW_LINKS)) {
+                sourceOnly.add(sourceEntry);
+            } else if (Files.isDirectory(sourceEntry, LinkOption.NOFOLLOW_LINKS) && Files.isDirectory(targetEntry, LinkOption.NOFOLLOW_LINKS)) {
+                listDifferences(sourceEntry, targetEntry, sourceOnly, targetOnly, options);
+            }
+        }
+        for (String name : targetNames) {
+            Path targetEntry = target.resolve(name);
+            if (!sourceSet.contains(name) && !name.endsWith(".vsync-tmp") && !targetEntry.equals(quarantine)
+                    && !Files.exists(source.resolve(name), LinkOption.NOFOLLOW_LINKS)) {
+                targetOnly.add(targetEntry);
+            }
+        }
+    }
+
+    /**
+     * @param files The number of regular files below a directory.
+     * @param bytes The size of those files together.
+     */
+    private record TreeSize(long files, long bytes) {
+    }
+
+    /**
+     * Visit the regular files below the directory until the visitor returns false.
+     *
+     * @return The number of files and bytes visited.
+     */
+    private static TreeSize walkTree(Path directory, BiPredicate<Path, BasicFileAttributes> visitor) {
+        long[] totals = new long[2];
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    if (!attributes.isRegularFile()) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    totals[0]++;
+                    totals[1] += attributes.size();
+                    return visitor.test(file, attributes) ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-4870987782044818607 - Could not list the tree of: " + directory, e);
+        }
+        return new TreeSize(totals[0], totals[1]);
+    }
+
+    /**
+     * Trees of the same size are the same when every source file is found in the table at the same relative path below
+     * the target, with the same size and a last modified time within the modify window.
+     */
+    private static boolean sameTree(Path source, Path target, FingerprintTable targetTable, SyncOptions options) {
+        FingerprintIndex index = options.getFingerprintIndex();
+        boolean[] same = {true};
+        walkTree(source, (file, attributes) -> {
+            Path targetFile = target.resolve(source.relativize(file).toString());
+            Optional<CompactFingerprint> targetFingerprint = targetTable.lookup(targetFile);
+            same[0] = targetFingerprint.isPresent() && targetFingerprint.get().length() == attributes.size();
+            if (same[0] && index != null && targetFingerprint.get().checksum() != 0) {
+                // Files whose recorded fingerprints differ hold different contents, whatever their metadata says
+                same[0] = index.lookup(file, attributes)
+                        .map(fingerprint -> fingerprint.checksum().getValue() == targetFingerprint.get().checksum())
+                        .orElse(true);
+            }
+            if (same[0]) {
+                same[0] = MetadataUtils.readAttributes(targetFile)
+                        .filter(targetAttributes -> MetadataUtils.metadataMatches(attributes, targetAttributes, options.getModifyWindow()))
+                        .isPresent();
+            }
+            return same[0];
+        });
+        return same[0];
+    }
+
+    /**
+     * @return True when the fingerprints of the source and the target entry are the same, or they do not have to be
+     * compared.
+     */
+    private static Mono<Boolean> confirmMove(Move move, SyncSchedulers schedulers, SyncOptions options) {
+        if (!move.verify()) {
+            return Mono.just(true);
+        }
+
+        if (move.directory()) {
+            FingerprintIndex index = options.getFingerprintIndex();
+            return Mono.zip(DirectorySyncUtils.fingerprintDirectory(move.source().toFile(), index, null, schedulers),
+                            DirectorySyncUtils.fingerprintDirectory(move.from().toFile(), index, null, schedulers))
+                    .map(t2 -> Arrays.equals(t2.getT1().hash().value(), t2.getT2().hash().value()));
+        }
+        return Mono.zip(hashFile(move.source().toFile(), schedulers.hash(), options), hashFile(move.from().toFile(), schedulers.hash(), options))
+                .map(t2 -> t2.getT1().checksum().getValue() == t2.getT2().checksum().getValue());
+    }
+
+    /**
+     * @return The new path of the target entry, or null when something took its place since the trees were listed.
+     */
+    private static Path moveEntry(Move move, SyncMetrics metrics) {
+        try {
+            LOG.debug("Moving: " + move.from() + " to: " + move.to() + " for: " + move.source());
+            Files.createDirectories(move.to().getParent());
+            Files.move(move.from(), move.to());
+        } catch (FileAlreadyExistsException e) {
+            LOG.debug("Not moving: " + move.from() + ", " + move.to() + " exists.");
+            return null;
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-3419463827494097131 - Could not move: " + move.from() + " to: " + move.to(), e);
+        }
+        metrics.count(SyncCounter.ENTRIES_MOVED);
+        return move.to();
+    }
+
+    /**
+     * Delete or quarantine every entry below the target that has no source, as set by the mirror mode of the options,
+     * emitting each target entry removed. The trees are read one directory at a time: the names in a source directory
+     * and in its target are sorted and merge joined, and only directories found on both sides are descended in to, so
+     * memory is bounded by the largest directory rather than by the size of the tree.
+     * <p>
+     * Run it once the directory has been synchronized, a sync running at the same time could lose its temporary files.
+     */
+    public static Flux<Path> mirrorDirectory(File src, File target, SyncSchedulers schedulers, CopyCounters copyCounter, SyncOptions options) {
+        if (options.getMirrorMode() == MirrorMode.OFF) {
+            return Flux.empty();
+        }
+
+        return Flux.defer(() -> {
+            Path sourcePath = src.toPath().toAbsolutePath().normalize();
+            Path targetPath = target.toPath().toAbsolutePath().normalize();
+            // A missing or unmounted source must never be mistaken for an empty one.
+            if (!Files.isDirectory(sourcePath)) {
+                return Flux.error(new RuntimeException("FOXE-6022088208714100597 - Can not mirror a source that is not a directory: " + sourcePath));
+            }
+            return mirrorDirectory(sourcePath, targetPath, targetPath, quarantineDirectory(options), schedulers.walk(), schedulers.io(targetPath), copyCounter, options);
+        });
+    }
+
+    private static Flux<Path> mirrorDirectory(Path source, Path target, Path targetRoot, Path quarantine, Scheduler walkScheduler, Scheduler ioScheduler, CopyCounters copyCounter, SyncOptions options) {
+        return Mono.fromCallable(() -> mergeListings(source, target, options))
+                .subscribeOn(walkScheduler)
+                .flatMapMany(listing -> Flux.fromIterable(listing.extras())
+                        .concatMap(extra -> Mono.fromCallable(() -> removeExtra(extra, targetRoot, quarantine, metrics(copyCounter, options))).subscribeOn(ioScheduler))
+                        // Descend one directory at a time, only the listings along the current path are held.
+                        .concatWith(Flux.fromIterable(listing.subdirectories())
+                                .concatMap(name -> mirrorDirectory(source.resolve(name), target.resolve(name), targetRoot, quarantine, walkScheduler, ioScheduler, copyCounter, options))));
+    }
+
+    /**
+     * @param extras         Target entries without a source.
+     * @param subdirectories Names of the directories found in both the source and the target.
+     */
+    private record MirrorListing(List<Path> extras, List<String> subdirectories) {
+    }
+
+    private static MirrorListing mergeListings(Path source, Path target, SyncOptions options) {
+        List<String> sourceNames = sortedNames(source, options.getMetrics());
+        List<String> targetNames = sortedNames(target, options.getMetrics());
+        // The quarantine is kept whatever the mode, it may be below the target.
+        Path quarantine = options.getQuarantineDirectory() == null ? null : options.getQuarantineDirectory().toAbsolutePath().normalize();
+        List<Path> extras = new ArrayList<>();
+        List<String> subdirectories = new ArrayList<>();
+        if (sourceNames == null || targetNames == null) {
+            // One side disappeared since its parent was listed, the next pass will see what happened to it.
+            return new MirrorListing(extras, subdirectories);
+        }
+
+        int s = 0;
+        for (String targetName : targetNames) {
+            while (s < sourceNames.size() && sourceNames.get(s).compareTo(targetName) < 0) {
+                s++;
+            }
+
+            Path sourceEntry = source.resolve(targetName);
+            Path targetEntry = target.resolve(targetName);
+            boolean inSource = s < sourceNames.size() && sourceNames.get(s).equals(targetName);
+            // On a case insensitive source a name can match without sorting next to it, looking it up settles it.
+            if (inSource || Files.exists(sourceEntry, LinkOption.NOFOLLOW_LINKS)) {
+                if (Files.isDirectory(sourceEntry, LinkOption.NOFOLLOW_LINKS) && Files.isDirectory(targetEntry, LinkOption.NOFOLLOW_LINKS)) {
+                    subdirectories.add(targetName);
+                }
+            } else if (!targetEntry.equals(quarantine)) {
+                extras.add(targetEntry);
+            }
+        }
+        return new MirrorListing(extras, subdirectories);
+    }
+
+    /**
+     * @return The sorted names in the directory, or null when it does not exist.
+     */
+    private static List<String> sortedNames(Path directory, SyncMetrics metrics) {
+        List<String> names = new ArrayList<>();
+        try (StageTimer timer = metrics.start(SyncStage.LIST);
+             DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+            timer.done(names.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | DirectoryIteratorException e) {
+            // Unlike a sync, a mirror pass must not carry on past a listing it could not read or it would remove the
+            // entries it missed.
+            throw new RuntimeException("FOXE-6007310682909930451 - Could not list directory: " + directory, e);
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static Path quarantineDirectory(SyncOptions options) {
+        if (options.getMirrorMode() != MirrorMode.QUARANTINE) {
+            return null;
+        }
+        return Objects.requireNonNull(options.getQuarantineDirectory(), "FOXE-6436946460037075724 - Quarantining needs a quarantine directory.")
+                .toAbsolutePath()
+                .normalize();
+    }
+
+    /**
+     * Delete the target entry or move it to the quarantine directory, at the same path below the quarantine directory as
+     * it had below the target. An entry quarantined before under the same path is kept by numbering the new one.
+     */
+    private static Path removeExtra(Path extra, Path targetRoot, Path quarantine, SyncMetrics metrics) {
+        try {
+            if (quarantine == null) {
+                LOG.debug("Deleting: " + extra);
+                if (Files.isDirectory(extra, LinkOption.NOFOLLOW_LINKS)) {
+                    FileUtils.deleteDirectory(extra.toFile());
+                } else {
+                    Files.deleteIfExists(extra);
+                }
+            } else {
+                Path destination = quarantine.resolve(targetRoot.relativize(extra).toString());
+                for (int i = 1; Files.exists(destination, LinkOption.NOFOLLOW_LINKS); i++) {
+                    destination = destination.resolveSibling(extra.getFileName() + "." + i);
+                }
+                LOG.debug("Quarantining: " + extra + " to: " + destination);
+                Files.createDirectories(destination.getParent());
+                Files.move(extra, destination);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-1101184914538789509 - Could not remove: " + extra, e);
+        }
+        metrics.count(SyncCounter.ENTRIES_REMOVED);
+        return extra;
+    }
+
+    /**
+     * Synchronize a file found by a directory sync, taking the small file path when the file is below the threshold of
+     * the options. Files the journal of the options has recorded as done are skipped, the rest are recorded once they
+     * are synchronized.
+     *
+     * @param targetDirectories The target directories known to exist, shared by the files of the sync.
+     */
+    private static Mono<CopiedFile> copyEntry(FileEntry source, File targetFile, Set<Path> targetDirectories, Scheduler hashScheduler, CopyCounters copyCounter, SyncOptions options) {
+        SyncJournal journal = options.getJournal();
+        if (journal != null && journal.isDone(source.path(), source.attributes())) {
+            // Finished by an earlier run of the same sync, the target is not even looked at.
+            metrics(copyCounter, options).outcome(SyncOutcome.SKIPPED);
+            ProgressEstimator estimator = options.getProgressEstimator();
+            if (estimator != null) {
+                estimator.completed(source);
+            }
+            return Mono.just(CopiedFile.unread(targetFile));
+        }
+
+        Mono<CopiedFile> copied = source.attributes().size() < options.getSmallFileThreshold()
+                ? Mono.fromCallable(() -> copySmallFile(source, targetFile, targetDirectories, copyCounter, options))
+                : copyFile(source, targetFile, hashScheduler, copyCounter, options);
+        return journal == null ? copied : copied.doOnNext(file -> journal.done(source.path(), source.attributes()));
+    }
+
+    /**
+     * Synchronize a small file on the calling thread. The contents are read with one call, compared byte for byte with
+     * the target when the target has to be checked, and written with one call. For tiny files the streams, buffers and
+     * operators of the reactive copy cost more than the bytes themselves.
+     */
+    private static CopiedFile copySmallFile(FileEntry source, File targetFile, Set<Path> targetDirectories, CopyCounters copyCounter, SyncOptions options) {
+        Path sourcePath = source.path();
+        Path targetPath = targetFile.toPath();
+        SyncMetrics metrics = metrics(copyCounter, options);
+        try {
+            CopiedFile copied;
+            Optional<BasicFileAttributes> targetAttributes = stat(targetPath, metrics);
+            ComparisonStrategy strategy = options.getComparisonStrategy();
+            if (targetAttributes.isPresent() && strategy != ComparisonStrategy.ALWAYS_HASH && !options.isParanoid(sourcePath)
+                    && quickCheck(source.toFile(), source.attributes(), targetAttributes.get(), options)) {
+                metrics.outcome(SyncOutcome.SKIPPED);
+                copied = CopiedFile.unread(targetFile);
+            } else {
+                // Whether the file is compared or copied is only known once it has been read, so it is timed by hand.
+                long start = System.nanoTime();
+                byte[] contents = Files.readAllBytes(sourcePath);
+                FileFingerprint fingerprint = DirectorySyncUtils.fingerprintBytes(sourcePath.getFileName().toString(), contents);
+                if (targetAttributes.isPresent() && strategy != ComparisonStrategy.METADATA_ONLY
+                        && targetAttributes.get().size() == contents.length
+                        && Arrays.equals(contents, Files.readAllBytes(targetPath))) {
+                    metrics.count(SyncCounter.FILES_HASHED);
+                    // The contents match so align the time, letting the next quick check skip the file.
+                    if (!source.attributes().lastModifiedTime().equals(targetAttributes.get().lastModifiedTime())) {
+                        MetadataUtils.setLastModifiedTime(targetPath, source.attributes().lastModifiedTime());
+                    }
+                    metrics.record(SyncStage.HASH, System.nanoTime() - start, contents.length);
+                    metrics.outcome(SyncOutcome.UNCHANGED);
+                } else {
+                    LOG.debug("Copying small file: " + sourcePath.toAbsolutePath() + " to: " + targetPath.toAbsolutePath());
+                    writeSmallFile(source, targetPath, contents, targetDirectories, metrics);
+                    metrics.record(SyncStage.COPY, System.nanoTime() - start, contents.length);
+                    metrics.outcome(targetAttributes.isPresent() ? SyncOutcome.CHANGED : SyncOutcome.CREATED);
+                    metrics.count(SyncCounter.BYTES_WRITTEN, contents.length);
+                    if (options.isHashOnCopy()) {
+                        recordFingerprint(source.toFile(), source.attributes(), targetFile, fingerprint, options);
+                    }
+                }
+                copied = new CopiedFile(targetFile, fingerprint);
+            }
+
+            ProgressEstimator estimator = options.getProgressEstimator();
+            if (estimator != null) {
+                estimator.completed(source);
+            }
+            return copied;
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-6436578925291307112 - Could not synchronize file: " + sourcePath.toAbsolutePath() + " to: " + targetPath.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Write the contents to a temporary file with the time and permissions of the source, then rename it over the
+     * target.
+     */
+    private static void writeSmallFile(FileEntry source, Path targetPath, byte[] contents, Set<Path> targetDirectories, SyncMetrics metrics) throws IOException {
+        Path parentDirectory = targetPath.getParent();
+        if (targetDirectories.add(parentDirectory)) {
+            try (StageTimer timer = metrics.start(SyncStage.MKDIR)) {
+                Files.createDirectories(parentDirectory);
+                timer.done(0);
+            }
+        }
+
+        Path temporaryFile = AtomicFileUtils.temporaryFile(targetPath.toFile()).toPath();
+        try {
+            try {
+                Files.write(temporaryFile, contents);
+            } catch (NoSuchFileException e) {
+                // Another file of the sync remembered the directory before creating it, or it was removed since.
+                Files.createDirectories(parentDirectory);
+                Files.write(temporaryFile, contents);
+            }
+            MetadataUtils.preserveAttributes(source.path(), source.attributes(), temporaryFile);
+        } catch (IOException | RuntimeException e) {
+            AtomicFileUtils.deleteQuietly(temporaryFile);
+            throw e;
+        }
+        AtomicFileUtils.replace(temporaryFile, targetPath, source.path());
+    }
+
+    private static Optional<BasicFileAttributes> stat(Path path, SyncMetrics metrics) {
+        try (StageTimer timer = metrics.start(SyncStage.STAT)) {
+            Optional<BasicFileAttributes> attributes = MetadataUtils.readAttributes(path);
+            timer.done(0);
+            return attributes;
+        }
+    }
+
+    /**
+     * @param hashScheduler The scheduler checksums are calculated on when the source and target have to be compared.
+     */
+    private static Mono<CopiedFile> copyFile(FileEntry source, File targetFile, Scheduler hashScheduler, CopyCounters copyCounter, SyncOptions options) {
+        ProgressEstimator estimator = options.getProgressEstimator();
+        return Mono.fromCallable(() -> stat(targetFile.toPath(), metrics(copyCounter, options)))
+                .flatMap(targetAttributes -> {
+                    if (targetAttributes.isPresent()) {
+                        return synchronizeFile(source, targetFile, targetAttributes.get(), hashScheduler, copyCounter, options);
+                    }
+                    return writeOrClone(source.toFile(), targetFile, SyncOutcome.CREATED, copyCounter, options);
+                })
+                .doOnNext(copied -> {
+                    recordContent(source, targetFile, options);
+                    if (estimator != null) {
+                        estimator.completed(source);
+                    }
                 });
     }
 
-    private static Mono<File> copyFile(File sourceFile, File targetFile, CopyCounters copyCounter) {
-        if (targetFile.exists()) {
-            return synchronizeFile(sourceFile, targetFile, copyCounter);
+    /**
+     * Write the source over the target, or clone a target file that already holds the same contents when deduplicating.
+     *
+     * @param outcome The outcome recorded when the source is written.
+     */
+    private static Mono<CopiedFile> writeOrClone(File sourceFile, File targetFile, SyncOutcome outcome, CopyCounters copyCounter, SyncOptions options) {
+        ContentIndex contentIndex = options.getContentIndex();
+        FingerprintIndex fingerprintIndex = options.getFingerprintIndex();
+        SyncMetrics metrics = metrics(copyCounter, options);
+        if (contentIndex == null || fingerprintIndex == null || sourceFile.length() < options.getDedupThreshold()) {
+            return writeFile(sourceFile, targetFile, copyCounter, options).doOnNext(copied -> metrics.outcome(outcome));
+        }
+
+        // Only a fingerprint already recorded for the source is looked up. Otherwise the source is fingerprinted while
+        // it is copied, so its contents can be found the next time without reading it twice now.
+        Mono<Optional<Path>> findMono = Mono.fromCallable(() -> MetadataUtils.readAttributes(sourceFile.toPath())
+                .flatMap(attributes -> fingerprintIndex.lookup(sourceFile.toPath(), attributes))
+                .flatMap(fingerprint -> contentIndex.find(fingerprint, fingerprintIndex)));
+        // A checksum and length only point at a likely donor, its bytes are compared with the source before they are
+        // reused so a checksum collision or a stale record can never write the wrong contents.
+        Mono<Optional<Path>> donorMono = metrics.time(SyncStage.STAT, findMono, found -> 0)
+                .flatMap(found -> found.isEmpty() ? Mono.just(found)
+                        : metrics.time(SyncStage.HASH, Mono.fromCallable(() -> found.filter(donor -> FileChannelUtils.contentsMatch(sourceFile.toPath(), donor))),
+                        donor -> donor.isPresent() ? sourceFile.length() : 0));
+        return donorMono
+                .flatMap(found -> {
+                    if (found.isPresent()) {
+                        return cloneFile(found.get(), sourceFile, targetFile, copyCounter, options);
+                    }
+                    return writeFile(sourceFile, targetFile, copyCounter, options).doOnNext(copied -> metrics.outcome(outcome));
+                });
+    }
+
+    /**
+     * Write the target from a target file with the same contents as the source, linked or copied on the target device,
+     * then rename it over the target. The fingerprint recorded for the source is recorded for the target.
+     *
+     * @param existingFile The target file holding the contents of the source.
+     */
+    private static Mono<CopiedFile> cloneFile(Path existingFile, File sourceFile, File targetFile, CopyCounters copyCounter, SyncOptions options) {
+        return Mono.fromCallable(() -> {
+            LOG.debug("Cloning: " + existingFile.toAbsolutePath() + " to: " + targetFile.getAbsolutePath() + " for: " + sourceFile.getAbsolutePath());
+            BasicFileAttributes sourceAttributes = Files.readAttributes(sourceFile.toPath(), BasicFileAttributes.class);
+            Path temporaryFile = AtomicFileUtils.temporaryFile(targetFile).toPath();
+            try (StageTimer timer = metrics(copyCounter, options).start(SyncStage.COPY)) {
+                Files.createDirectories(temporaryFile.getParent());
+                // A link shares the time of the file it links to, so only files the quick check sees as the same time
+                // can be linked.
+                boolean linked = options.getDedupMode() == DedupMode.LINK
+                        && MetadataUtils.readAttributes(existingFile).filter(existing -> MetadataUtils.metadataMatches(sourceAttributes, existing, options.getModifyWindow())).isPresent()
+                        && link(existingFile, temporaryFile);
+                if (!linked) {
+                    FileChannelUtils.transfer(existingFile, temporaryFile, FileChannelUtils.DEFAULT_TRANSFER_CHUNK_SIZE, transferred -> {});
+                    MetadataUtils.preserveAttributes(sourceFile.toPath(), sourceAttributes, temporaryFile);
+                }
+                AtomicFileUtils.replace(temporaryFile, targetFile.toPath(), sourceFile.toPath());
+                // No bytes were copied from the source, the bytes saved are reported as deduplicated.
+                timer.done(0);
+            } catch (IOException | RuntimeException e) {
+                AtomicFileUtils.deleteQuietly(temporaryFile);
+                throw e;
+            }
+
+            FingerprintIndex fingerprintIndex = options.getFingerprintIndex();
+            fingerprintIndex.lookup(sourceFile.toPath(), sourceAttributes)
+                    .ifPresent(fingerprint -> recordTargetFingerprint(targetFile, fingerprint, options));
+
+            metrics(copyCounter, options).deduplicated(sourceAttributes.size());
+            return CopiedFile.unread(targetFile);
+        });
+    }
+
+    /**
+     * @return False when the file system can not link the files, they have to be copied instead.
+     */
+    private static boolean link(Path existingFile, Path link) {
+        try {
+            Files.createLink(link, existingFile);
+            return true;
+        } catch (UnsupportedOperationException | IOException e) {
+            LOG.debug("Could not link: " + link.toAbsolutePath() + " to: " + existingFile.toAbsolutePath() + ", copying it instead.", e);
+            return false;
         }
+    }
 
+    /**
+     * Record a synchronized target in the content index under the fingerprint recorded for it, so later source files
+     * with the same contents can be cloned from it. Targets that have not been fingerprinted are not read for it.
+     */
+    private static void recordContent(FileEntry source, File targetFile, SyncOptions options) {
+        ContentIndex contentIndex = options.getContentIndex();
+        FingerprintIndex fingerprintIndex = options.getFingerprintIndex();
+        if (contentIndex != null && fingerprintIndex != null && source.attributes().size() >= options.getDedupThreshold()) {
+            Path targetPath = targetFile.toPath();
+            MetadataUtils.readAttributes(targetPath)
+                    .flatMap(attributes -> fingerprintIndex.lookup(targetPath, attributes))
+                    .ifPresent(fingerprint -> contentIndex.record(targetPath, fingerprint));
+        }
+    }
+
+    /**
+     * Write the source to a temporary file next to the target, preallocated to the size of the source, then rename it
+     * over the target once it has the time and permissions of the source. The old target stays whole until the rename.
+     * When the copy fails the temporary file is deleted, unless it is a journaled copy the next run can resume.
+     */
+    private static Mono<CopiedFile> writeFile(File sourceFile, File targetFile, CopyCounters copyCounter, SyncOptions options) {
+        File temporaryFile = AtomicFileUtils.temporaryFile(targetFile);
+        SyncMetrics metrics = metrics(copyCounter, options);
+        SyncJournal journal = options.getJournal();
+        boolean resumable = journal != null && sourceFile.length() >= journal.getCheckpointInterval();
+        // Bytes only count as written once they have replaced the target.
+        LongAdder written = new LongAdder();
         return Mono.fromCallable(() -> {
                     File parentDirectory = targetFile.getParentFile();
-                    if (!parentDirectory.exists() && parentDirectory.mkdirs()) {
-                        LOG.debug("Creating directory: " + parentDirectory.getAbsolutePath());
+                    if (!parentDirectory.exists()) {
+                        try (StageTimer timer = metrics.start(SyncStage.MKDIR)) {
+                            if (parentDirectory.mkdirs()) {
+                                LOG.debug("Creating directory: " + parentDirectory.getAbsolutePath());
+                            }
+                            timer.done(0);
+                        }
                     }
-                    return targetFile;
+                    return Files.readAttributes(sourceFile.toPath(), BasicFileAttributes.class);
                 })
-                .doOnNext(file -> LOG.debug("Copying file: " + sourceFile.getAbsolutePath() + " to: " + targetFile.getAbsolutePath()))
-                .flatMap(file ->
-                        Mono.using(
-                            // Open the file output stream
-                            () -> new FileOutputStream(targetFile),
-                            // Write bytes from the input stream to the output stream
-                            fos -> ReactiveFileUtils.streamFile(sourceFile).doOnNext(buffer -> {
-                                try {
-                                    copyCounter.byteCounter.addAndGet(buffer.remaining());
-                                    fos.write(buffer.array(), buffer.arrayOffset(), buffer.remaining());
-                                } catch (IOException e) {
-                                    throw new RuntimeException("FOXE-9056604565732576339 - Could not save block to the file: " + targetFile.getAbsolutePath(), e);
-                                }
-                            }).last().doOnNext(bb -> copyCounter.fileCounter.getAndAdd(1)),
-                            // Close the file output stream
-                            fos -> {
-                                try {
-                                    fos.close();
-                                } catch (IOException e) {
-                                    throw new RuntimeException("FOXE-9056604565732576339 - Could not close file output stream for file: " + targetFile.getAbsolutePath(), e);
-                                }
-                            })
-                            .map(lastBytes -> targetFile));
+                .doOnNext(attributes -> LOG.debug("Copying file: " + sourceFile.getAbsolutePath() + " to: " + targetFile.getAbsolutePath()))
+                .flatMap(sourceAttributes -> {
+                    Mono<CopiedFile> copy;
+                    if (resumable) {
+                        copy = resumableCopy(sourceFile, sourceAttributes, temporaryFile, targetFile, journal, written::add, options);
+                    } else if (isHashedWhileCopying(sourceFile, options)) {
+                        copy = hashingCopy(sourceFile, sourceAttributes, temporaryFile, targetFile, written::add, options);
+                    } else {
+                        Mono<File> output = options.getCopyEngine() == CopyEngine.TRANSFER
+                                ? transferFile(sourceFile, temporaryFile, written::add)
+                                : streamFile(sourceFile, temporaryFile, written::add);
+                        copy = output.map(copied -> {
+                            // Keep the time of the source so the next quick check sees the files as the same.
+                            MetadataUtils.preserveAttributes(sourceFile.toPath(), sourceAttributes, temporaryFile.toPath());
+                            return CopiedFile.unread(targetFile);
+                        });
+                    }
+
+                    return metrics.time(SyncStage.COPY, copy.map(copied -> {
+                        AtomicFileUtils.replace(temporaryFile.toPath(), targetFile.toPath(), sourceFile.toPath());
+                        metrics.count(SyncCounter.BYTES_WRITTEN, written.sum());
+                        if (copied.fingerprint() != null) {
+                            recordTargetFingerprint(targetFile, copied.fingerprint(), options);
+                        }
+                        return copied;
+                    }), copied -> sourceAttributes.size());
+                })
+                .doOnError(e -> {
+                    // The journal points at the partial copy, a failed source is most likely back on the next run.
+                    if (!resumable) {
+                        AtomicFileUtils.deleteQuietly(temporaryFile.toPath());
+                    }
+                });
     }
 
-    private static Mono<File> synchronizeFile(File sourceFile, File targetFile, CopyCounters copyCounter) {
-        Mono<FileFingerprint> sourceHashMono = DirectorySyncUtils.fingerprintFile(sourceFile);
-        Mono<FileFingerprint> targetHashMono = DirectorySyncUtils.fingerprintFile(targetFile);
+    /**
+     * @return True when the source is fingerprinted as it is copied, either for hash on copy or so that it can be
+     * recorded in the content index.
+     */
+    private static boolean isHashedWhileCopying(File sourceFile, SyncOptions options) {
+        return options.isHashOnCopy()
+                || (options.getContentIndex() != null && options.getFingerprintIndex() != null && sourceFile.length() >= options.getDedupThreshold());
+    }
+
+    /**
+     * Copy the source to the output file while fingerprinting the bytes written, then give the output the time and
+     * permissions of the source. The fingerprint is recorded in the fingerprint index for the source, the caller records
+     * it for the target once the output has replaced it.
+     *
+     * @param outputFile The temporary file that will replace the target.
+     * @param onWritten  Told the bytes written to the output as they are.
+     */
+    private static Mono<CopiedFile> hashingCopy(File sourceFile, BasicFileAttributes sourceAttributes, File outputFile, File targetFile, LongConsumer onWritten, SyncOptions options) {
+        return Mono.fromCallable(() -> {
+            FileFingerprint fingerprint = FileChannelUtils.copyAndFingerprint(sourceFile.toPath(), outputFile.toPath(), FileChannelUtils.COPY_BUFFER_POOL, onWritten);
+            MetadataUtils.preserveAttributes(sourceFile.toPath(), sourceAttributes, outputFile.toPath());
+
+            recordFingerprint(sourceFile, sourceAttributes, null, fingerprint, options);
+            return new CopiedFile(targetFile, fingerprint);
+        });
+    }
+
+    /**
+     * Copy a large file with checkpoints in the journal, continuing from the last checkpoint an interrupted copy of the
+     * same source left in the temporary file. The end of the copied range is compared with the source before it is
+     * trusted. With hash on copy the file is copied through buffers and fingerprinted, the bytes copied before the
+     * checkpoint are checksummed from the temporary file. Otherwise it goes through the kernel transfer.
+     */
+    private static Mono<CopiedFile> resumableCopy(File sourceFile, BasicFileAttributes sourceAttributes, File temporaryFile, File targetFile, SyncJournal journal,
+                                                  LongConsumer onWritten, SyncOptions options) {
+        return Mono.fromCallable(() -> {
+            Path sourcePath = sourceFile.toPath();
+            long offset = journal.resumeOffset(sourcePath, sourceAttributes);
+            if (offset > 0) {
+                int verifyLength = (int) Math.min(offset, RESUME_VERIFY_LENGTH);
+                if (FileChannelUtils.rangesMatch(sourcePath, temporaryFile.toPath(), offset - verifyLength, verifyLength)) {
+                    LOG.info("Resuming copy of: " + sourceFile.getAbsolutePath() + " at: " + FileUtils.byteCountToDisplaySize(offset));
+                } else {
+                    offset = 0;
+                }
+            }
+
+            LongConsumer onCheckpoint = position -> journal.partial(sourcePath, sourceAttributes, position);
+            if (isHashedWhileCopying(sourceFile, options)) {
+                FileFingerprint fingerprint = FileChannelUtils.copyAndFingerprintResumable(sourcePath, temporaryFile.toPath(), offset, FileChannelUtils.COPY_BUFFER_POOL,
+                        journal.getCheckpointInterval(), onWritten, onCheckpoint);
+                MetadataUtils.preserveAttributes(sourcePath, sourceAttributes, temporaryFile.toPath());
+                recordFingerprint(sourceFile, sourceAttributes, null, fingerprint, options);
+                return new CopiedFile(targetFile, fingerprint);
+            }
+
+            FileChannelUtils.transferResumable(sourcePath, temporaryFile.toPath(), offset, FileChannelUtils.DEFAULT_TRANSFER_CHUNK_SIZE, journal.getCheckpointInterval(),
+                    onWritten, onCheckpoint);
+            MetadataUtils.preserveAttributes(sourcePath, sourceAttributes, temporaryFile.toPath());
+            return CopiedFile.unread(targetFile);
+        });
+    }
+
+    /**
+     * Rebuild a changed file in a temporary file from the blocks of the old target copy, then replace the target. When
+     * every block matched in place nothing is written, only the time of the target is aligned with the source.
+     */
+    private static Mono<CopiedFile> deltaCopy(File sourceFile, File targetFile, CopyCounters copyCounter, SyncOptions options) {
+        return Mono.fromCallable(() -> {
+            LOG.debug("Delta synchronizing file: " + sourceFile.getAbsolutePath() + " to: " + targetFile.getAbsolutePath());
+            File temporaryFile = AtomicFileUtils.temporaryFile(targetFile);
+            BasicFileAttributes sourceAttributes = Files.readAttributes(sourceFile.toPath(), BasicFileAttributes.class);
+            SyncMetrics metrics = metrics(copyCounter, options);
+            // Whether the file is compared or rebuilt is only known once it has been read, so it is timed by hand.
+            long start = System.nanoTime();
+            try {
+                DeltaResult result = DeltaUtils.deltaCopy(sourceFile.toPath(), targetFile.toPath(), temporaryFile.toPath(), options.getDeltaBlockSize());
+                metrics.count(SyncCounter.BYTES_MATCHED, result.matchedBytes());
+                if (result.unchanged()) {
+                    MetadataUtils.preserveLastModified(sourceFile.toPath(), targetFile.toPath());
+                    metrics.record(SyncStage.HASH, System.nanoTime() - start, sourceAttributes.size());
+                    metrics.outcome(SyncOutcome.UNCHANGED);
+                } else {
+                    MetadataUtils.preserveAttributes(sourceFile.toPath(), sourceAttributes, temporaryFile.toPath());
+                    AtomicFileUtils.replace(temporaryFile.toPath(), targetFile.toPath(), sourceFile.toPath());
+
+                    metrics.record(SyncStage.COPY, System.nanoTime() - start, sourceAttributes.size());
+                    metrics.count(SyncCounter.BYTES_WRITTEN, result.literalBytes());
+                    metrics.count(SyncCounter.BYTES_LITERAL, result.literalBytes());
+                    metrics.outcome(SyncOutcome.CHANGED);
+                }
+
+                recordFingerprint(sourceFile, sourceAttributes, targetFile, result.fingerprint(), options);
+                return new CopiedFile(targetFile, result.fingerprint());
+            } catch (RuntimeException e) {
+                AtomicFileUtils.deleteQuietly(temporaryFile.toPath());
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * @return The metrics the sync records to, which the copy counters read their counts from.
+     */
+    private static SyncMetrics metrics(CopyCounters copyCounter, SyncOptions options) {
+        return copyCounter.recordingTo(options.getMetrics());
+    }
+
+    /**
+     * Record a fingerprint calculated while copying in the fingerprint index, if there is one.
+     *
+     * @param targetFile The target holding the fingerprinted contents, or null when it has not been written yet.
+     */
+    private static void recordFingerprint(File sourceFile, BasicFileAttributes sourceAttributes, File targetFile, FileFingerprint fingerprint, SyncOptions options) {
+        FingerprintIndex index = options.getFingerprintIndex();
+        if (index == null) {
+            return;
+        }
+
+        index.record(sourceFile.toPath(), sourceAttributes, fingerprint);
+        if (targetFile != null) {
+            index.record(targetFile.toPath(), MetadataUtils.readAttributes(targetFile.toPath()).orElseThrow(), fingerprint);
+        }
+    }
+
+    /**
+     * Record the fingerprint of contents written while copying for the target, once they have replaced it.
+     */
+    private static void recordTargetFingerprint(File targetFile, FileFingerprint fingerprint, SyncOptions options) {
+        FingerprintIndex index = options.getFingerprintIndex();
+        if (index != null) {
+            index.record(targetFile.toPath(), MetadataUtils.readAttributes(targetFile.toPath()).orElseThrow(), fingerprint);
+        }
+    }
+
+    private static Mono<File> transferFile(File sourceFile, File targetFile, LongConsumer onWritten) {
+        return Mono.fromCallable(() -> {
+            FileChannelUtils.transfer(sourceFile.toPath(), targetFile.toPath(), FileChannelUtils.DEFAULT_TRANSFER_CHUNK_SIZE, onWritten);
+            return targetFile;
+        });
+    }
+
+    private static Mono<File> streamFile(File sourceFile, File targetFile, LongConsumer onWritten) {
+        return Mono.using(
+                    // Open the output preallocated to the size of the source
+                    () -> FileChannelUtils.openPreallocated(targetFile.toPath(), sourceFile.length()),
+                    // Write bytes from the input stream to the output channel
+                    channel -> ReactiveFileUtils.streamFile(sourceFile).doOnNext(buffer -> {
+                        try {
+                            onWritten.accept(buffer.remaining());
+                            // Write through the channel so pooled direct buffers are written without a copy.
+                            while (buffer.hasRemaining()) {
+                                channel.write(buffer);
+                            }
+                        } catch (IOException e) {
+                            throw new RuntimeException("FOXE-9056604565732576339 - Could not save block to the file: " + targetFile.getAbsolutePath(), e);
+                        }
+                    }).then(Mono.fromCallable(() -> {
+                        // Cut off the preallocated space in case the source shrank while it was copied.
+                        channel.truncate(channel.position());
+                        return targetFile;
+                    })),
+                    // Close the output channel
+                    channel -> {
+                        try {
+                            channel.close();
+                        } catch (IOException e) {
+                            throw new RuntimeException("FOXE-9056604565732576339 - Could not close file output channel for file: " + targetFile.getAbsolutePath(), e);
+                        }
+                    });
+    }
+
+    private static Mono<CopiedFile> synchronizeFile(FileEntry source, File targetFile, BasicFileAttributes targetAttributes, Scheduler hashScheduler, CopyCounters copyCounter, SyncOptions options) {
+        File sourceFile = source.toFile();
+        BasicFileAttributes sourceAttributes = source.attributes();
+        return Mono.defer(() -> {
+                    ComparisonStrategy strategy = options.getComparisonStrategy();
+                    if (strategy == ComparisonStrategy.ALWAYS_HASH || options.isParanoid(sourceFile.toPath())) {
+                        return compareChecksums(sourceFile, targetFile, hashScheduler, copyCounter, options);
+                    }
+
+                    if (quickCheck(sourceFile, sourceAttributes, targetAttributes, options)) {
+                        metrics(copyCounter, options).outcome(SyncOutcome.SKIPPED);
+                        return Mono.just(CopiedFile.unread(targetFile));
+                    }
+
+                    if (strategy == ComparisonStrategy.METADATA_ONLY) {
+                        return replaceFile(sourceFile, targetFile, copyCounter, options);
+                    }
+
+                    // Large files are rebuilt from the unchanged blocks of the old copy. Recorded checksums are compared
+                    // first since they read nothing, otherwise the delta copy compares the files block by block itself
+                    // and only writes once they differ.
+                    if (targetAttributes.size() >= options.getDeltaThreshold()) {
+                        return samplesDiffer(sourceFile, targetFile, hashScheduler, copyCounter, options)
+                                .flatMap(differ -> differ || !isFingerprinted(sourceFile, options) || !isFingerprinted(targetFile, options)
+                                        ? deltaCopy(sourceFile, targetFile, copyCounter, options)
+                                        : compareFullChecksums(sourceFile, targetFile, hashScheduler, copyCounter, options));
+                    }
+
+                    // The metadata differs so the file has most likely changed. Copying while hashing saves reading the
+                    // source twice, at the cost of a wasted write when the contents turn out to be the same.
+                    if (options.isHashOnCopy()) {
+                        return samplesDiffer(sourceFile, targetFile, hashScheduler, copyCounter, options)
+                                .flatMap(differ -> differ
+                                        ? replaceFile(sourceFile, targetFile, copyCounter, options)
+                                        : speculativeCopy(sourceFile, targetFile, hashScheduler, copyCounter, options));
+                    }
+
+                    return compareChecksums(sourceFile, targetFile, hashScheduler, copyCounter, options);
+                });
+    }
+
+    private static boolean quickCheck(File sourceFile, BasicFileAttributes sourceAttributes, BasicFileAttributes targetAttributes, SyncOptions options) {
+        if (!MetadataUtils.metadataMatches(sourceAttributes, targetAttributes, options.getModifyWindow())) {
+            return false;
+        }
+
+        FingerprintIndex index = options.getFingerprintIndex();
+        return !options.isCompareFileKey() || index == null || !index.isReplaced(sourceFile.toPath(), sourceAttributes);
+    }
+
+    private static Mono<CopiedFile> compareChecksums(File sourceFile, File targetFile, Scheduler hashScheduler, CopyCounters copyCounter, SyncOptions options) {
+        return samplesDiffer(sourceFile, targetFile, hashScheduler, copyCounter, options)
+                .flatMap(differ -> differ
+                        ? replaceFile(sourceFile, targetFile, copyCounter, options)
+                        : compareFullChecksums(sourceFile, targetFile, hashScheduler, copyCounter, options));
+    }
+
+    /**
+     * Compare samples of a large source and target at the same offsets on the hash scheduler, a few blocks of positional
+     * reads instead of reading both files in full. Files already fingerprinted in the fingerprint index are not sampled,
+     * comparing their recorded checksums reads nothing.
+     *
+     * @return True when the samples prove the contents differ, false when the files have to be hashed to tell.
+     */
+    private static Mono<Boolean> samplesDiffer(File sourceFile, File targetFile, Scheduler hashScheduler, CopyCounters copyCounter, SyncOptions options) {
+        return Mono.defer(() -> {
+            if (sourceFile.length() < options.getSampleThreshold()
+                    || (isFingerprinted(sourceFile, options) && isFingerprinted(targetFile, options))) {
+                return Mono.just(false);
+            }
+
+            Mono<Boolean> sampleMono = Mono.fromCallable(() -> !FileChannelUtils.samplesMatch(sourceFile.toPath(), targetFile.toPath(),
+                            options.getMiddleSamples(), options.getSampleSize()))
+                    .subscribeOn(hashScheduler)
+                    .doOnNext(differ -> {
+                        if (differ) {
+                            metrics(copyCounter, options).count(SyncCounter.SAMPLES_DIFFERED);
+                        }
+                    });
+            return metrics(copyCounter, options).time(SyncStage.HASH, sampleMono, differ -> 0);
+        });
+    }
+
+    private static boolean isFingerprinted(File file, SyncOptions options) {
+        FingerprintIndex index = options.getFingerprintIndex();
+        return index != null && MetadataUtils.readAttributes(file.toPath()).flatMap(attributes -> index.lookup(file.toPath(), attributes)).isPresent();
+    }
+
+    private static Mono<CopiedFile> compareFullChecksums(File sourceFile, File targetFile, Scheduler hashScheduler, CopyCounters copyCounter, SyncOptions options) {
+        Mono<FileFingerprint> sourceHashMono = hashFile(sourceFile, hashScheduler, options);
+        Mono<FileFingerprint> targetHashMono = hashFile(targetFile, hashScheduler, options);
 
 
         return Mono.zip(sourceHashMono, targetHashMono)
-                .doOnNext(tuple2 -> copyCounter.filesHashed.getAndIncrement())
-                .filter(tuple2 -> tuple2.getT1().checksum().getValue() != tuple2.getT2().checksum().getValue())
+                .doOnNext(tuple2 -> metrics(copyCounter, options).count(SyncCounter.FILES_HASHED))
                 .flatMap(tuple2 -> {
-                    LOG.debug("Synchronizing file: " + sourceFile.getAbsolutePath() + " to: " + targetFile.getAbsolutePath());
-                    // Copy source file to target file
-                    if(targetFile.delete()) {
-                        LOG.info("Deleted old file: " + targetFile.getAbsolutePath());
+                    if (tuple2.getT1().checksum().getValue() != tuple2.getT2().checksum().getValue()) {
+                        return replaceFile(sourceFile, targetFile, copyCounter, options);
+                    }
+
+                    // The contents match so align the time, letting the next quick check skip the file.
+                    if (sourceFile.lastModified() != targetFile.lastModified()) {
+                        MetadataUtils.preserveLastModified(sourceFile.toPath(), targetFile.toPath());
+                    }
+                    metrics(copyCounter, options).outcome(SyncOutcome.UNCHANGED);
+                    return Mono.just(new CopiedFile(targetFile, tuple2.getT1()));
+                });
+    }
+
+    /**
+     * Fingerprint a file on the hash scheduler, timed from the moment it is queued.
+     */
+    private static Mono<FileFingerprint> hashFile(File file, Scheduler hashScheduler, SyncOptions options) {
+        return options.getMetrics().time(SyncStage.HASH,
+                DirectorySyncUtils.fingerprintFile(file, options.getFingerprintIndex(), hashScheduler).subscribeOn(hashScheduler),
+                FileFingerprint::length);
+    }
+
+    /**
+     * Copy and fingerprint the source into a temporary file next to the target while the target is fingerprinted. The
+     * temporary file replaces the target only when the fingerprints differ.
+     */
+    private static Mono<CopiedFile> speculativeCopy(File sourceFile, File targetFile, Scheduler hashScheduler, CopyCounters copyCounter, SyncOptions options) {
+        File temporaryFile = AtomicFileUtils.temporaryFile(targetFile);
+        SyncMetrics metrics = metrics(copyCounter, options);
+        LongAdder written = new LongAdder();
+        long[] copyNanos = new long[1];
+        Mono<FileFingerprint> targetHashMono = hashFile(targetFile, hashScheduler, options);
+        // Whether the copy is kept is only known once both sides are fingerprinted, so it is timed by hand. A copy thrown
+        // away only hashed the source.
+        Mono<CopiedFile> copyMono = Mono.fromCallable(() -> Files.readAttributes(sourceFile.toPath(), BasicFileAttributes.class))
+                .flatMap(sourceAttributes -> {
+                    long start = System.nanoTime();
+                    return hashingCopy(sourceFile, sourceAttributes, temporaryFile, targetFile, written::add, options)
+                            .doOnNext(copied -> copyNanos[0] = System.nanoTime() - start);
+                });
+
+        return Mono.zip(copyMono, targetHashMono)
+                .doOnNext(tuple2 -> metrics.count(SyncCounter.FILES_HASHED))
+                .map(tuple2 -> {
+                    try {
+                        if (tuple2.getT1().fingerprint().checksum().getValue() == tuple2.getT2().checksum().getValue()) {
+                            Files.delete(temporaryFile.toPath());
+                            MetadataUtils.preserveLastModified(sourceFile.toPath(), targetFile.toPath());
+                            metrics.record(SyncStage.HASH, copyNanos[0], tuple2.getT1().fingerprint().length());
+                            metrics.outcome(SyncOutcome.UNCHANGED);
+                        } else {
+                            LOG.debug("Synchronizing file: " + sourceFile.getAbsolutePath() + " to: " + targetFile.getAbsolutePath());
+                            AtomicFileUtils.replace(temporaryFile.toPath(), targetFile.toPath(), sourceFile.toPath());
+                            metrics.record(SyncStage.COPY, copyNanos[0], written.sum());
+                            metrics.count(SyncCounter.BYTES_WRITTEN, written.sum());
+                            metrics.outcome(SyncOutcome.CHANGED);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException("FOXE-6978236594586546405 - Could not replace file: " + targetFile.getAbsolutePath(), e);
                     }
 
-                    // Copy the file now that the old one has been deleted.
-                    return copyFile(sourceFile, targetFile, copyCounter);
+                    recordTargetFingerprint(targetFile, tuple2.getT1().fingerprint(), options);
+                    return tuple2.getT1();
                 })
-                .switchIfEmpty(Mono.just(targetFile));
+                .doOnError(e -> AtomicFileUtils.deleteQuietly(temporaryFile.toPath()));
+    }
+
+    private static Mono<CopiedFile> replaceFile(File sourceFile, File targetFile, CopyCounters copyCounter, SyncOptions options) {
+        if (targetFile.length() >= options.getDeltaThreshold()) {
+            return deltaCopy(sourceFile, targetFile, copyCounter, options);
+        }
+
+        LOG.debug("Synchronizing file: " + sourceFile.getAbsolutePath() + " to: " + targetFile.getAbsolutePath());
+        // The new copy replaces the old one in a single rename, so the old one is kept until the copy is complete.
+        return writeOrClone(sourceFile, targetFile, SyncOutcome.CHANGED, copyCounter, options);
     }
 
 }
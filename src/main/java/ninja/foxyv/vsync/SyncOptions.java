@@ -0,0 +1,335 @@
+package ninja.foxyv.vsync;
+
+import ninja.foxyv.vsync.entities.ProgressEstimator;
+import ninja.foxyv.vsync.index.ContentIndex;
+import ninja.foxyv.vsync.index.FingerprintIndex;
+import ninja.foxyv.vsync.index.MerkleIndex;
+import ninja.foxyv.vsync.index.SyncJournal;
+import ninja.foxyv.vsync.metrics.SyncMetrics;
+import ninja.foxyv.vsync.react.fs.DirectoryWalker;
+import ninja.foxyv.vsync.react.fs.WalkOrder;
+import ninja.foxyv.vsync.utils.DeltaUtils;
+import ninja.foxyv.vsync.utils.FileChannelUtils;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options that control how a directory is synchronized. The defaults behave like the original synchronizer.
+ */
+public class SyncOptions {
+
+    private FingerprintIndex fingerprintIndex;
+    private MerkleIndex merkleIndex;
+    private ComparisonStrategy comparisonStrategy = ComparisonStrategy.ALWAYS_HASH;
+    private Duration modifyWindow = Duration.ofMillis(1);
+    private boolean compareFileKey = false;
+    private CopyEngine copyEngine = CopyEngine.TRANSFER;
+    private boolean hashOnCopy = false;
+    private long deltaThreshold = Long.MAX_VALUE;
+    private int deltaBlockSize = DeltaUtils.DEFAULT_BLOCK_SIZE;
+    private WalkOrder walkOrder = WalkOrder.DEPTH_FIRST;
+    private int maxConcurrentReads = DirectoryWalker.DEFAULT_MAX_CONCURRENT_READS;
+    private long smallFileThreshold = 0;
+    private long sampleThreshold = Long.MAX_VALUE;
+    private int middleSamples = FileChannelUtils.DEFAULT_MIDDLE_SAMPLES;
+    private int sampleSize = FileChannelUtils.DEFAULT_SAMPLE_SIZE;
+    private ProgressEstimator progressEstimator;
+    private SyncMetrics metrics = SyncMetrics.disabled();
+    private MirrorMode mirrorMode = MirrorMode.OFF;
+    private Path quarantineDirectory;
+    private SyncJournal journal;
+    private ContentIndex contentIndex;
+    private DedupMode dedupMode = DedupMode.LINK;
+    private long dedupThreshold = Long.MAX_VALUE;
+    private boolean moveDetection = false;
+    private final List<PathMatcher> paranoidMatchers = new ArrayList<>();
+
+    public static SyncOptions defaults() {
+        return new SyncOptions();
+    }
+
+    /**
+     * @param fingerprintIndex The index used to skip re-hashing files whose metadata has not changed, or null to always
+     *                         hash files.
+     */
+    public SyncOptions withFingerprintIndex(FingerprintIndex fingerprintIndex) {
+        this.fingerprintIndex = fingerprintIndex;
+        return this;
+    }
+
+    /**
+     * @param merkleIndex The directory fingerprints used to skip whole subtrees when synchronizing a tree, or null.
+     */
+    public SyncOptions withMerkleIndex(MerkleIndex merkleIndex) {
+        this.merkleIndex = merkleIndex;
+        return this;
+    }
+
+    public SyncOptions withComparisonStrategy(ComparisonStrategy comparisonStrategy) {
+        this.comparisonStrategy = comparisonStrategy;
+        return this;
+    }
+
+    /**
+     * @param modifyWindow The largest difference between last modified times that is still considered the same time.
+     *                     FAT file systems need at least two seconds.
+     */
+    public SyncOptions withModifyWindow(Duration modifyWindow) {
+        this.modifyWindow = modifyWindow;
+        return this;
+    }
+
+    /**
+     * @param compareFileKey When true a source file whose file key (inode) differs from the one recorded in the
+     *                       fingerprint index is treated as changed even when its size and time match.
+     */
+    public SyncOptions withCompareFileKey(boolean compareFileKey) {
+        this.compareFileKey = compareFileKey;
+        return this;
+    }
+
+    /**
+     * @param globs Glob patterns of source files that are always compared by hash, whatever the comparison strategy.
+     */
+    public SyncOptions withParanoidGlobs(String... globs) {
+        for (String glob : globs) {
+            paranoidMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+        }
+        return this;
+    }
+
+    /**
+     * @param copyEngine How file contents are copied. Streaming is kept as a fallback for file systems where channel
+     *                   transfers misbehave.
+     */
+    public SyncOptions withCopyEngine(CopyEngine copyEngine) {
+        this.copyEngine = copyEngine;
+        return this;
+    }
+
+    /**
+     * @param hashOnCopy When true files are fingerprinted from the same buffers they are copied with, instead of being
+     *                   copied by the copy engine. The fingerprints are emitted with the copied files and recorded in the
+     *                   fingerprint index.
+     */
+    public SyncOptions withHashOnCopy(boolean hashOnCopy) {
+        this.hashOnCopy = hashOnCopy;
+        return this;
+    }
+
+    /**
+     * @param deltaThreshold Changed files whose old target copy is at least this large are rebuilt from the blocks of
+     *                       the old copy rather than copied in full. Delta copies are off by default.
+     * @param blockSize      The size of the blocks compared between the old and new versions.
+     */
+    public SyncOptions withDeltaCopy(long deltaThreshold, int blockSize) {
+        this.deltaThreshold = deltaThreshold;
+        this.deltaBlockSize = blockSize;
+        return this;
+    }
+
+    /**
+     * @param walkOrder          The order source directories are read in.
+     * @param maxConcurrentReads The most source directories read at the same time.
+     */
+    public SyncOptions withWalk(WalkOrder walkOrder, int maxConcurrentReads) {
+        this.walkOrder = walkOrder;
+        this.maxConcurrentReads = maxConcurrentReads;
+        return this;
+    }
+
+    /**
+     * @param smallFileThreshold Files smaller than this are read and written with a single call each and compared byte
+     *                           for byte, skipping the reactive copy pipeline. Off by default.
+     */
+    public SyncOptions withSmallFileThreshold(long smallFileThreshold) {
+        this.smallFileThreshold = smallFileThreshold;
+        return this;
+    }
+
+    /**
+     * @param sampleThreshold Files at least this large are compared by samples at fixed offsets before they are hashed in
+     *                        full, and copied straight away when the samples differ. Off by default.
+     * @param middleSamples   The number of samples between the head and the tail of the file.
+     * @param sampleSize      The size of each sample.
+     */
+    public SyncOptions withSampledComparison(long sampleThreshold, int middleSamples, int sampleSize) {
+        this.sampleThreshold = sampleThreshold;
+        this.middleSamples = middleSamples;
+        this.sampleSize = sampleSize;
+        return this;
+    }
+
+    /**
+     * @param progressEstimator Counts the files discovered by the sync walk and the files synchronized, or null.
+     */
+    public SyncOptions withProgressEstimator(ProgressEstimator progressEstimator) {
+        this.progressEstimator = progressEstimator;
+        return this;
+    }
+
+    /**
+     * @param metrics Records the outcome of each file and the time spent in each stage of the sync.
+     */
+    public SyncOptions withMetrics(SyncMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @param mirrorMode          What a mirror pass does with target entries that have no source. Off by default.
+     * @param quarantineDirectory Where quarantined entries are moved to, or null. It must be on the same device as the
+     *                            target so entries are moved with a rename, and it is never removed by a mirror pass
+     *                            even when it is below the target.
+     */
+    public SyncOptions withMirror(MirrorMode mirrorMode, Path quarantineDirectory) {
+        this.mirrorMode = mirrorMode;
+        this.quarantineDirectory = quarantineDirectory;
+        return this;
+    }
+
+    /**
+     * @param journal Records each file once it is synchronized and the progress of large copies, so a sync restarted
+     *                after a crash skips the finished files and resumes the interrupted copies. A large copy that
+     *                fails keeps its temporary file for the next run to resume. With hash on copy large files are
+     *                copied through buffers rather than the kernel transfer, so they are still fingerprinted. Null by
+     *                default.
+     */
+    public SyncOptions withJournal(SyncJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * @param contentIndex   The target files keyed by their contents, or null. New and changed source files whose
+     *                       contents are already on the target are cloned from the target copy rather than written
+     *                       from the source. Candidates are found by the fingerprints in the fingerprint index, nothing
+     *                       is deduplicated without one, and compared with the source byte for byte before they are
+     *                       cloned. Source files it holds no fingerprint for are fingerprinted while they are copied. Off
+     *                       by default.
+     * @param dedupMode      How the target copy is cloned.
+     * @param dedupThreshold Only files at least this large are looked up and recorded. Files copied as small files are
+     *                       never deduplicated.
+     */
+    public SyncOptions withDeduplication(ContentIndex contentIndex, DedupMode dedupMode, long dedupThreshold) {
+        this.contentIndex = contentIndex;
+        this.dedupMode = dedupMode;
+        this.dedupThreshold = dedupThreshold;
+        return this;
+    }
+
+    /**
+     * @param moveDetection When true target entries whose source was renamed or moved are moved on the target before a
+     *                      sync, instead of the source being copied again. Moved entries are gone from their old path,
+     *                      as with a mirror pass. Off by default.
+     */
+    public SyncOptions withMoveDetection(boolean moveDetection) {
+        this.moveDetection = moveDetection;
+        return this;
+    }
+
+    public FingerprintIndex getFingerprintIndex() {
+        return fingerprintIndex;
+    }
+
+    public MerkleIndex getMerkleIndex() {
+        return merkleIndex;
+    }
+
+    public ComparisonStrategy getComparisonStrategy() {
+        return comparisonStrategy;
+    }
+
+    public Duration getModifyWindow() {
+        return modifyWindow;
+    }
+
+    public boolean isCompareFileKey() {
+        return compareFileKey;
+    }
+
+    public CopyEngine getCopyEngine() {
+        return copyEngine;
+    }
+
+    public boolean isHashOnCopy() {
+        return hashOnCopy;
+    }
+
+    public long getDeltaThreshold() {
+        return deltaThreshold;
+    }
+
+    public int getDeltaBlockSize() {
+        return deltaBlockSize;
+    }
+
+    public WalkOrder getWalkOrder() {
+        return walkOrder;
+    }
+
+    public int getMaxConcurrentReads() {
+        return maxConcurrentReads;
+    }
+
+    public long getSmallFileThreshold() {
+        return smallFileThreshold;
+    }
+
+    public long getSampleThreshold() {
+        return sampleThreshold;
+    }
+
+    public int getMiddleSamples() {
+        return middleSamples;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    public SyncMetrics getMetrics() {
+        return metrics;
+    }
+
+    public ProgressEstimator getProgressEstimator() {
+        return progressEstimator;
+    }
+
+    public MirrorMode getMirrorMode() {
+        return mirrorMode;
+    }
+
+    public Path getQuarantineDirectory() {
+        return quarantineDirectory;
+    }
+
+    public SyncJournal getJournal() {
+        return journal;
+    }
+
+    public ContentIndex getContentIndex() {
+        return contentIndex;
+    }
+
+    public DedupMode getDedupMode() {
+        return dedupMode;
+    }
+
+    public long getDedupThreshold() {
+        return dedupThreshold;
+    }
+
+    public boolean isMoveDetection() {
+        return moveDetection;
+    }
+
+    public boolean isParanoid(Path sourceFile) {
+        return paranoidMatchers.stream().anyMatch(matcher -> matcher.matches(sourceFile));
+    }
+}
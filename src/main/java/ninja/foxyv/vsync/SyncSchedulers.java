@@ -0,0 +1,268 @@
+package ninja.foxyv.vsync;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The schedulers the stages of a sync run on. Blocking reads and writes run on a pool per device, keyed by the FileStore
+ * holding the files, so a spinning disk can be limited to a couple of readers while an SSD gets many. A copy runs on the
+ * pool of the device it reads from and also takes a permit of the device it writes to, so the limit of a device holds
+ * for its writes too. Checksum work runs on a pool sized to the processors that may block on the reads it checksums, and
+ * directories are listed on a pool of their own so a walk waiting for its subscriber never holds a thread the copies
+ * need.
+ * <p>
+ * On a JDK with virtual threads the blocking stages can run on a virtual thread per task instead, bounded by a
+ * semaphore per device rather than by the size of a pool, so thousands of reads and writes can wait on the disks
+ * without a platform thread and its stack each.
+ */
+public class SyncSchedulers implements Disposable {
+
+    // Enough concurrent reads to keep an SSD busy, spinning disks should be limited to one or two.
+    public static final int DEFAULT_IO_CONCURRENCY = 16;
+
+    // A waiting virtual thread costs a few hundred bytes, so the limit is set by the devices rather than by memory.
+    public static final int DEFAULT_VIRTUAL_IO_CONCURRENCY = 1024;
+
+    private final Scheduler shared;
+    private final boolean virtual;
+    private final Scheduler hashScheduler;
+    private final Scheduler walkScheduler;
+    private final Map<String, Scheduler> ioSchedulers = new ConcurrentHashMap<>();
+    private final Map<String, DeviceLimit> writeLimits = new ConcurrentHashMap<>();
+    private final Map<String, Integer> ioConcurrency = new ConcurrentHashMap<>();
+    private int defaultIoConcurrency;
+
+    private SyncSchedulers(Scheduler shared, boolean virtual, Scheduler hashScheduler, Scheduler walkScheduler, int defaultIoConcurrency) {
+        this.shared = shared;
+        this.virtual = virtual;
+        this.hashScheduler = hashScheduler;
+        this.walkScheduler = walkScheduler;
+        this.defaultIoConcurrency = defaultIoConcurrency;
+    }
+
+    /**
+     * Create separate pools for each device, for hashing and for walking directories. They must be disposed of once the
+     * sync is done.
+     */
+    public static SyncSchedulers create() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return new SyncSchedulers(null, false,
+                newHashScheduler(processors),
+                Schedulers.newBoundedElastic(processors * 4, Integer.MAX_VALUE, "vsync-walk", 60, true),
+                DEFAULT_IO_CONCURRENCY);
+    }
+
+    /**
+     * Run blocking reads, writes and directory listings on virtual threads, limited per device by a semaphore.
+     * Checksums still run on a pool sized to the processors since they keep a thread busy. The schedulers must be
+     * disposed of once the sync is done.
+     *
+     * @throws UnsupportedOperationException When the JDK has no virtual threads, check isVirtualThreadsSupported first.
+     */
+    public static SyncSchedulers virtual() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return new SyncSchedulers(null, true,
+                newHashScheduler(processors),
+                Schedulers.fromExecutorService(newVirtualThreadPerTaskExecutor(), "vsync-walk"),
+                DEFAULT_VIRTUAL_IO_CONCURRENCY);
+    }
+
+    /**
+     * @return True when the JDK running the sync has virtual threads, Java 21 or newer.
+     */
+    public static boolean isVirtualThreadsSupported() {
+        // Java 19 and 20 have the method too, but it only works there with preview features enabled.
+        if (Runtime.version().feature() < 21) {
+            return false;
+        }
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Run every stage on the one scheduler, like the synchronizer did before it had separate pools. The scheduler is
+     * not disposed of with the returned schedulers.
+     */
+    public static SyncSchedulers of(Scheduler scheduler) {
+        return new SyncSchedulers(scheduler, false, scheduler, scheduler, DEFAULT_IO_CONCURRENCY);
+    }
+
+    /**
+     * @param concurrency The most blocking reads and writes run at the same time on devices without their own limit.
+     */
+    public SyncSchedulers withDefaultIoConcurrency(int concurrency) {
+        this.defaultIoConcurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param pathOnDevice Any path on the device to limit.
+     * @param concurrency  The most blocking reads and writes run at the same time on the device.
+     */
+    public SyncSchedulers withIoConcurrency(Path pathOnDevice, int concurrency) {
+        ioConcurrency.put(fileStoreKey(pathOnDevice), concurrency);
+        return this;
+    }
+
+    /**
+     * The scheduler for blocking reads and writes of files on the device holding the path. Looking up the device costs
+     * a system call or two, so look it up once per directory tree rather than once per file.
+     *
+     * @param path A path on the device, it does not have to exist yet.
+     */
+    public Scheduler io(Path path) {
+        if (shared != null) {
+            return shared;
+        }
+
+        String key = fileStoreKey(path);
+        return ioSchedulers.computeIfAbsent(key, k -> {
+            int concurrency = ioConcurrency.getOrDefault(k, defaultIoConcurrency);
+            if (virtual) {
+                return Schedulers.fromExecutorService(new SemaphoreExecutorService(newVirtualThreadPerTaskExecutor(), concurrency), "vsync-io-" + k);
+            }
+            return Schedulers.newBoundedElastic(concurrency, Integer.MAX_VALUE, "vsync-io-" + k, 60, true);
+        });
+    }
+
+    /**
+     * The limit on blocking work writing to the device holding the path, the same concurrency its I/O scheduler has.
+     * Looking up the device costs a system call or two, so look it up once per directory tree rather than once per file.
+     *
+     * @param path A path on the device, it does not have to exist yet.
+     */
+    public DeviceLimit writes(Path path) {
+        if (shared != null) {
+            return DeviceLimit.NONE;
+        }
+
+        return writeLimits.computeIfAbsent(fileStoreKey(path), k -> new DeviceLimit(new Semaphore(ioConcurrency.getOrDefault(k, defaultIoConcurrency))));
+    }
+
+    /**
+     * How many files a directory sync works on at the same time. Pools of platform threads get one rail per processor
+     * like before, virtual threads get as many rails as a device may have reads in flight.
+     */
+    public int parallelism() {
+        return virtual ? defaultIoConcurrency : Schedulers.DEFAULT_POOL_SIZE;
+    }
+
+    /**
+     * The scheduler for checksum work.
+     */
+    public Scheduler hash() {
+        return hashScheduler;
+    }
+
+    /**
+     * The scheduler directories are listed on.
+     */
+    public Scheduler walk() {
+        return walkScheduler;
+    }
+
+    @Override
+    public void dispose() {
+        if (shared != null) {
+            return;
+        }
+
+        hashScheduler.dispose();
+        walkScheduler.dispose();
+        ioSchedulers.values().forEach(Scheduler::dispose);
+    }
+
+    @Override
+    public boolean isDisposed() {
+        return shared == null ? hashScheduler.isDisposed() : shared.isDisposed();
+    }
+
+    private static Scheduler newHashScheduler(int processors) {
+        // Checksums read the files they check, so the threads must be allowed to block.
+        return Schedulers.newBoundedElastic(processors, Integer.MAX_VALUE, "vsync-hash", 60, true);
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isVirtualThreadsSupported()) {
+            throw new UnsupportedOperationException("FOXE-4771745991889808464 - Virtual threads need Java 21 or newer, running on: " + Runtime.version());
+        }
+        // Looked up by reflection so the synchronizer still builds and runs on Java 17.
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException("FOXE-2653063519867450828 - Virtual threads need Java 21 or newer, running on: " + Runtime.version(), e);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException("FOXE-1041168109512066318 - Could not create a virtual thread executor.", e);
+        }
+    }
+
+    private static String fileStoreKey(Path path) {
+        // Targets may not exist yet, use the device of the nearest parent that does.
+        Path existing = path.toAbsolutePath().normalize();
+        while (true) {
+            try {
+                FileStore fileStore = Files.getFileStore(existing);
+                return fileStore.toString();
+            } catch (NoSuchFileException e) {
+                existing = existing.getParent();
+                if (existing == null) {
+                    throw new RuntimeException("FOXE-6058058696665212712 - Could not find the device of: " + path.toAbsolutePath(), e);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("FOXE-8422007141076710330 - Could not find the device of: " + path.toAbsolutePath(), e);
+            }
+        }
+    }
+
+    /**
+     * Limits the blocking work writing to a device. The work runs on the scheduler of the device it reads from and waits
+     * there for a permit of the device it writes to, which it holds until it is done.
+     */
+    public static final class DeviceLimit {
+
+        private static final DeviceLimit NONE = new DeviceLimit(null);
+
+        private final Semaphore permits;
+
+        private DeviceLimit(Semaphore permits) {
+            this.permits = permits;
+        }
+
+        /**
+         * @param work Blocking work subscribed to on a thread that may block.
+         */
+        public <T> Mono<T> limit(Mono<T> work) {
+            if (permits == null) {
+                return work;
+            }
+
+            return Mono.using(() -> {
+                try {
+                    permits.acquire();
+                    return permits;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("FOXE-8558957174968195343 - Interrupted waiting to write to the device.", e);
+                }
+            }, acquired -> work, Semaphore::release);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package ninja.foxyv.vsync;
+
+import ninja.foxyv.vsync.entities.CopiedFile;
+import ninja.foxyv.vsync.entities.CopyCounters;
+import ninja.foxyv.vsync.entities.FileEntry;
+import ninja.foxyv.vsync.react.fs.DirectoryWalker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a target directory in sync with a source directory by watching the source tree for changes. Events are merged
+ * over a debounce window and only the paths they name are synchronized, so a quiet tree costs nothing but a thread
+ * blocked on the watch service.
+ * <p>
+ * When the watch service overflows and events are lost, the directory the events were lost for is rescanned instead.
+ */
+public class WatchSynchronizer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchSynchronizer.class);
+
+    public static final Duration DEFAULT_DEBOUNCE = Duration.ofSeconds(2);
+
+    private final File src;
+    private final File target;
+    private final SyncSchedulers schedulers;
+    private final CopyCounters copyCounter;
+    private final SyncOptions options;
+    private Duration debounce = DEFAULT_DEBOUNCE;
+
+    private WatchSynchronizer(File src, File target, SyncSchedulers schedulers, CopyCounters copyCounter, SyncOptions options) {
+        this.src = src;
+        this.target = target;
+        this.schedulers = schedulers;
+        this.copyCounter = copyCounter;
+        this.options = options;
+    }
+
+    public static WatchSynchronizer of(File src, File target, SyncSchedulers schedulers, CopyCounters copyCounter, SyncOptions options) {
+        return new WatchSynchronizer(src, target, schedulers, copyCounter, options);
+    }
+
+    /**
+     * @param debounce How long the source has to be quiet before a batch of changes is synchronized.
+     */
+    public WatchSynchronizer withDebounce(Duration debounce) {
+        this.debounce = debounce;
+        return this;
+    }
+
+    /**
+     * Watch the source tree until the returned flux is cancelled, emitting each target file synchronized. The tree is
+     * registered with the watch service while subscribing, so subscribe from a thread that may block. Changes made before
+     * the flux is subscribed to are not seen, run a full sync first to catch up.
+     */
+    public Flux<CopiedFile> watch() {
+        return changes()
+                // Close a batch once no event has arrived for the debounce window.
+                .publish(shared -> shared.buffer(shared.sampleTimeout(path -> Mono.delay(debounce))))
+                .map(WatchSynchronizer::collapse)
+                // Batches are synchronized one after the other so a file is never copied by two batches at once.
+                .concatMap(batch -> ReactiveDirectorySynchronizer.synchronizePaths(src, target, batch, schedulers, copyCounter, options)
+                        .onErrorResume(e -> {
+                            // A failed batch must not stop the watch, the next change to the files retries them.
+                            LOG.error("FOXE-3983979389725794485 - Could not synchronize changed paths: " + batch, e);
+                            return Flux.empty();
+                        }));
+    }
+
+    /**
+     * The paths created, modified or deleted in the source tree. A directory is emitted when it is created or when
+     * events for it were lost, so it gets synchronized in full.
+     */
+    private Flux<Path> changes() {
+        return Flux.create(sink -> {
+            WatchService watchService;
+            try {
+                watchService = src.toPath().getFileSystem().newWatchService();
+            } catch (IOException e) {
+                sink.error(new RuntimeException("FOXE-1968056441244803358 - Could not watch directory: " + src.getAbsolutePath(), e));
+                return;
+            }
+
+            // Closing the watch service wakes the thread blocked in take.
+            sink.onDispose(() -> {
+                try {
+                    watchService.close();
+                } catch (IOException e) {
+                    LOG.warn("FOXE-1522510253292253410 - Could not close watch service for: " + src.getAbsolutePath(), e);
+                }
+            });
+
+            Map<WatchKey, Path> directories = new ConcurrentHashMap<>();
+            try {
+                registerTree(watchService, src.toPath(), directories);
+            } catch (RuntimeException e) {
+                sink.error(e);
+                return;
+            }
+
+            // The watch loop gets a thread of its own since it blocks for as long as the source is watched.
+            Thread watchThread = new Thread(() -> {
+                try {
+                    while (!sink.isCancelled()) {
+                        WatchKey key = watchService.take();
+                        Path directory = directories.get(key);
+                        if (directory != null) {
+                            handleEvents(watchService, key, directory, directories, sink);
+                        }
+
+                        if (!key.reset()) {
+                            // The directory was deleted or can no longer be watched.
+                            directories.remove(key);
+                        }
+                    }
+                } catch (ClosedWatchServiceException e) {
+                    // The flux was cancelled.
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    sink.error(e);
+                }
+            }, "vsync-watch-" + src.getName());
+            watchThread.setDaemon(true);
+            watchThread.start();
+        }, FluxSink.OverflowStrategy.BUFFER);
+    }
+
+    private void handleEvents(WatchService watchService, WatchKey key, Path directory, Map<WatchKey, Path> directories, FluxSink<Path> sink) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                LOG.warn("FOXE-8185201571923164420 - Watch events were lost, rescanning: " + directory.toAbsolutePath());
+                // Directories created while events were lost have to be registered as well.
+                registerTree(watchService, directory, directories);
+                sink.next(directory);
+                continue;
+            }
+
+            Path path = directory.resolve((Path) event.context());
+            if (Files.isDirectory(path)) {
+                if (event.kind() != StandardWatchEventKinds.ENTRY_CREATE) {
+                    // Some platforms report a directory as modified when its entries change, those changes are reported
+                    // by the watch on the directory itself.
+                    continue;
+                }
+                registerTree(watchService, path, directories);
+            }
+            sink.next(path);
+        }
+    }
+
+    private void registerTree(WatchService watchService, Path root, Map<WatchKey, Path> directories) {
+        register(watchService, root, directories);
+        DirectoryWalker.of(root)
+                .withMaxConcurrentReads(1)
+                .flux(schedulers.walk())
+                .filter(FileEntry::isDirectory)
+                .doOnNext(entry -> register(watchService, entry.path(), directories))
+                .blockLast();
+    }
+
+    private void register(WatchService watchService, Path directory, Map<WatchKey, Path> directories) {
+        try {
+            WatchKey key = directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            directories.put(key, directory);
+        } catch (IOException e) {
+            LOG.warn("FOXE-5960920144174291475 - Could not watch directory: " + directory.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Remove duplicate paths from a batch along with paths inside directories that are synchronized in full.
+     */
+    private static List<Path> collapse(Collection<Path> batch) {
+        Set<Path> unique = new LinkedHashSet<>(batch);
+        List<Path> collapsed = new ArrayList<>();
+        List<Path> directories = new ArrayList<>();
+        unique.stream()
+                .sorted(Comparator.comparingInt(Path::getNameCount))
+                .forEach(path -> {
+                    if (directories.stream().anyMatch(path::startsWith)) {
+                        return;
+                    }
+                    if (Files.isDirectory(path)) {
+                        directories.add(path);
+                    }
+                    collapsed.add(path);
+                });
+        return collapsed;
+    }
+}
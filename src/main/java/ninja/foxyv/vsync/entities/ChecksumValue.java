@@ -0,0 +1,30 @@
+package ninja.foxyv.vsync.entities;
+
+import java.util.zip.Checksum;
+
+/**
+ * An immutable checksum that only carries a previously calculated value. Used when a fingerprint is restored from a
+ * fingerprint index rather than calculated from the file contents.
+ */
+public record ChecksumValue(long value) implements Checksum {
+
+    @Override
+    public void update(int b) {
+        throw new UnsupportedOperationException("FOXE-1667137179639250447 - Stored checksum values cannot be updated.");
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        throw new UnsupportedOperationException("FOXE-1667137179639250447 - Stored checksum values cannot be updated.");
+    }
+
+    @Override
+    public long getValue() {
+        return value;
+    }
+
+    @Override
+    public void reset() {
+        throw new UnsupportedOperationException("FOXE-7690030657939069114 - Stored checksum values cannot be reset.");
+    }
+}
@@ -0,0 +1,11 @@
+package ninja.foxyv.vsync.entities;
+
+/**
+ * A file fingerprint made of primitives only, keyed by the hash of the path of the file rather than its name.
+ *
+ * @param pathHash The HashUtils.pathHash of the file.
+ * @param checksum The CRC32C of the contents.
+ * @param length   The number of bytes fingerprinted.
+ */
+public record CompactFingerprint(long pathHash, long checksum, long length) {
+}
@@ -0,0 +1,16 @@
+package ninja.foxyv.vsync.entities;
+
+import java.io.File;
+
+/**
+ * A target file produced by a sync along with the fingerprint of its contents.
+ *
+ * @param file        The target file.
+ * @param fingerprint The fingerprint of the contents, or null when the contents were not read during the sync.
+ */
+public record CopiedFile(File file, FileFingerprint fingerprint) {
+
+    public static CopiedFile unread(File file) {
+        return new CopiedFile(file, null);
+    }
+}
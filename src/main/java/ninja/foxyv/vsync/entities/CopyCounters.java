@@ -1,9 +1,70 @@
 package ninja.foxyv.vsync.entities;
 
-import java.util.concurrent.atomic.AtomicLong;
+import ninja.foxyv.vsync.metrics.SyncCounter;
+import ninja.foxyv.vsync.metrics.SyncMetrics;
+import ninja.foxyv.vsync.metrics.SyncOutcome;
 
+/**
+ * The counts of a sync, read from the SyncMetrics it records to. Every count is a view over the metrics, so it agrees
+ * with the outcomes recorded there: a file is copied once it was created, changed or deduplicated, and skipped when its
+ * metadata matched.
+ */
 public class CopyCounters {
-    public final AtomicLong fileCounter = new AtomicLong(0);
-    public final AtomicLong byteCounter = new AtomicLong(0);
-    public final AtomicLong filesHashed = new AtomicLong(0);
+
+    /**
+     * A count read from the metrics each time it is asked for.
+     */
+    @FunctionalInterface
+    public interface Count {
+        long get();
+    }
+
+    private final SyncMetrics metrics;
+    private volatile Recording recording;
+
+    public final Count fileCounter = () -> metrics().getFilesCopied();
+    public final Count byteCounter = () -> metrics().getBytesWritten();
+    public final Count filesHashed = () -> metrics().getFilesHashed();
+    public final Count filesSkipped = () -> metrics().outcomes(SyncOutcome.SKIPPED);
+    public final Count samplesDiffered = () -> metrics().getSamplesDiffered();
+    public final Count directoriesPruned = () -> metrics().getDirectoriesPruned();
+    public final Count matchedBytes = () -> metrics().counts(SyncCounter.BYTES_MATCHED);
+    public final Count literalBytes = () -> metrics().counts(SyncCounter.BYTES_LITERAL);
+    public final Count entriesRemoved = () -> metrics().getEntriesRemoved();
+    public final Count entriesMoved = () -> metrics().getEntriesMoved();
+    public final Count dedupBytes = () -> metrics().getBytesDeduplicated();
+
+    /**
+     * Counters keeping counts of their own, the metrics of the sync options still see everything counted.
+     */
+    public CopyCounters() {
+        this(SyncMetrics.create());
+    }
+
+    /**
+     * @param metrics The metrics the counts are read from.
+     */
+    public CopyCounters(SyncMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SyncMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @param optionsMetrics The metrics of the sync options.
+     * @return The metrics a sync counted by these counters records to.
+     */
+    public SyncMetrics recordingTo(SyncMetrics optionsMetrics) {
+        Recording current = recording;
+        if (current == null || current.optionsMetrics() != optionsMetrics) {
+            current = new Recording(optionsMetrics, optionsMetrics.alsoCounting(metrics));
+            recording = current;
+        }
+        return current.metrics();
+    }
+
+    private record Recording(SyncMetrics optionsMetrics, SyncMetrics metrics) {
+    }
 }
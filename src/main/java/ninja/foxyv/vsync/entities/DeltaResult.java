@@ -0,0 +1,13 @@
+package ninja.foxyv.vsync.entities;
+
+/**
+ * The outcome of rebuilding a file from the blocks of an older copy.
+ *
+ * @param fingerprint  The fingerprint of the rebuilt file.
+ * @param matchedBytes The bytes reused from the old copy.
+ * @param literalBytes The bytes that had to be written from the source.
+ * @param unchanged    True when the new version matched the old copy in place, nothing was written.
+ */
+public record DeltaResult(FileFingerprint fingerprint, long matchedBytes, long literalBytes, boolean unchanged) {
+
+}
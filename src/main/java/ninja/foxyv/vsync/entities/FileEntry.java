@@ -0,0 +1,36 @@
+package ninja.foxyv.vsync.entities;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * An entry found while walking a directory tree along with the attributes read for it during the walk, so later stages
+ * do not need to read them again.
+ *
+ * @param path       The path of the entry.
+ * @param attributes The attributes of the entry. Symbolic links are followed to the attributes of what they point to.
+ */
+public record FileEntry(Path path, BasicFileAttributes attributes) {
+
+    public long size() {
+        return attributes.size();
+    }
+
+    public FileTime lastModified() {
+        return attributes.lastModifiedTime();
+    }
+
+    public boolean isFile() {
+        return attributes.isRegularFile();
+    }
+
+    public boolean isDirectory() {
+        return attributes.isDirectory();
+    }
+
+    public File toFile() {
+        return path.toFile();
+    }
+}
@@ -2,6 +2,15 @@ package ninja.foxyv.vsync.entities;
 
 import java.util.zip.Checksum;
 
+/**
+ * The fingerprint of the contents of a file. The checksum is always kept as its final value, so a fingerprint never
+ * holds on to a checksum object and its buffers, or to one that could still be updated.
+ */
 public record FileFingerprint(String filename, Checksum checksum, long length) {
 
+    public FileFingerprint {
+        if (!(checksum instanceof ChecksumValue)) {
+            checksum = new ChecksumValue(checksum.getValue());
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package ninja.foxyv.vsync.entities;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Estimates the work remaining in a sync from the files discovered by the same walk that feeds the copy stage, so no
+ * separate pass is needed to count the files first. The estimate grows while the walk is still discovering files, until
+ * then the remaining work is a lower bound.
+ */
+public class ProgressEstimator {
+
+    private final AtomicLong filesDiscovered = new AtomicLong(0);
+    private final AtomicLong bytesDiscovered = new AtomicLong(0);
+    private final AtomicLong filesCompleted = new AtomicLong(0);
+    private final AtomicLong bytesCompleted = new AtomicLong(0);
+    private final long startNanos = System.nanoTime();
+
+    /**
+     * Count a file found by the walk.
+     */
+    public void discovered(FileEntry entry) {
+        discovered(entry.size());
+    }
+
+    /**
+     * Count a file of the given size, for work known before the walk, such as the files of a sync plan.
+     */
+    public void discovered(long size) {
+        filesDiscovered.getAndIncrement();
+        bytesDiscovered.addAndGet(size);
+    }
+
+    /**
+     * Count a discovered file that has been synchronized, whether it was copied, compared or skipped.
+     */
+    public void completed(FileEntry entry) {
+        completed(entry.size());
+    }
+
+    public void completed(long size) {
+        filesCompleted.getAndIncrement();
+        bytesCompleted.addAndGet(size);
+    }
+
+    public long filesDiscovered() {
+        return filesDiscovered.get();
+    }
+
+    public long bytesDiscovered() {
+        return bytesDiscovered.get();
+    }
+
+    public long remainingFiles() {
+        return Math.max(0, filesDiscovered.get() - filesCompleted.get());
+    }
+
+    public long remainingBytes() {
+        return Math.max(0, bytesDiscovered.get() - bytesCompleted.get());
+    }
+
+    /**
+     * @return The time left to synchronize the files discovered so far at the rate bytes have been completed, or null
+     * before any bytes have been completed.
+     */
+    public Duration estimatedTimeRemaining() {
+        long completed = bytesCompleted.get();
+        long elapsed = System.nanoTime() - startNanos;
+        if (completed == 0 || elapsed <= 0) {
+            return null;
+        }
+
+        return Duration.ofNanos((long) (remainingBytes() * ((double) elapsed / completed)));
+    }
+}
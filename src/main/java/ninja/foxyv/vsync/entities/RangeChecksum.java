@@ -0,0 +1,12 @@
+package ninja.foxyv.vsync.entities;
+
+/**
+ * The CRC32C of one range of a file.
+ *
+ * @param offset   The position of the first byte of the range.
+ * @param length   The number of bytes in the range.
+ * @param checksum The CRC32C of the bytes in the range.
+ */
+public record RangeChecksum(long offset, long length, long checksum) {
+
+}
@@ -0,0 +1,30 @@
+package ninja.foxyv.vsync.entities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The fingerprint of a file that was hashed in fixed size ranges, along with the checksum of each range so two copies
+ * that differ can be narrowed down to the ranges that changed.
+ *
+ * @param fingerprint The fingerprint of the whole file, the same as hashing the file from start to end.
+ * @param ranges      The checksum of each range in file order.
+ */
+public record RangedFingerprint(FileFingerprint fingerprint, List<RangeChecksum> ranges) {
+
+    /**
+     * @param other The fingerprint of another copy of the file, hashed with the same range size.
+     * @return The ranges of this file whose checksum differs from the same range of the other file, including ranges the
+     * other file is too short to have.
+     */
+    public List<RangeChecksum> differingRanges(RangedFingerprint other) {
+        List<RangeChecksum> differing = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); i++) {
+            RangeChecksum range = ranges.get(i);
+            if (i >= other.ranges().size() || !range.equals(other.ranges().get(i))) {
+                differing.add(range);
+            }
+        }
+        return differing;
+    }
+}
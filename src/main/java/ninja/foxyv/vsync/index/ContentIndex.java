@@ -0,0 +1,240 @@
+package ninja.foxyv.vsync.index;
+
+import ninja.foxyv.vsync.entities.FileFingerprint;
+import ninja.foxyv.vsync.utils.MetadataUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.CRC32C;
+
+/**
+ * The target files of a sync keyed by their contents, so a source file whose contents are already on the target can be
+ * cloned from the target copy instead of written from the source again.
+ * <p>
+ * Files are keyed by the CRC32C and length the fingerprint index records for them, so nothing is read to record or to
+ * find a file. A recorded target is only returned while the fingerprint index still holds the same fingerprint for it,
+ * which it only does while the size, time and file key of the target are unchanged. A checksum does not prove the
+ * contents are the same, a target found has to be compared with the source before it is reused.
+ * <p>
+ * The index is an append only log of the targets recorded, replayed into a table on the heap when it is opened, so it
+ * costs memory in proportion to the files recorded. A record torn by a crash is cut off.
+ */
+public class ContentIndex implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentIndex.class);
+
+    private final Path indexFile;
+    private final FileChannel channel;
+    private final Map<Content, List<Path>> byContent = new HashMap<>();
+    private final Map<Path, Content> byPath = new HashMap<>();
+
+    private ContentIndex(Path indexFile, FileChannel channel) {
+        this.indexFile = indexFile;
+        this.channel = channel;
+    }
+
+    /**
+     * Open the content index stored in the file, creating an empty index if the file does not exist.
+     *
+     * @param indexFile The file the index is stored in.
+     * @return The opened index. It must be closed.
+     */
+    public static ContentIndex open(Path indexFile) {
+        try {
+            FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            ContentIndex index = new ContentIndex(indexFile, channel);
+            try {
+                index.replay();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            return index;
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-1627573103461885033 - Could not open content index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Record a target file holding contents a later source file may share, replacing what was recorded for the path.
+     * Nothing is written when the same contents are already recorded for the path.
+     *
+     * @param targetFile  The target file.
+     * @param fingerprint The fingerprint recorded for the target file in the fingerprint index.
+     */
+    public synchronized void record(Path targetFile, FileFingerprint fingerprint) {
+        Path path = targetFile.toAbsolutePath().normalize();
+        Content content = new Content(fingerprint.checksum().getValue(), fingerprint.length());
+        if (content.equals(byPath.get(path))) {
+            return;
+        }
+
+        append(path, content);
+        put(path, content);
+    }
+
+    /**
+     * Find a target file likely to hold the same contents as the source, reading nothing but the attributes of the
+     * candidates.
+     *
+     * @param fingerprint      The fingerprint of the source.
+     * @param fingerprintIndex The fingerprint index the targets were fingerprinted in.
+     * @return A target file whose current fingerprint is the fingerprint passed.
+     */
+    public Optional<Path> find(FileFingerprint fingerprint, FingerprintIndex fingerprintIndex) {
+        Content content = new Content(fingerprint.checksum().getValue(), fingerprint.length());
+        List<Path> candidates;
+        synchronized (this) {
+            candidates = List.copyOf(byContent.getOrDefault(content, List.of()));
+        }
+
+        for (Path candidate : candidates) {
+            boolean current = MetadataUtils.readAttributes(candidate)
+                    .flatMap(attributes -> fingerprintIndex.lookup(candidate, attributes))
+                    .filter(recorded -> recorded.checksum().getValue() == content.checksum && recorded.length() == content.length)
+                    .isPresent();
+            if (current) {
+                return Optional.of(candidate);
+            }
+
+            // Changed or removed since it was recorded, its new contents are recorded again when it is synchronized.
+            synchronized (this) {
+                if (content.equals(byPath.get(candidate))) {
+                    remove(candidate, content);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * @return The number of target files recorded.
+     */
+    public synchronized long size() {
+        return byPath.size();
+    }
+
+    /**
+     * Force the index to the storage device.
+     */
+    public synchronized void flush() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-1740768021246713879 - Could not flush content index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-6115609514758308138 - Could not close content index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    private void append(Path path, Content content) {
+        byte[] name = path.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(Long.BYTES * 2 + Integer.BYTES * 2 + name.length);
+        record.putLong(content.checksum).putLong(content.length).putInt(name.length).put(name);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        try {
+            long position = channel.size();
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-6936953794873304733 - Could not write content index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    private void replay() throws IOException {
+        long records = 0;
+        long position = 0;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel.position(0)), 1024 * 64));
+        CRC32C crc = new CRC32C();
+        try {
+            while (true) {
+                long checksum = input.readLong();
+                long length = input.readLong();
+                int nameLength = input.readInt();
+                if (nameLength < 0 || position + Long.BYTES * 2 + Integer.BYTES * 2 + nameLength > channel.size()) {
+                    break;
+                }
+                byte[] name = new byte[nameLength];
+                input.readFully(name);
+                int recordedCrc = input.readInt();
+
+                ByteBuffer record = ByteBuffer.allocate(Long.BYTES * 2 + Integer.BYTES + nameLength);
+                record.putLong(checksum).putLong(length).putInt(nameLength).put(name);
+                crc.reset();
+                crc.update(record.array());
+                if (recordedCrc != (int) crc.getValue()) {
+                    LOG.warn("FOXE-3376436200907976088 - Cutting off a torn record at: " + position + " of content index: " + indexFile.toAbsolutePath());
+                    break;
+                }
+
+                put(Path.of(new String(name, StandardCharsets.UTF_8)), new Content(checksum, length));
+                position += record.capacity() + Integer.BYTES;
+                records++;
+            }
+        } catch (EOFException e) {
+            // The end of the index, or a record only partly written when the sync died.
+        }
+
+        if (position < channel.size()) {
+            channel.truncate(position);
+        }
+
+        // Targets recorded again as they change leave their old records behind. The index only saves reads, so it is
+        // rewritten in place rather than through a copy that would need twice the space.
+        if (records > byPath.size() * 2L + 1024) {
+            channel.truncate(0);
+            byPath.forEach(this::append);
+            channel.force(false);
+        }
+    }
+
+    private void put(Path path, Content content) {
+        Content previous = byPath.put(path, content);
+        if (previous != null) {
+            remove(path, previous);
+            byPath.put(path, content);
+        }
+        byContent.computeIfAbsent(content, key -> new ArrayList<>(1)).add(path);
+    }
+
+    private void remove(Path path, Content content) {
+        List<Path> paths = byContent.get(content);
+        if (paths != null) {
+            paths.remove(path);
+            if (paths.isEmpty()) {
+                byContent.remove(content);
+            }
+        }
+        byPath.remove(path, content);
+    }
+
+    private record Content(long checksum, long length) {
+    }
+}
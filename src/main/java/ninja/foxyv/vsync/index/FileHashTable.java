@@ -0,0 +1,262 @@
+package ninja.foxyv.vsync.index;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import static ninja.foxyv.vsync.utils.HashUtils.mix64;
+
+/**
+ * An open addressing hash table of fixed size slots that lives in a file. Each slot holds a non-zero 64-bit key followed
+ * by a fixed number of 64-bit values. Slots are accessed with positional reads and writes so only the header is ever
+ * held on the heap, letting the table hold millions of entries. Memory mapping was avoided on purpose: a mapped file
+ * can not be replaced on Windows until the mapping is garbage collected, which breaks growing the table.
+ */
+class FileHashTable implements Closeable {
+
+    private static final int MAGIC = 0x56534958;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final long MIN_CAPACITY = 1 << 16;
+    private static final double MAX_LOAD_FACTOR = 0.6;
+
+    // Number of slots read with each positional read while probing. Most lookups end within the first run.
+    private static final int PROBE_RUN = 8;
+    private static final int SCAN_RUN = 8192;
+
+    private final Path file;
+    private final int valueCount;
+    private final int slotSize;
+    private final ByteBuffer probeBuffer;
+    private final ByteBuffer slotBuffer;
+    private FileChannel channel;
+    private long capacity;
+    private long size;
+
+    interface SlotVisitor {
+        void visit(long key, long[] values);
+    }
+
+    private FileHashTable(Path file, int valueCount) {
+        this.file = file;
+        this.valueCount = valueCount;
+        this.slotSize = Long.BYTES * (valueCount + 1);
+        this.probeBuffer = ByteBuffer.allocate(slotSize * PROBE_RUN);
+        this.slotBuffer = ByteBuffer.allocate(slotSize);
+    }
+
+    /**
+     * Open the table stored in the file, creating it if it does not exist yet.
+     *
+     * @param file       The file the table lives in.
+     * @param valueCount The number of 64-bit values stored with each key.
+     * @return The opened table.
+     */
+    static FileHashTable open(Path file, int valueCount) throws IOException {
+        if (Files.exists(file) && Files.size(file) >= HEADER_SIZE) {
+            FileHashTable table = new FileHashTable(file, valueCount);
+            table.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            table.readHeader();
+            return table;
+        }
+
+        return create(file, valueCount, MIN_CAPACITY);
+    }
+
+    private static FileHashTable create(Path file, int valueCount, long capacity) throws IOException {
+        FileHashTable table = new FileHashTable(file, valueCount);
+        table.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        table.capacity = capacity;
+        table.size = 0;
+
+        // Extend the file to its full length, unwritten regions read back as zeros which are empty slots.
+        table.channel.write(ByteBuffer.allocate(1), HEADER_SIZE + capacity * table.slotSize - 1);
+        table.writeHeader(true);
+        return table;
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Find the values stored for the key.
+     *
+     * @param key    The non-zero key to find.
+     * @param values An array of at least valueCount longs to copy the values in to.
+     * @return True when the key was found and the values were copied.
+     */
+    synchronized boolean get(long key, long[] values) throws IOException {
+        findSlot(key);
+        if (probeBuffer.getLong(0) != key) {
+            return false;
+        }
+
+        for (int i = 0; i < valueCount; i++) {
+            values[i] = probeBuffer.getLong(Long.BYTES * (i + 1));
+        }
+        return true;
+    }
+
+    /**
+     * Store the values for the key, replacing any values already stored.
+     */
+    synchronized void put(long key, long... values) throws IOException {
+        if (key == 0) {
+            throw new IllegalArgumentException("FOXE-3426431113393546803 - Zero is reserved for empty slots.");
+        }
+
+        long slot = findSlot(key);
+        boolean isNew = probeBuffer.getLong(0) != key;
+
+        slotBuffer.clear();
+        slotBuffer.putLong(key);
+        for (int i = 0; i < valueCount; i++) {
+            slotBuffer.putLong(values[i]);
+        }
+        slotBuffer.flip();
+        writeFully(slotBuffer, slotPosition(slot));
+
+        if (isNew && ++size > capacity * MAX_LOAD_FACTOR) {
+            grow();
+        }
+    }
+
+    /**
+     * Visit every occupied slot in the table in storage order.
+     */
+    synchronized void scan(SlotVisitor visitor) throws IOException {
+        ByteBuffer run = ByteBuffer.allocate(slotSize * SCAN_RUN);
+        long[] values = new long[valueCount];
+        for (long slot = 0; slot < capacity; slot += SCAN_RUN) {
+            int slots = (int) Math.min(SCAN_RUN, capacity - slot);
+            run.clear().limit(slots * slotSize);
+            readFully(run, slotPosition(slot));
+            for (int i = 0; i < slots; i++) {
+                long key = run.getLong(i * slotSize);
+                if (key != 0) {
+                    for (int v = 0; v < valueCount; v++) {
+                        values[v] = run.getLong(i * slotSize + Long.BYTES * (v + 1));
+                    }
+                    visitor.visit(key, values);
+                }
+            }
+        }
+    }
+
+    /**
+     * Persist the header and force the contents of the table to the storage device.
+     */
+    synchronized void flush() throws IOException {
+        writeHeader(true);
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+
+        writeHeader(false);
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Linear probe for the slot holding the key or the empty slot where it belongs. On return the first slot of the probe
+     * buffer holds the contents of the returned slot.
+     */
+    private long findSlot(long key) throws IOException {
+        long mask = capacity - 1;
+        long slot = mix64(key) & mask;
+        while (true) {
+            int slots = (int) Math.min(PROBE_RUN, capacity - slot);
+            probeBuffer.clear().limit(slots * slotSize);
+            readFully(probeBuffer, slotPosition(slot));
+            for (int i = 0; i < slots; i++) {
+                long slotKey = probeBuffer.getLong(i * slotSize);
+                if (slotKey == 0 || slotKey == key) {
+                    if (i > 0) {
+                        // Move the found slot to the start of the buffer for the caller.
+                        probeBuffer.put(0, probeBuffer, i * slotSize, slotSize);
+                    }
+                    return slot + i;
+                }
+            }
+            slot = (slot + slots) & mask;
+        }
+    }
+
+    private void grow() throws IOException {
+        Path growFile = file.resolveSibling(file.getFileName() + ".grow");
+        try (FileHashTable bigger = create(growFile, valueCount, capacity * 2)) {
+            scan((key, values) -> {
+                try {
+                    bigger.put(key, values);
+                } catch (IOException e) {
+                    throw new RuntimeException("FOXE-4111963486723052269 - Could not copy slot while growing hash table: " + growFile, e);
+                }
+            });
+        }
+
+        channel.close();
+        Files.move(growFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        readHeader();
+    }
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != valueCount) {
+            throw new IOException("FOXE-3022306607692725744 - Not a compatible hash table file: " + file);
+        }
+
+        capacity = header.getLong(16);
+        size = header.getLong(24);
+
+        // The table was not closed cleanly so the stored size can not be trusted.
+        if (header.getInt(12) != 0) {
+            long[] count = new long[1];
+            scan((key, values) -> count[0]++);
+            size = count[0];
+        }
+
+        writeHeader(true);
+    }
+
+    private void writeHeader(boolean dirty) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(valueCount).putInt(dirty ? 1 : 0)
+                .putLong(capacity).putLong(size);
+        header.clear();
+        writeFully(header, 0);
+    }
+
+    private long slotPosition(long slot) {
+        return HEADER_SIZE + slot * slotSize;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("FOXE-4789475727114572623 - Unexpected end of hash table file: " + file);
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
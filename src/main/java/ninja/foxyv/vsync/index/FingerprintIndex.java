@@ -0,0 +1,150 @@
+package ninja.foxyv.vsync.index;
+
+import ninja.foxyv.vsync.entities.ChecksumValue;
+import ninja.foxyv.vsync.entities.FileFingerprint;
+import ninja.foxyv.vsync.utils.HashUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent index of file fingerprints keyed by the absolute path of the file. Each entry remembers the size, last
+ * modified time and file key the file had when it was fingerprinted, so a file whose metadata still matches does not
+ * need to be read again. The index is stored on disk and is never loaded onto the heap.
+ */
+public class FingerprintIndex implements Closeable {
+
+    private static final int SIZE = 0;
+    private static final int LAST_MODIFIED = 1;
+    private static final int FILE_KEY = 2;
+    private static final int CHECKSUM = 3;
+    private static final int VALUE_COUNT = 4;
+
+    private final Path indexFile;
+    private final FileHashTable table;
+
+    private FingerprintIndex(Path indexFile, FileHashTable table) {
+        this.indexFile = indexFile;
+        this.table = table;
+    }
+
+    /**
+     * Open the fingerprint index stored in the file, creating an empty index if the file does not exist.
+     *
+     * @param indexFile The file the index is stored in.
+     * @return The opened index. It must be closed to persist the index cleanly.
+     */
+    public static FingerprintIndex open(Path indexFile) {
+        try {
+            return new FingerprintIndex(indexFile, FileHashTable.open(indexFile, VALUE_COUNT));
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-6752670520875241498 - Could not open fingerprint index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Find the fingerprint recorded for the file when the recorded metadata still matches the passed attributes.
+     *
+     * @param path       The file to find the fingerprint for.
+     * @param attributes The current attributes of the file.
+     * @return The recorded fingerprint or empty when the file was never recorded or has changed since.
+     */
+    public Optional<FileFingerprint> lookup(Path path, BasicFileAttributes attributes) {
+        long[] values = new long[VALUE_COUNT];
+        try {
+            if (!table.get(HashUtils.pathHash(path), values)) {
+                return Optional.empty();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-5757387119247039390 - Could not read fingerprint index: " + indexFile.toAbsolutePath(), e);
+        }
+
+        if (values[SIZE] != attributes.size()
+                || values[LAST_MODIFIED] != attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                || values[FILE_KEY] != fileKeyHash(attributes)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(new FileFingerprint(path.getFileName().toString(), new ChecksumValue(values[CHECKSUM]), values[SIZE]));
+    }
+
+    /**
+     * Find the fingerprint recorded at the path a file had before it was renamed or moved. The file must have the file
+     * key, size and last modified time recorded there, so nothing is found on platforms without file keys.
+     *
+     * @param formerPath The path the file may have had when it was recorded.
+     * @param attributes The current attributes of the file at its new path.
+     * @return The fingerprint recorded for the same file at its former path.
+     */
+    public Optional<FileFingerprint> lookupMoved(Path formerPath, BasicFileAttributes attributes) {
+        return fileKeyHash(attributes) == 0 ? Optional.empty() : lookup(formerPath, attributes);
+    }
+
+    /**
+     * Check whether the file at the path has been replaced by a different file since it was recorded, for example by a
+     * restore or a move over the top of it that kept the size and time.
+     *
+     * @return True only when the file was recorded with a different file key.
+     */
+    public boolean isReplaced(Path path, BasicFileAttributes attributes) {
+        long[] values = new long[VALUE_COUNT];
+        try {
+            return table.get(HashUtils.pathHash(path), values) && values[FILE_KEY] != fileKeyHash(attributes);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-5757387119247039390 - Could not read fingerprint index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Record the fingerprint of the file along with the attributes it had before it was read.
+     *
+     * @param path        The file that was fingerprinted.
+     * @param attributes  The attributes read before the file contents were read.
+     * @param fingerprint The calculated fingerprint.
+     */
+    public void record(Path path, BasicFileAttributes attributes, FileFingerprint fingerprint) {
+        try {
+            table.put(HashUtils.pathHash(path),
+                    attributes.size(),
+                    attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    fileKeyHash(attributes),
+                    fingerprint.checksum().getValue());
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-5369955495602176450 - Could not write fingerprint index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    public long size() {
+        return table.size();
+    }
+
+    /**
+     * Force the index to the storage device so a crash does not lose the fingerprints recorded so far.
+     */
+    public void flush() {
+        try {
+            table.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-6051820689164670036 - Could not flush fingerprint index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            table.close();
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-5576410922558503549 - Could not close fingerprint index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    private static long fileKeyHash(BasicFileAttributes attributes) {
+        // File keys are not available on every platform (Windows), in which case only the size and time are compared.
+        Object fileKey = attributes.fileKey();
+        return fileKey == null ? 0 : HashUtils.hash64(fileKey.toString());
+    }
+}
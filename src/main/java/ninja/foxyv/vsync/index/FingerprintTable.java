@@ -0,0 +1,199 @@
+package ninja.foxyv.vsync.index;
+
+import ninja.foxyv.vsync.entities.CompactFingerprint;
+import ninja.foxyv.vsync.entities.FileFingerprint;
+import ninja.foxyv.vsync.utils.FileChannelUtils;
+import ninja.foxyv.vsync.utils.HashUtils;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import static ninja.foxyv.vsync.utils.HashUtils.mix64;
+
+/**
+ * An open addressing hash table of file fingerprints keyed by the hash of the file path, held in direct memory outside
+ * the Java heap. Each slot is three longs: the path hash, the checksum and the length. At the highest load factor a
+ * file costs 32 bytes and nothing for the garbage collector to trace, so the fingerprints of a tree of tens of millions
+ * of files fit in a few hundred megabytes.
+ * <p>
+ * Slots are spread over segments of direct memory since a single buffer can not be larger than two gigabytes. The memory
+ * is freed when the table is closed.
+ */
+public class FingerprintTable implements Closeable {
+
+    private static final int SLOT_SIZE = Long.BYTES * 3;
+    private static final int CHECKSUM = Long.BYTES;
+    private static final int LENGTH = Long.BYTES * 2;
+    private static final long MIN_CAPACITY = 1 << 10;
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    // 4m slots, 96mb, per segment.
+    private static final int SEGMENT_SHIFT = 22;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private ByteBuffer[] segments;
+    private long capacity;
+    private long size;
+
+    private FingerprintTable(long capacity) {
+        allocate(capacity);
+    }
+
+    /**
+     * @param expectedFiles The number of files the table is sized for up front, it grows past them when needed.
+     */
+    public static FingerprintTable create(long expectedFiles) {
+        long capacity = MIN_CAPACITY;
+        while (capacity * MAX_LOAD_FACTOR < expectedFiles) {
+            capacity <<= 1;
+        }
+        return new FingerprintTable(capacity);
+    }
+
+    public void put(Path path, FileFingerprint fingerprint) {
+        put(HashUtils.pathHash(path), fingerprint.checksum().getValue(), fingerprint.length());
+    }
+
+    /**
+     * Record the fingerprint of a file, replacing the one recorded for the same path.
+     *
+     * @param pathHash The HashUtils.pathHash of the file, never zero.
+     */
+    public synchronized void put(long pathHash, long checksum, long length) {
+        checkOpen();
+        if ((size + 1) > capacity * MAX_LOAD_FACTOR) {
+            grow();
+        }
+
+        long slot = probe(pathHash);
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        if (segment.getLong(offset) == 0) {
+            segment.putLong(offset, pathHash);
+            size++;
+        }
+        segment.putLong(offset + CHECKSUM, checksum);
+        segment.putLong(offset + LENGTH, length);
+    }
+
+    public Optional<CompactFingerprint> lookup(Path path) {
+        return lookup(HashUtils.pathHash(path));
+    }
+
+    public synchronized Optional<CompactFingerprint> lookup(long pathHash) {
+        checkOpen();
+        long slot = probe(pathHash);
+        ByteBuffer segment = segment(slot);
+        int offset = offset(slot);
+        if (segment.getLong(offset) == 0) {
+            return Optional.empty();
+        }
+        return Optional.of(new CompactFingerprint(pathHash, segment.getLong(offset + CHECKSUM), segment.getLong(offset + LENGTH)));
+    }
+
+    /**
+     * Visit every fingerprint in the table, in no particular order.
+     */
+    public synchronized void forEach(Consumer<CompactFingerprint> visitor) {
+        checkOpen();
+        for (long slot = 0; slot < capacity; slot++) {
+            ByteBuffer segment = segment(slot);
+            int offset = offset(slot);
+            long key = segment.getLong(offset);
+            if (key != 0) {
+                visitor.accept(new CompactFingerprint(key, segment.getLong(offset + CHECKSUM), segment.getLong(offset + LENGTH)));
+            }
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return The bytes of direct memory held by the table.
+     */
+    public synchronized long memoryUsed() {
+        return capacity * SLOT_SIZE;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (segments == null) {
+            return;
+        }
+        free(segments);
+        segments = null;
+    }
+
+    /**
+     * @return The slot holding the key, or the empty slot it would be put in.
+     */
+    private long probe(long key) {
+        long mask = capacity - 1;
+        long slot = mix64(key) & mask;
+        while (true) {
+            long found = segment(slot).getLong(offset(slot));
+            if (found == 0 || found == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private ByteBuffer segment(long slot) {
+        return segments[(int) (slot >>> SEGMENT_SHIFT)];
+    }
+
+    private static int offset(long slot) {
+        return (int) (slot & SEGMENT_MASK) * SLOT_SIZE;
+    }
+
+    private void allocate(long capacity) {
+        long segmentSlots = Math.min(capacity, 1L << SEGMENT_SHIFT);
+        ByteBuffer[] allocated = new ByteBuffer[(int) (capacity / segmentSlots)];
+        for (int i = 0; i < allocated.length; i++) {
+            // Direct buffers start zeroed, which marks every slot empty.
+            allocated[i] = ByteBuffer.allocateDirect((int) (segmentSlots * SLOT_SIZE));
+        }
+        this.segments = allocated;
+        this.capacity = capacity;
+        this.size = 0;
+    }
+
+    private void grow() {
+        ByteBuffer[] oldSegments = segments;
+        long oldCapacity = capacity;
+        allocate(capacity * 2);
+        for (long slot = 0; slot < oldCapacity; slot++) {
+            ByteBuffer segment = oldSegments[(int) (slot >>> SEGMENT_SHIFT)];
+            int offset = offset(slot);
+            long key = segment.getLong(offset);
+            if (key != 0) {
+                long newSlot = probe(key);
+                ByteBuffer newSegment = segment(newSlot);
+                int newOffset = offset(newSlot);
+                newSegment.putLong(newOffset, key);
+                newSegment.putLong(newOffset + CHECKSUM, segment.getLong(offset + CHECKSUM));
+                newSegment.putLong(newOffset + LENGTH, segment.getLong(offset + LENGTH));
+                size++;
+            }
+        }
+        free(oldSegments);
+    }
+
+    private void checkOpen() {
+        if (segments == null) {
+            throw new IllegalStateException("FOXE-2143837498663495462 - The fingerprint table has been closed.");
+        }
+    }
+
+    private static void free(ByteBuffer[] segments) {
+        for (ByteBuffer segment : segments) {
+            FileChannelUtils.freeDirectBuffer(segment);
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package ninja.foxyv.vsync.index;
+
+import ninja.foxyv.vsync.entities.DirectoryFingerprint;
+import ninja.foxyv.vsync.entities.SHA256Hash;
+import ninja.foxyv.vsync.utils.HashUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent Merkle tree of directory fingerprints keyed by the absolute path of the directory. Each node remembers
+ * the last modified time the directory had when it was fingerprinted, along with a hash of the name, size and time of
+ * every entry in it. Adding, removing or renaming an entry changes the time of a directory, so a node is only returned
+ * while the listing of its directory is unchanged. Changes to the contents of files do not touch the directory, they
+ * are only caught by the listing hash, and changes further down the tree touch neither. A node can only be trusted for
+ * its whole subtree once the nodes of every directory below it are current too.
+ */
+public class MerkleIndex implements Closeable {
+
+    private static final int HASH = 0;
+    private static final int HASH_LONGS = 4;
+    private static final int LAST_MODIFIED = 4;
+    private static final int LISTING = 5;
+    private static final int VALUE_COUNT = 6;
+
+    private final Path indexFile;
+    private final FileHashTable table;
+
+    private MerkleIndex(Path indexFile, FileHashTable table) {
+        this.indexFile = indexFile;
+        this.table = table;
+    }
+
+    /**
+     * Open the Merkle index stored in the file, creating an empty index if the file does not exist.
+     *
+     * @param indexFile The file the index is stored in.
+     * @return The opened index. It must be closed to persist the index cleanly.
+     */
+    public static MerkleIndex open(Path indexFile) {
+        try {
+            return new MerkleIndex(indexFile, FileHashTable.open(indexFile, VALUE_COUNT));
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-3548061742091790245 - Could not open merkle index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Find the fingerprint recorded for the directory when its last modified time still matches.
+     *
+     * @param directory  The directory to find the fingerprint for.
+     * @param attributes The current attributes of the directory.
+     * @return The recorded fingerprint or empty when the directory was never recorded or its listing has changed since.
+     */
+    public Optional<DirectoryFingerprint> lookup(Path directory, BasicFileAttributes attributes) {
+        return lookup(directory, attributes, OptionalLong.empty());
+    }
+
+    /**
+     * Find the fingerprint recorded for the directory when its last modified time and the metadata of its entries still
+     * match, so files modified in place in the directory are noticed as well.
+     *
+     * @param directory  The directory to find the fingerprint for.
+     * @param attributes The current attributes of the directory.
+     * @param listing    The current listing hash of the directory, see listingHash.
+     * @return The recorded fingerprint or empty when the directory was never recorded or an entry has changed since.
+     */
+    public Optional<DirectoryFingerprint> lookup(Path directory, BasicFileAttributes attributes, long listing) {
+        return lookup(directory, attributes, OptionalLong.of(listing));
+    }
+
+    private Optional<DirectoryFingerprint> lookup(Path directory, BasicFileAttributes attributes, OptionalLong listing) {
+        long[] values = new long[VALUE_COUNT];
+        try {
+            if (!table.get(HashUtils.pathHash(directory), values)) {
+                return Optional.empty();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-181119739032355052 - Could not read merkle index: " + indexFile.toAbsolutePath(), e);
+        }
+
+        if (values[LAST_MODIFIED] != attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)
+                || (listing.isPresent() && values[LISTING] != listing.getAsLong())) {
+            return Optional.empty();
+        }
+
+        ByteBuffer hash = ByteBuffer.allocate(HASH_LONGS * Long.BYTES);
+        for (int i = 0; i < HASH_LONGS; i++) {
+            hash.putLong(values[HASH + i]);
+        }
+        Path name = directory.getFileName();
+        return Optional.of(new DirectoryFingerprint(name == null ? directory.toString() : name.toString(), new SHA256Hash(hash.array())));
+    }
+
+    /**
+     * Record the fingerprint of the directory along with the attributes it had before it was listed.
+     *
+     * @param directory   The directory that was fingerprinted.
+     * @param attributes  The attributes read before the directory was listed.
+     * @param listing     The listing hash of the directory taken before its entries were fingerprinted.
+     * @param fingerprint The fingerprint of the directory.
+     */
+    public void record(Path directory, BasicFileAttributes attributes, long listing, DirectoryFingerprint fingerprint) {
+        ByteBuffer hash = ByteBuffer.wrap(fingerprint.hash().value());
+        long[] values = new long[VALUE_COUNT];
+        for (int i = 0; i < HASH_LONGS; i++) {
+            values[HASH + i] = hash.getLong();
+        }
+        values[LAST_MODIFIED] = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        values[LISTING] = listing;
+
+        try {
+            table.put(HashUtils.pathHash(directory), values);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-2071180420051653246 - Could not write merkle index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Hash one entry of a directory listing. The listing hash of a directory is the sum of the hashes of its entries, so
+     * it does not depend on the order the entries were listed in.
+     *
+     * @param name       The name of the entry.
+     * @param attributes The attributes of the entry, not following links.
+     */
+    public static long entryHash(String name, BasicFileAttributes attributes) {
+        long hash = HashUtils.hash64(name);
+        hash = HashUtils.mix64(hash ^ (attributes.isDirectory() ? 1 : attributes.isRegularFile() ? 2 : 3));
+        hash = HashUtils.mix64(hash ^ attributes.size());
+        return HashUtils.mix64(hash ^ attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+    }
+
+    public long size() {
+        return table.size();
+    }
+
+    /**
+     * Force the index to the storage device so a crash does not lose the nodes recorded so far.
+     */
+    public void flush() {
+        try {
+            table.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-8361152012381797747 - Could not flush merkle index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            table.close();
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-2920579030428481910 - Could not close merkle index: " + indexFile.toAbsolutePath(), e);
+        }
+    }
+}
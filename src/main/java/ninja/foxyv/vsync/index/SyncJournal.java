@@ -0,0 +1,291 @@
+package ninja.foxyv.vsync.index;
+
+import ninja.foxyv.vsync.utils.HashUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+import static ninja.foxyv.vsync.utils.HashUtils.mix64;
+
+/**
+ * An append only journal of the work a sync has finished, so a sync that died can be restarted without checking again
+ * what it already did. A DONE record is appended when a source file has been synchronized, a PARTIAL record each time a
+ * large copy has forced another checkpoint of its temporary file to the storage device. Records are keyed by the path of
+ * the source file and hold its size and last modified time, a record no longer applies once the source has changed.
+ * <p>
+ * The journal is replayed into a table on the heap when it is opened, so opening it costs time and memory in proportion
+ * to the work finished rather than to the tree. A record torn by a crash is cut off. Clear the journal once a sync has
+ * finished, or the next sync will skip everything this one did.
+ */
+public class SyncJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SyncJournal.class);
+
+    // Force a large copy to the device and journal its progress every 64mb.
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1024 * 1024 * 64;
+
+    private static final byte DONE = 1;
+    private static final byte PARTIAL = 2;
+    // type, path hash, size, last modified, offset and a CRC32C of the rest.
+    private static final int RECORD_SIZE = 1 + Long.BYTES * 4 + Integer.BYTES;
+    private static final long DONE_OFFSET = -1;
+    private static final int MIN_CAPACITY = 1 << 10;
+
+    private final Path journalFile;
+    private final FileChannel channel;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private long checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+    // Open addressing table of the latest record for each path, a zero key marks an empty slot.
+    private long[] keys = new long[MIN_CAPACITY];
+    private long[] sizes = new long[MIN_CAPACITY];
+    private long[] lastModified = new long[MIN_CAPACITY];
+    private long[] offsets = new long[MIN_CAPACITY];
+    private int entries;
+    private long done;
+
+    private SyncJournal(Path journalFile, FileChannel channel) {
+        this.journalFile = journalFile;
+        this.channel = channel;
+    }
+
+    /**
+     * Open the journal stored in the file, creating an empty journal if the file does not exist.
+     *
+     * @param journalFile The file the journal is stored in.
+     * @return The opened journal. It must be closed.
+     */
+    public static SyncJournal open(Path journalFile) {
+        try {
+            FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            SyncJournal journal = new SyncJournal(journalFile, channel);
+            try {
+                journal.replay();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            return journal;
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-2693415395259811545 - Could not open sync journal: " + journalFile.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @param checkpointInterval Files at least this large are copied resumably, forced to the device and journaled
+     *                           every time this many more bytes have been written.
+     */
+    public SyncJournal withCheckpointInterval(long checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @return True when the source file was synchronized and has not changed since.
+     */
+    public synchronized boolean isDone(Path source, BasicFileAttributes attributes) {
+        int slot = find(HashUtils.pathHash(source));
+        return slot >= 0 && matches(slot, attributes) && offsets[slot] == DONE_OFFSET;
+    }
+
+    /**
+     * @return The offset an interrupted copy of the unchanged source file reached and forced to the device, or zero.
+     */
+    public synchronized long resumeOffset(Path source, BasicFileAttributes attributes) {
+        int slot = find(HashUtils.pathHash(source));
+        return slot >= 0 && matches(slot, attributes) && offsets[slot] != DONE_OFFSET ? offsets[slot] : 0;
+    }
+
+    /**
+     * Record that the source file has been synchronized.
+     */
+    public void done(Path source, BasicFileAttributes attributes) {
+        append(DONE, source, attributes, DONE_OFFSET);
+    }
+
+    /**
+     * Record that the copy of the source file has reached the offset, once the bytes before it are on the device.
+     */
+    public void partial(Path source, BasicFileAttributes attributes, long offset) {
+        append(PARTIAL, source, attributes, offset);
+    }
+
+    /**
+     * @return The number of files recorded as done.
+     */
+    public synchronized long size() {
+        return done;
+    }
+
+    /**
+     * Forget everything recorded, once the sync it was recorded for has finished.
+     */
+    public synchronized void clear() {
+        try {
+            channel.truncate(0);
+            channel.force(true);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-1390383309968495438 - Could not clear sync journal: " + journalFile.toAbsolutePath(), e);
+        }
+        keys = new long[MIN_CAPACITY];
+        sizes = new long[MIN_CAPACITY];
+        lastModified = new long[MIN_CAPACITY];
+        offsets = new long[MIN_CAPACITY];
+        entries = 0;
+        done = 0;
+    }
+
+    /**
+     * Force the journal to the storage device. Records are written as they are appended, so only a power failure can
+     * lose the records since the last flush.
+     */
+    public synchronized void flush() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-8155301145149208227 - Could not flush sync journal: " + journalFile.toAbsolutePath(), e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-8608686203203865707 - Could not close sync journal: " + journalFile.toAbsolutePath(), e);
+        }
+    }
+
+    private synchronized void append(byte type, Path source, BasicFileAttributes attributes, long offset) {
+        long key = HashUtils.pathHash(source);
+        long size = attributes.size();
+        long time = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        record.clear();
+        record.put(type).putLong(key).putLong(size).putLong(time).putLong(offset);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record, channel.size());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-7214127925192536841 - Could not write sync journal: " + journalFile.toAbsolutePath(), e);
+        }
+        put(key, size, time, offset);
+    }
+
+    private void replay() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 4096);
+        long position = 0;
+        long length = channel.size();
+        CRC32C crc = new CRC32C();
+        while (position + RECORD_SIZE <= length) {
+            buffer.clear();
+            channel.read(buffer, position);
+            buffer.flip();
+            while (buffer.remaining() >= RECORD_SIZE) {
+                int start = buffer.position();
+                crc.reset();
+                crc.update(buffer.array(), start, RECORD_SIZE - Integer.BYTES);
+                byte type = buffer.get();
+                long key = buffer.getLong();
+                long size = buffer.getLong();
+                long time = buffer.getLong();
+                long offset = buffer.getLong();
+                if (buffer.getInt() != (int) crc.getValue() || (type != DONE && type != PARTIAL)) {
+                    LOG.warn("FOXE-5619174576418287319 - Cutting off a torn record at: " + position + " of sync journal: " + journalFile.toAbsolutePath());
+                    channel.truncate(position);
+                    return;
+                }
+                put(key, size, time, offset);
+                position += RECORD_SIZE;
+            }
+        }
+
+        if (position < length) {
+            // A record only partly written when the sync died.
+            channel.truncate(position);
+        }
+    }
+
+    private boolean matches(int slot, BasicFileAttributes attributes) {
+        return sizes[slot] == attributes.size() && lastModified[slot] == attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = (int) mix64(key) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void put(long key, long size, long time, long offset) {
+        int slot = find(key);
+        if (slot < 0) {
+            if ((entries + 1) * 2 > keys.length) {
+                grow();
+            }
+            int mask = keys.length - 1;
+            slot = (int) mix64(key) & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            entries++;
+        } else if (offsets[slot] == DONE_OFFSET) {
+            done--;
+        }
+
+        sizes[slot] = size;
+        lastModified[slot] = time;
+        offsets[slot] = offset;
+        if (offset == DONE_OFFSET) {
+            done++;
+        }
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldSizes = sizes;
+        long[] oldLastModified = lastModified;
+        long[] oldOffsets = offsets;
+        keys = new long[oldKeys.length * 2];
+        sizes = new long[keys.length];
+        lastModified = new long[keys.length];
+        offsets = new long[keys.length];
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) {
+                continue;
+            }
+            int slot = (int) mix64(oldKeys[i]) & mask;
+            while (keys[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = oldKeys[i];
+            sizes[slot] = oldSizes[i];
+            lastModified[slot] = oldLastModified[i];
+            offsets[slot] = oldOffsets[i];
+        }
+    }
+}
@@ -0,0 +1,4 @@
+/**
+ * This package contains the persistent indexes used to avoid re-reading files that have not changed between syncs.
+ */
+package ninja.foxyv.vsync.index;
@@ -0,0 +1,46 @@
+package ninja.foxyv.vsync.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends a snapshot of the metrics to a file as a line of JSON at a fixed interval, so a sync run can be graphed.
+ */
+public class MetricsReporter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsReporter.class);
+
+    /**
+     * @param file      The file the snapshots are appended to, created when it does not exist.
+     * @param interval  How often a snapshot is written.
+     * @param scheduler The scheduler the snapshots are written on, it must allow periodic tasks.
+     * @return Stops the reporter when disposed, writing one last snapshot so the end of the run is recorded.
+     */
+    public static Disposable writeJsonLines(SyncMetrics metrics, Path file, Duration interval, Scheduler scheduler) {
+        Disposable task = scheduler.schedulePeriodically(() -> append(metrics, file), interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        return () -> {
+            task.dispose();
+            append(metrics, file);
+        };
+    }
+
+    public static void append(SyncMetrics metrics, Path file) {
+        try {
+            Files.writeString(file, metrics.snapshot().toJson() + System.lineSeparator(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            // A lost snapshot must not stop the sync.
+            LOG.warn("FOXE-4972992793407273750 - Could not write metrics to: " + file.toAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ninja.foxyv.vsync.metrics;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The metrics of a sync at a point in time.
+ *
+ * @param elapsedNanos How long the metrics have been recording.
+ * @param counters     The count of every SyncCounter.
+ */
+public record MetricsSnapshot(Instant time, long elapsedNanos, long filesCreated, long filesChanged, long filesUnchanged,
+                              long filesSkipped, long filesDeduplicated, long bytesCopied, long bytesDeduplicated,
+                              Map<SyncCounter, Long> counters, List<StageSnapshot> stages) {
+
+    /**
+     * The snapshot as a single line of JSON, so snapshots appended to a file can be read back one per line.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(512)
+                .append("{\"time\":\"").append(time).append('"')
+                .append(",\"elapsedNanos\":").append(elapsedNanos)
+                .append(",\"filesCreated\":").append(filesCreated)
+                .append(",\"filesChanged\":").append(filesChanged)
+                .append(",\"filesUnchanged\":").append(filesUnchanged)
+                .append(",\"filesSkipped\":").append(filesSkipped)
+                .append(",\"filesDeduplicated\":").append(filesDeduplicated)
+                .append(",\"bytesCopied\":").append(bytesCopied)
+                .append(",\"bytesDeduplicated\":").append(bytesDeduplicated)
+                .append(",\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<SyncCounter, Long> counter : counters.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            json.append('"').append(counter.getKey()).append("\":").append(counter.getValue());
+            first = false;
+        }
+        json.append("},\"stages\":[");
+        for (int i = 0; i < stages.size(); i++) {
+            StageSnapshot stage = stages.get(i);
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"stage\":\"").append(stage.stage()).append('"')
+                    .append(",\"count\":").append(stage.count())
+                    .append(",\"errors\":").append(stage.errors())
+                    .append(",\"inFlight\":").append(stage.inFlight())
+                    .append(",\"bytes\":").append(stage.bytes())
+                    .append(",\"meanNanos\":").append(stage.meanNanos())
+                    .append(",\"p50Nanos\":").append(stage.p50Nanos())
+                    .append(",\"p90Nanos\":").append(stage.p90Nanos())
+                    .append(",\"p99Nanos\":").append(stage.p99Nanos())
+                    .append(",\"maxNanos\":").append(stage.maxNanos())
+                    .append('}');
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -0,0 +1,106 @@
+package ninja.foxyv.vsync.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The operations of one sync stage: how many completed or failed, how many are waiting or running right now, how long
+ * they took and how many bytes they handled.
+ */
+public class StageMetrics implements StageMetricsMXBean {
+
+    private final SyncStage stage;
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final Histogram latency = new Histogram();
+    private final Histogram size = new Histogram();
+
+    StageMetrics(SyncStage stage) {
+        this.stage = stage;
+    }
+
+    public SyncStage stage() {
+        return stage;
+    }
+
+    /**
+     * Latencies of completed operations in nanoseconds.
+     */
+    public Histogram latency() {
+        return latency;
+    }
+
+    /**
+     * Bytes handled by each completed operation, or entries for directory listings.
+     */
+    public Histogram size() {
+        return size;
+    }
+
+    /**
+     * Record an operation timed by the caller, for work that can not be wrapped in a single timer.
+     */
+    public void record(long nanos, long bytes) {
+        latency.record(nanos);
+        size.record(bytes);
+    }
+
+    void started() {
+        inFlight.increment();
+    }
+
+    void completed(long nanos, long bytes) {
+        inFlight.decrement();
+        record(nanos, bytes);
+    }
+
+    void failed() {
+        inFlight.decrement();
+        errors.increment();
+    }
+
+    public StageSnapshot snapshot() {
+        return new StageSnapshot(stage, getCount(), getErrors(), getInFlight(), getBytes(),
+                latency.mean(), latency.percentile(0.5), latency.percentile(0.9), latency.percentile(0.99), latency.max());
+    }
+
+    @Override
+    public long getCount() {
+        return latency.count();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    @Override
+    public long getBytes() {
+        return size.sum();
+    }
+
+    @Override
+    public long getMeanLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.mean());
+    }
+
+    @Override
+    public long getP50LatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.percentile(0.5));
+    }
+
+    @Override
+    public long getP99LatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.percentile(0.99));
+    }
+
+    @Override
+    public long getMaxLatencyMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(latency.max());
+    }
+}
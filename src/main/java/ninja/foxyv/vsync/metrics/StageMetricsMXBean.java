@@ -0,0 +1,23 @@
+package ninja.foxyv.vsync.metrics;
+
+/**
+ * The timings of one sync stage as seen through JMX. Latencies are in microseconds.
+ */
+public interface StageMetricsMXBean {
+
+    long getCount();
+
+    long getErrors();
+
+    long getInFlight();
+
+    long getBytes();
+
+    long getMeanLatencyMicros();
+
+    long getP50LatencyMicros();
+
+    long getP99LatencyMicros();
+
+    long getMaxLatencyMicros();
+}
@@ -0,0 +1,8 @@
+package ninja.foxyv.vsync.metrics;
+
+/**
+ * The metrics of one stage at a point in time. Latencies are in nanoseconds.
+ */
+public record StageSnapshot(SyncStage stage, long count, long errors, long inFlight, long bytes,
+                            long meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos) {
+}
@@ -0,0 +1,48 @@
+package ninja.foxyv.vsync.metrics;
+
+/**
+ * Times one operation of a stage. Call done once the operation succeeded, closing a timer that was never done counts
+ * the operation as failed.
+ * <pre>
+ * try (StageTimer timer = metrics.start(SyncStage.STAT)) {
+ *     attributes = Files.readAttributes(path, BasicFileAttributes.class);
+ *     timer.done(0);
+ * }
+ * </pre>
+ */
+public class StageTimer implements AutoCloseable {
+
+    static final StageTimer NONE = new StageTimer(null);
+
+    private final StageMetrics stage;
+    private final long start;
+    private boolean closed;
+
+    StageTimer(StageMetrics stage) {
+        this.stage = stage;
+        this.start = stage == null ? 0 : System.nanoTime();
+        if (stage != null) {
+            stage.started();
+        }
+    }
+
+    /**
+     * @param bytes The bytes the operation handled.
+     */
+    public void done(long bytes) {
+        if (stage == null || closed) {
+            return;
+        }
+        closed = true;
+        stage.completed(System.nanoTime() - start, bytes);
+    }
+
+    @Override
+    public void close() {
+        if (stage == null || closed) {
+            return;
+        }
+        closed = true;
+        stage.failed();
+    }
+}
@@ -0,0 +1,40 @@
+package ninja.foxyv.vsync.metrics;
+
+/**
+ * Counts of a sync besides the outcome of each source file.
+ */
+public enum SyncCounter {
+    /**
+     * Bytes written to targets from the source, counted as they are written so a large copy shows progress. Delta
+     * copies only count the bytes that did not match the old copy.
+     */
+    BYTES_WRITTEN,
+    /**
+     * Files whose contents were read in full to compare them with the target.
+     */
+    FILES_HASHED,
+    /**
+     * Files found to have changed by comparing samples of the source and target, without hashing either in full.
+     */
+    SAMPLES_DIFFERED,
+    /**
+     * Directories whose whole subtree was skipped because the source and target Merkle nodes matched.
+     */
+    DIRECTORIES_PRUNED,
+    /**
+     * Bytes of delta copies reused from the old target copy.
+     */
+    BYTES_MATCHED,
+    /**
+     * Bytes of delta copies written from the source.
+     */
+    BYTES_LITERAL,
+    /**
+     * Target entries moved to the new path of their renamed or moved source, a directory counts once.
+     */
+    ENTRIES_MOVED,
+    /**
+     * Target entries without a source that a mirror pass deleted or quarantined, a directory counts once.
+     */
+    ENTRIES_REMOVED
+}
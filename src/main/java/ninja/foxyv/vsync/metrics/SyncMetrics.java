@@ -0,0 +1,310 @@
+package ninja.foxyv.vsync.metrics;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Counters and per stage timings of a sync. Everything is kept in striped counters so the copy threads never contend on
+ * a shared value. Read it through JMX with registerMBeans or as JSON lines with MetricsReporter.
+ * <p>
+ * The disabled metrics record nothing and cost a branch per operation, they are used when no metrics are configured.
+ */
+public class SyncMetrics implements SyncMetricsMXBean {
+
+    private static final SyncMetrics DISABLED = new SyncMetrics(false);
+
+    private final boolean enabled;
+    private final long startNanos = System.nanoTime();
+    private final Map<SyncStage, StageMetrics> stages;
+    private final Map<SyncOutcome, LongAdder> outcomes;
+    private final Map<SyncCounter, LongAdder> counters;
+    private final LongAdder bytesDeduplicated;
+    // The metrics outcomes and counts are passed on to as well, see alsoCounting.
+    private final SyncMetrics forward;
+
+    private SyncMetrics(boolean enabled) {
+        this.enabled = enabled;
+        this.stages = new EnumMap<>(SyncStage.class);
+        this.outcomes = new EnumMap<>(SyncOutcome.class);
+        this.counters = new EnumMap<>(SyncCounter.class);
+        this.bytesDeduplicated = new LongAdder();
+        this.forward = null;
+        for (SyncStage stage : SyncStage.values()) {
+            stages.put(stage, new StageMetrics(stage));
+        }
+        for (SyncOutcome outcome : SyncOutcome.values()) {
+            outcomes.put(outcome, new LongAdder());
+        }
+        for (SyncCounter counter : SyncCounter.values()) {
+            counters.put(counter, new LongAdder());
+        }
+    }
+
+    private SyncMetrics(SyncMetrics metrics, SyncMetrics counts) {
+        this.enabled = true;
+        this.stages = metrics.stages;
+        this.outcomes = counts.outcomes;
+        this.counters = counts.counters;
+        this.bytesDeduplicated = counts.bytesDeduplicated;
+        this.forward = metrics;
+    }
+
+    public static SyncMetrics create() {
+        return new SyncMetrics(true);
+    }
+
+    public static SyncMetrics disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Metrics that record to these metrics and keep their own copy of the outcomes and counts in the passed metrics, so
+     * the counts of a single run can be read while these metrics total every run.
+     *
+     * @param counts The metrics the outcomes and counts are kept in as well.
+     */
+    public SyncMetrics alsoCounting(SyncMetrics counts) {
+        if (counts == this || !counts.enabled) {
+            return this;
+        }
+        return enabled ? new SyncMetrics(this, counts) : counts;
+    }
+
+    public StageMetrics stage(SyncStage stage) {
+        return stages.get(stage);
+    }
+
+    /**
+     * Start timing an operation of the stage, it counts as in flight until the timer is done or closed.
+     */
+    public StageTimer start(SyncStage stage) {
+        return enabled ? new StageTimer(stages.get(stage)) : StageTimer.NONE;
+    }
+
+    /**
+     * Time the work from the moment it is subscribed to, so time spent queued for a scheduler applied inside it counts
+     * as in flight.
+     *
+     * @param bytes The bytes the work handled, read from its result.
+     */
+    public <T> Mono<T> time(SyncStage stage, Mono<T> work, ToLongFunction<T> bytes) {
+        if (!enabled) {
+            return work;
+        }
+
+        return Mono.defer(() -> {
+            StageTimer timer = start(stage);
+            return work.doOnSuccess(result -> timer.done(result == null ? 0 : bytes.applyAsLong(result)))
+                    .doFinally(signal -> timer.close());
+        });
+    }
+
+    /**
+     * Record an operation timed by the caller, for work whose stage is only known once it is done.
+     */
+    public void record(SyncStage stage, long nanos, long bytes) {
+        if (enabled) {
+            stages.get(stage).record(nanos, bytes);
+        }
+    }
+
+    public void outcome(SyncOutcome outcome) {
+        if (enabled) {
+            outcomes.get(outcome).increment();
+        }
+        if (forward != null) {
+            forward.outcome(outcome);
+        }
+    }
+
+    /**
+     * Record a file written from a target file with the same contents, and the bytes not read from the source for it.
+     */
+    public void deduplicated(long bytes) {
+        if (enabled) {
+            outcomes.get(SyncOutcome.DEDUPLICATED).increment();
+            bytesDeduplicated.add(bytes);
+        }
+        if (forward != null) {
+            forward.deduplicated(bytes);
+        }
+    }
+
+    public void count(SyncCounter counter) {
+        count(counter, 1);
+    }
+
+    public void count(SyncCounter counter, long amount) {
+        if (enabled) {
+            counters.get(counter).add(amount);
+        }
+        if (forward != null) {
+            forward.count(counter, amount);
+        }
+    }
+
+    public long outcomes(SyncOutcome outcome) {
+        return outcomes.get(outcome).sum();
+    }
+
+    public long counts(SyncCounter counter) {
+        return counters.get(counter).sum();
+    }
+
+    public MetricsSnapshot snapshot() {
+        List<StageSnapshot> stageSnapshots = new ArrayList<>();
+        for (StageMetrics stage : stages.values()) {
+            stageSnapshots.add(stage.snapshot());
+        }
+        Map<SyncCounter, Long> counterSnapshots = new EnumMap<>(SyncCounter.class);
+        for (SyncCounter counter : SyncCounter.values()) {
+            counterSnapshots.put(counter, counts(counter));
+        }
+        return new MetricsSnapshot(Instant.now(), System.nanoTime() - startNanos,
+                getFilesCreated(), getFilesChanged(), getFilesUnchanged(), getFilesSkipped(), getFilesDeduplicated(), getBytesCopied(),
+                getBytesDeduplicated(), counterSnapshots, stageSnapshots);
+    }
+
+    /**
+     * Register these metrics and one bean per stage with the platform MBean server, under
+     * ninja.foxyv.vsync:type=SyncMetrics,name=[name] and ninja.foxyv.vsync:type=SyncStage,name=[name],stage=[stage].
+     *
+     * @return Unregisters the beans when disposed.
+     */
+    public Disposable registerMBeans(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        List<ObjectName> registered = new ArrayList<>();
+        try {
+            ObjectName metricsName = new ObjectName("ninja.foxyv.vsync:type=SyncMetrics,name=" + ObjectName.quote(name));
+            server.registerMBean(this, metricsName);
+            registered.add(metricsName);
+            for (StageMetrics stage : stages.values()) {
+                ObjectName stageName = new ObjectName("ninja.foxyv.vsync:type=SyncStage,name=" + ObjectName.quote(name) + ",stage=" + stage.stage());
+                server.registerMBean(stage, stageName);
+                registered.add(stageName);
+            }
+        } catch (JMException e) {
+            unregister(server, registered);
+            throw new RuntimeException("FOXE-2014699333820476985 - Could not register the sync metrics: " + name, e);
+        }
+        return () -> unregister(server, registered);
+    }
+
+    private static void unregister(MBeanServer server, List<ObjectName> names) {
+        for (ObjectName name : names) {
+            try {
+                server.unregisterMBean(name);
+            } catch (JMException e) {
+                // Already gone, nothing left to clean up.
+            }
+        }
+    }
+
+    @Override
+    public long getFilesCreated() {
+        return outcomes(SyncOutcome.CREATED);
+    }
+
+    @Override
+    public long getFilesChanged() {
+        return outcomes(SyncOutcome.CHANGED);
+    }
+
+    @Override
+    public long getFilesUnchanged() {
+        return outcomes(SyncOutcome.UNCHANGED);
+    }
+
+    @Override
+    public long getFilesSkipped() {
+        return outcomes(SyncOutcome.SKIPPED);
+    }
+
+    @Override
+    public long getFilesDeduplicated() {
+        return outcomes(SyncOutcome.DEDUPLICATED);
+    }
+
+    @Override
+    public long getFilesCopied() {
+        return getFilesCreated() + getFilesChanged() + getFilesDeduplicated();
+    }
+
+    @Override
+    public long getFilesHashed() {
+        return counts(SyncCounter.FILES_HASHED);
+    }
+
+    @Override
+    public long getSamplesDiffered() {
+        return counts(SyncCounter.SAMPLES_DIFFERED);
+    }
+
+    @Override
+    public long getDirectoriesPruned() {
+        return counts(SyncCounter.DIRECTORIES_PRUNED);
+    }
+
+    @Override
+    public long getEntriesMoved() {
+        return counts(SyncCounter.ENTRIES_MOVED);
+    }
+
+    @Override
+    public long getEntriesRemoved() {
+        return counts(SyncCounter.ENTRIES_REMOVED);
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return counts(SyncCounter.BYTES_WRITTEN);
+    }
+
+    @Override
+    public long getBytesMatched() {
+        return counts(SyncCounter.BYTES_MATCHED);
+    }
+
+    @Override
+    public long getBytesLiteral() {
+        return counts(SyncCounter.BYTES_LITERAL);
+    }
+
+    @Override
+    public long getBytesCopied() {
+        return stages.get(SyncStage.COPY).getBytes();
+    }
+
+    @Override
+    public long getBytesDeduplicated() {
+        return bytesDeduplicated.sum();
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        return elapsedNanos <= 0 ? 0 : (long) (getBytesCopied() / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1)));
+    }
+
+    @Override
+    public long getElapsedSeconds() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,46 @@
+package ninja.foxyv.vsync.metrics;
+
+/**
+ * The totals of a sync as seen through JMX. Each stage is registered as a bean of its own.
+ */
+public interface SyncMetricsMXBean {
+
+    long getFilesCreated();
+
+    long getFilesChanged();
+
+    long getFilesUnchanged();
+
+    long getFilesSkipped();
+
+    long getFilesDeduplicated();
+
+    /**
+     * @return The files created, changed or deduplicated.
+     */
+    long getFilesCopied();
+
+    long getFilesHashed();
+
+    long getSamplesDiffered();
+
+    long getDirectoriesPruned();
+
+    long getEntriesMoved();
+
+    long getEntriesRemoved();
+
+    long getBytesWritten();
+
+    long getBytesMatched();
+
+    long getBytesLiteral();
+
+    long getBytesCopied();
+
+    long getBytesDeduplicated();
+
+    long getBytesPerSecond();
+
+    long getElapsedSeconds();
+}
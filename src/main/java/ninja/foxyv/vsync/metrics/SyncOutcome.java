@@ -0,0 +1,27 @@
+package ninja.foxyv.vsync.metrics;
+
+/**
+ * What a sync did with a source file.
+ */
+public enum SyncOutcome {
+    /**
+     * The target did not exist and was written.
+     */
+    CREATED,
+    /**
+     * The target differed from the source and was replaced.
+     */
+    CHANGED,
+    /**
+     * The contents were compared and found to be the same.
+     */
+    UNCHANGED,
+    /**
+     * The target was written from a target file with the same contents, without reading the source.
+     */
+    DEDUPLICATED,
+    /**
+     * The metadata matched so the contents were never read.
+     */
+    SKIPPED
+}
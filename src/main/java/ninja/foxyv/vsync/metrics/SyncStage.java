@@ -0,0 +1,27 @@
+package ninja.foxyv.vsync.metrics;
+
+/**
+ * The stages a sync spends its time in, each timed separately so the slowest one can be found.
+ */
+public enum SyncStage {
+    /**
+     * Reading the entries of a directory, not counting the time spent waiting for the subscriber.
+     */
+    LIST,
+    /**
+     * Reading the attributes of a single file.
+     */
+    STAT,
+    /**
+     * Fingerprinting or comparing the contents of files.
+     */
+    HASH,
+    /**
+     * Writing a target file, from opening the source to renaming the new copy over the target.
+     */
+    COPY,
+    /**
+     * Creating target directories.
+     */
+    MKDIR
+}
@@ -0,0 +1,25 @@
+package ninja.foxyv.vsync.plan;
+
+/**
+ * What a sync plan expects to do with a file, decided from the metadata of the source and target alone.
+ */
+public enum PlanAction {
+    /**
+     * The source file has no target yet and will be copied.
+     */
+    NEW,
+    /**
+     * The metadata of the source and target differ. The file will be compared with the comparison strategy of the sync
+     * and copied when the contents differ.
+     */
+    CHANGED,
+    /**
+     * The metadata of the source and target match. The file is only read when the comparison strategy always hashes or
+     * the file is paranoid.
+     */
+    UNCHANGED,
+    /**
+     * The target file has no source. It is left alone.
+     */
+    EXTRA
+}
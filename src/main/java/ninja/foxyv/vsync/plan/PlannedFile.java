@@ -0,0 +1,14 @@
+package ninja.foxyv.vsync.plan;
+
+import java.nio.file.Path;
+
+/**
+ * A file in a sync plan.
+ *
+ * @param path       The path of the file relative to the source and target directories.
+ * @param action     What the sync is expected to do with the file.
+ * @param size       The size of the source file when it was planned, or -1 when there is no source file.
+ * @param targetSize The size of the target file when it was planned, or -1 when there is no target file.
+ */
+public record PlannedFile(Path path, PlanAction action, long size, long targetSize) {
+}
@@ -0,0 +1,176 @@
+package ninja.foxyv.vsync.plan;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Everything a sync of one directory is expected to do, worked out from the metadata of the source and target before
+ * any data is read. A plan tells how many files and bytes a sync will copy, so it doubles as a dry run and gives the
+ * progress estimate its totals up front. It can be written to a file and read back, to be reviewed or executed later.
+ * <p>
+ * The plan is only as current as the metadata it was made from. Executing it compares each file again, files that
+ * changed since are still synchronized correctly but may not be where the plan put them.
+ */
+public class SyncPlan {
+
+    // Files this size or larger are copied one at a time next to batches of the smaller files.
+    public static final long DEFAULT_LARGE_FILE_SIZE = 8 * 1024 * 1024;
+
+    private static final String HEADER = "vsync-plan\t1";
+
+    // Files of a directory are worked on together, so the directory entries and blocks they share are read once.
+    private static final Comparator<PlannedFile> DIRECTORY_ORDER = Comparator
+            .comparing((PlannedFile file) -> file.path().getParent() == null ? "" : file.path().getParent().toString())
+            .thenComparing(file -> file.path().getFileName().toString());
+
+    private final Path source;
+    private final Path target;
+    private final List<PlannedFile> files;
+
+    private SyncPlan(Path source, Path target, List<PlannedFile> files) {
+        this.source = source;
+        this.target = target;
+        this.files = files;
+    }
+
+    public static SyncPlan of(Path source, Path target, Collection<PlannedFile> files) {
+        List<PlannedFile> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparing(PlannedFile::path));
+        return new SyncPlan(source.toAbsolutePath().normalize(), target.toAbsolutePath().normalize(), List.copyOf(sorted));
+    }
+
+    public Path source() {
+        return source;
+    }
+
+    public Path target() {
+        return target;
+    }
+
+    /**
+     * @return Every planned file, sorted by path.
+     */
+    public List<PlannedFile> files() {
+        return files;
+    }
+
+    public List<PlannedFile> files(PlanAction action) {
+        return files.stream().filter(file -> file.action() == action).toList();
+    }
+
+    public long count(PlanAction action) {
+        return files.stream().filter(file -> file.action() == action).count();
+    }
+
+    /**
+     * @return The bytes of the source files with the action, or of the target files for extra files.
+     */
+    public long bytes(PlanAction action) {
+        return files.stream()
+                .filter(file -> file.action() == action)
+                .mapToLong(file -> action == PlanAction.EXTRA ? file.targetSize() : file.size())
+                .sum();
+    }
+
+    /**
+     * @return The most bytes executing the plan will copy. Changed files whose contents turn out to be the same are
+     * not copied.
+     */
+    public long bytesToCopy() {
+        return bytes(PlanAction.NEW) + bytes(PlanAction.CHANGED);
+    }
+
+    public String summary() {
+        StringBuilder summary = new StringBuilder("Plan for: " + source + " to: " + target);
+        for (PlanAction action : PlanAction.values()) {
+            summary.append(" - ").append(action).append(": ").append(count(action))
+                    .append(" (").append(FileUtils.byteCountToDisplaySize(bytes(action))).append(")");
+        }
+        return summary.toString();
+    }
+
+    /**
+     * Order files for throughput. Files are grouped by directory, and the small files are spread in batches between
+     * the large ones, so a long sequential copy always has a batch of small files running next to it rather than the
+     * small files waiting on one device while the large ones queue on another.
+     *
+     * @param largeFileSize Files this size or larger are copied between the batches of smaller files.
+     */
+    public static List<PlannedFile> executionOrder(Collection<PlannedFile> files, long largeFileSize) {
+        List<PlannedFile> large = new ArrayList<>();
+        List<PlannedFile> small = new ArrayList<>();
+        files.stream()
+                .sorted(DIRECTORY_ORDER)
+                .forEach(file -> (file.size() >= largeFileSize ? large : small).add(file));
+        if (large.isEmpty()) {
+            return small;
+        }
+
+        int batchSize = (small.size() + large.size() - 1) / large.size();
+        List<PlannedFile> ordered = new ArrayList<>(files.size());
+        int next = 0;
+        for (PlannedFile largeFile : large) {
+            ordered.add(largeFile);
+            int end = Math.min(small.size(), next + batchSize);
+            ordered.addAll(small.subList(next, end));
+            next = end;
+        }
+        return ordered;
+    }
+
+    /**
+     * Write the plan as lines of tab separated text. The path is the last column of each file, so only line breaks in
+     * file names can not be written.
+     */
+    public void write(Path planFile) {
+        try (BufferedWriter writer = Files.newBufferedWriter(planFile, StandardCharsets.UTF_8)) {
+            writer.write(HEADER);
+            writer.newLine();
+            writer.write("source\t" + source);
+            writer.newLine();
+            writer.write("target\t" + target);
+            writer.newLine();
+            for (PlannedFile file : files) {
+                writer.write(file.action() + "\t" + file.size() + "\t" + file.targetSize() + "\t" + file.path());
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-8505246330780813115 - Could not write sync plan: " + planFile.toAbsolutePath(), e);
+        }
+    }
+
+    public static SyncPlan read(Path planFile) {
+        try (BufferedReader reader = Files.newBufferedReader(planFile, StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            String sourceLine = reader.readLine();
+            String targetLine = reader.readLine();
+            if (!HEADER.equals(header) || sourceLine == null || !sourceLine.startsWith("source\t")
+                    || targetLine == null || !targetLine.startsWith("target\t")) {
+                throw new RuntimeException("FOXE-3300250901214143747 - Not a sync plan: " + planFile.toAbsolutePath());
+            }
+
+            List<PlannedFile> files = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", 4);
+                if (columns.length != 4) {
+                    throw new RuntimeException("FOXE-1962121979360660049 - Malformed line in sync plan: " + planFile.toAbsolutePath() + " - " + line);
+                }
+                files.add(new PlannedFile(Path.of(columns[3]), PlanAction.valueOf(columns[0]), Long.parseLong(columns[1]), Long.parseLong(columns[2])));
+            }
+            return of(Path.of(sourceLine.substring("source\t".length())), Path.of(targetLine.substring("target\t".length())), files);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-1376186532810521561 - Could not read sync plan: " + planFile.toAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package ninja.foxyv.vsync.react.fs;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of reusable byte buffers. At most maxBuffers buffers are ever allocated, once they are all leased
+ * callers wait for one to be released. This keeps the memory used by in-flight files bounded and avoids allocating a new
+ * buffer for every chunk read.
+ */
+public class ByteBufferPool {
+
+    // Enough 12kb direct buffers for every file the synchronizer works on at the same time.
+    public static final ByteBufferPool DEFAULT = new ByteBufferPool(InputStreamFlux.DEFAULT_BUFFER_SIZE, 1024, true);
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final boolean direct;
+    private final BlockingQueue<ByteBuffer> free;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * @param bufferSize The capacity of each buffer.
+     * @param maxBuffers The most buffers that will ever be allocated.
+     * @param direct     True to allocate direct buffers which can be read in to by channels without an extra copy.
+     */
+    public ByteBufferPool(int bufferSize, int maxBuffers, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(maxBuffers);
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Lease a cleared buffer from the pool, waiting for one to be released if they are all in use.
+     *
+     * @return A buffer that must be given back with release once it is no longer used.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = allocate();
+        }
+
+        if (buffer == null) {
+            try {
+                buffer = free.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("FOXE-3702028909816823814 - Interrupted while waiting for a buffer.", e);
+            }
+        }
+
+        return buffer.clear();
+    }
+
+    /**
+     * Return a leased buffer to the pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if (!free.offer(buffer)) {
+            throw new IllegalStateException("FOXE-4392961032861411064 - More buffers were released than were leased from the pool.");
+        }
+    }
+
+    private ByteBuffer allocate() {
+        while (true) {
+            int count = allocated.get();
+            if (count >= maxBuffers) {
+                return null;
+            }
+
+            if (allocated.compareAndSet(count, count + 1)) {
+                return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package ninja.foxyv.vsync.react.fs;
+
+import ninja.foxyv.vsync.entities.FileEntry;
+import ninja.foxyv.vsync.metrics.StageTimer;
+import ninja.foxyv.vsync.metrics.SyncMetrics;
+import ninja.foxyv.vsync.metrics.SyncStage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walks a directory tree with Files.newDirectoryStream, emitting an entry with its attributes for everything below the
+ * root. Directory streams are iterated lazily and only as fast as the subscriber requests entries, so a directory with
+ * hundreds of thousands of entries is never held in memory. At most maxConcurrentReads directories are read at once,
+ * directories waiting to be read are queued as paths.
+ * <p>
+ * Symbolic links are reported with the attributes of what they point to, but linked directories are not walked in to
+ * so a link cycle can not make the walk endless.
+ */
+public class DirectoryWalker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryWalker.class);
+
+    public static final int DEFAULT_MAX_CONCURRENT_READS = 4;
+
+    private final Path root;
+    private WalkOrder order = WalkOrder.DEPTH_FIRST;
+    private int maxConcurrentReads = DEFAULT_MAX_CONCURRENT_READS;
+    private int maxDepth = Integer.MAX_VALUE;
+    private SyncMetrics metrics = SyncMetrics.disabled();
+
+    private DirectoryWalker(Path root) {
+        this.root = root;
+    }
+
+    public static DirectoryWalker of(Path root) {
+        return new DirectoryWalker(root);
+    }
+
+    public DirectoryWalker withOrder(WalkOrder order) {
+        this.order = order;
+        return this;
+    }
+
+    public DirectoryWalker withMaxConcurrentReads(int maxConcurrentReads) {
+        this.maxConcurrentReads = maxConcurrentReads;
+        return this;
+    }
+
+    /**
+     * @param maxDepth How many levels of directories are read. One only reads the root directory.
+     */
+    public DirectoryWalker withMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+        return this;
+    }
+
+    /**
+     * @param metrics Times each directory listing, without the time spent waiting for the subscriber, and the attributes
+     *                read for each entry.
+     */
+    public DirectoryWalker withMetrics(SyncMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @param scheduler The scheduler directories are read on. It must allow blocking and have at least
+     *                  maxConcurrentReads threads.
+     * @return A flux of every entry below the root, not including the root itself.
+     */
+    public Flux<FileEntry> flux(Scheduler scheduler) {
+        return Flux.create(sink -> new Walk(sink, scheduler).start());
+    }
+
+    private record DirectoryTask(Path directory, int depth) {
+    }
+
+    private record FoundEntry(FileEntry entry, boolean symbolicLink) {
+    }
+
+    private final class Walk {
+        final FluxSink<FileEntry> sink;
+        final Scheduler scheduler;
+        final Deque<DirectoryTask> pending = new ArrayDeque<>();
+        final Semaphore demand = new Semaphore(0);
+        volatile boolean unbounded;
+        volatile boolean cancelled;
+        int activeReads;
+        boolean terminated;
+
+        Walk(FluxSink<FileEntry> sink, Scheduler scheduler) {
+            this.sink = sink;
+            this.scheduler = scheduler;
+        }
+
+        void start() {
+            sink.onRequest(n -> {
+                // Large requests are treated as unbounded so the permits can never overflow.
+                if (n >= Integer.MAX_VALUE / 2 || demand.availablePermits() >= Integer.MAX_VALUE / 2) {
+                    unbounded = true;
+                } else {
+                    demand.release((int) n);
+                }
+            });
+            sink.onDispose(() -> cancelled = true);
+
+            synchronized (this) {
+                pending.add(new DirectoryTask(root, 0));
+                scheduleReads();
+            }
+        }
+
+        /**
+         * Start reading queued directories until the concurrency limit is reached. Must hold the walk lock.
+         */
+        private void scheduleReads() {
+            while (activeReads < maxConcurrentReads && !pending.isEmpty() && !cancelled) {
+                DirectoryTask task = order == WalkOrder.BREADTH_FIRST ? pending.pollFirst() : pending.pollLast();
+                activeReads++;
+                scheduler.schedule(() -> read(task));
+            }
+
+            if (!terminated && (cancelled || (activeReads == 0 && pending.isEmpty()))) {
+                terminated = true;
+                sink.complete();
+            }
+        }
+
+        private void read(DirectoryTask task) {
+            // Listing time is taken apart from waiting for demand and from reading attributes, which are timed as stats.
+            long start = System.nanoTime();
+            long excluded = 0;
+            long entries = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(task.directory())) {
+                for (Path path : stream) {
+                    long statStart = System.nanoTime();
+                    FoundEntry found = entry(path);
+                    long waitStart = System.nanoTime();
+                    excluded += waitStart - statStart;
+                    if (found == null) {
+                        continue;
+                    }
+
+                    entries++;
+                    boolean demanded = awaitDemand();
+                    excluded += System.nanoTime() - waitStart;
+                    if (!demanded) {
+                        return;
+                    }
+                    sink.next(found.entry());
+
+                    if (found.entry().isDirectory() && !found.symbolicLink() && task.depth() + 1 < maxDepth) {
+                        synchronized (this) {
+                            pending.add(new DirectoryTask(path, task.depth() + 1));
+                            scheduleReads();
+                        }
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                // Like File.listFiles returning null, unreadable directories are skipped rather than failing the walk.
+                LOG.warn("FOXE-370289695350116682 - Could not read directory: " + task.directory().toAbsolutePath(), e);
+            } catch (RuntimeException e) {
+                sink.error(e);
+                cancelled = true;
+            } finally {
+                metrics.record(SyncStage.LIST, System.nanoTime() - start - excluded, entries);
+                synchronized (this) {
+                    activeReads--;
+                    scheduleReads();
+                }
+            }
+        }
+
+        /**
+         * Read the attributes of an entry, following symbolic links.
+         *
+         * @return The entry or null when it disappeared, is a broken link or can not be read.
+         */
+        private FoundEntry entry(Path path) {
+            try (StageTimer timer = metrics.start(SyncStage.STAT)) {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isSymbolicLink()) {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    timer.done(0);
+                    return new FoundEntry(new FileEntry(path, attributes), true);
+                }
+                timer.done(0);
+                return new FoundEntry(new FileEntry(path, attributes), false);
+            } catch (NoSuchFileException e) {
+                return null;
+            } catch (IOException e) {
+                LOG.warn("FOXE-5883678487389559887 - Could not read the attributes of: " + path.toAbsolutePath(), e);
+                return null;
+            }
+        }
+
+        /**
+         * Block the reading thread until the subscriber has requested another entry.
+         *
+         * @return False when the walk was cancelled while waiting.
+         */
+        private boolean awaitDemand() {
+            try {
+                while (!cancelled) {
+                    if (unbounded || demand.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
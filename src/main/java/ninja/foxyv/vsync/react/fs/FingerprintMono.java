@@ -1,5 +1,6 @@
 package ninja.foxyv.vsync.react.fs;
 
+import ninja.foxyv.vsync.entities.ChecksumValue;
 import ninja.foxyv.vsync.entities.FileFingerprint;
 import reactor.core.CoreSubscriber;
 import reactor.core.publisher.Flux;
@@ -42,7 +43,8 @@ public class FingerprintMono extends Mono<FileFingerprint> {
                 .subscribe(buffer -> {
                     // Subscribe to the flux to iterate across the chunks of data from the file and update our checksums
                     this.totalLength.getAndAdd(buffer.remaining());
-                    this.checksum.update(buffer.array(), buffer.arrayOffset(), buffer.remaining());
+                    // Works for heap and direct buffers, the buffer may be returned to a pool once this returns.
+                    this.checksum.update(buffer);
                 });
 
         // Use the completable future to wait for the result
@@ -54,6 +56,7 @@ public class FingerprintMono extends Mono<FileFingerprint> {
     }
 
     public void complete() {
-        future.complete(new FileFingerprint(filename, this.checksum, this.totalLength.get()));
+        // Only the value is handed on, the checksum object stays with this mono.
+        future.complete(new FileFingerprint(filename, new ChecksumValue(this.checksum.getValue()), this.totalLength.get()));
     }
 }
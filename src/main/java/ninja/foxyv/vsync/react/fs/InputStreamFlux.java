@@ -1,5 +1,6 @@
 package ninja.foxyv.vsync.react.fs;
 
+import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.CoreSubscriber;
@@ -9,11 +10,18 @@ import reactor.core.publisher.Operators;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An implementation of a bounded flux that will output the contents of the file in chunks. Each chunk will be wrapped
- * in a ByteBuffer.
+ * in a ByteBuffer. Chunks are only read from the stream when the subscriber has requested them, so a slow subscriber is
+ * never flooded.
+ * <p>
+ * When a buffer pool is used the buffers are leased from the pool and returned to it as soon as onNext returns.
+ * Subscribers must finish with each buffer before returning from onNext and must not hold on to it.
  */
 public class InputStreamFlux extends Flux<ByteBuffer> {
 
@@ -23,6 +31,7 @@ public class InputStreamFlux extends Flux<ByteBuffer> {
     public static final int DEFAULT_BUFFER_SIZE = 1024 * 12;
     final InputStream is;
     final int bufferSize;
+    final ByteBufferPool pool;
 
     final AtomicBoolean subscribed = new AtomicBoolean(false);
 
@@ -31,18 +40,21 @@ public class InputStreamFlux extends Flux<ByteBuffer> {
     }
 
     public static Flux<ByteBuffer> flux(InputStream is, int bufferSize) {
-        return new InputStreamFlux(is, bufferSize);
+        return new InputStreamFlux(is, bufferSize, null);
+    }
+
+    public static Flux<ByteBuffer> flux(InputStream is, ByteBufferPool pool) {
+        return new InputStreamFlux(is, pool.bufferSize(), pool);
     }
 
     private InputStreamFlux(InputStream is) {
-        super();
-        this.is = is;
-        this.bufferSize = DEFAULT_BUFFER_SIZE;
+        this(is, DEFAULT_BUFFER_SIZE, null);
     }
 
-    private InputStreamFlux(InputStream is, int bufferSize) {
+    private InputStreamFlux(InputStream is, int bufferSize, ByteBufferPool pool) {
         this.is = is;
         this.bufferSize = bufferSize;
+        this.pool = pool;
     }
 
 
@@ -50,32 +62,103 @@ public class InputStreamFlux extends Flux<ByteBuffer> {
     public void subscribe(CoreSubscriber<? super ByteBuffer> subscriber) {
         boolean alreadySubscribed = subscribed.getAndSet(true);
         if (alreadySubscribed) {
-            subscriber.onError(new RuntimeException("FOXE-3459870034010402937 - Input stream published can only be subscribed to once."));
+            Operators.error(subscriber, new RuntimeException("FOXE-3459870034010402937 - Input stream published can only be subscribed to once."));
+            return;
         }
 
-        long totalRead = 0;
-        try {
-            int numRead;
-            byte[] buffer = new byte[bufferSize];
-            while ((numRead = is.read(buffer)) != -1) {
-                ByteBuffer bb = ByteBuffer.allocate(numRead);
-                bb.put(buffer, 0, numRead);
-                bb.flip();
-                subscriber.onNext(bb);
-                totalRead += numRead;
+        subscriber.onSubscribe(new InputStreamSubscription(subscriber));
+    }
+
+    private final class InputStreamSubscription implements Subscription {
+
+        final CoreSubscriber<? super ByteBuffer> actual;
+        final ReadableByteChannel channel;
+        final AtomicLong requested = new AtomicLong();
+        volatile boolean cancelled;
+        boolean done;
+        long totalRead;
+
+        InputStreamSubscription(CoreSubscriber<? super ByteBuffer> actual) {
+            this.actual = actual;
+            // A file input stream hands back its own channel so direct buffers are filled without an extra copy.
+            this.channel = Channels.newChannel(is);
+        }
+
+        @Override
+        public void request(long n) {
+            if (!Operators.validate(n)) {
+                return;
             }
-            LOG.debug("Completed reading " + totalRead + " bytes of data from input stream.");
 
-            // For empty files we need to emit an empty buffer
-            if(totalRead == 0) {
-                subscriber.onNext(ByteBuffer.allocate(0));
+            // Only the caller that raises demand from zero drains, others just add to the demand being drained.
+            if (requested.getAndUpdate(current -> Operators.addCap(current, n)) == 0) {
+                drain();
             }
+        }
 
-            // Need to use this rather than subscriber.onComplete() to terminate the flux properly
-            Operators.complete(subscriber);
-        } catch (IOException e) {
-            subscriber.onError(e);
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+
+        private void drain() {
+            long demand = requested.get();
+            while (true) {
+                long emitted = 0;
+                while (emitted != demand) {
+                    if (cancelled || done) {
+                        return;
+                    }
+                    emitNext();
+                    emitted++;
+                }
+
+                if (demand == Long.MAX_VALUE) {
+                    // Unbounded demand never needs to be accounted for.
+                    demand = requested.get();
+                    continue;
+                }
+
+                demand = requested.addAndGet(-emitted);
+                if (demand == 0) {
+                    return;
+                }
+            }
         }
 
+        /**
+         * Read and emit one chunk, completing the flux at the end of the stream.
+         */
+        private void emitNext() {
+            ByteBuffer buffer = pool == null ? ByteBuffer.allocate(bufferSize) : pool.acquire();
+            try {
+                int numRead;
+                do {
+                    numRead = channel.read(buffer);
+                } while (numRead == 0);
+
+                if (numRead == -1) {
+                    done = true;
+                    LOG.debug("Completed reading " + totalRead + " bytes of data from input stream.");
+
+                    // For empty files we need to emit an empty buffer
+                    if (totalRead == 0) {
+                        actual.onNext(buffer.flip());
+                    }
+                    actual.onComplete();
+                    return;
+                }
+
+                totalRead += numRead;
+                actual.onNext(buffer.flip());
+            } catch (IOException e) {
+                done = true;
+                actual.onError(e);
+            } finally {
+                if (pool != null) {
+                    pool.release(buffer);
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,15 @@
+package ninja.foxyv.vsync.react.fs;
+
+/**
+ * The order directories are read in while walking a directory tree.
+ */
+public enum WalkOrder {
+    /**
+     * Read every directory at one depth before the directories below them. Finds the shape of the tree quickly.
+     */
+    BREADTH_FIRST,
+    /**
+     * Read the most recently found directory next. Keeps the number of directories waiting to be read small.
+     */
+    DEPTH_FIRST
+}
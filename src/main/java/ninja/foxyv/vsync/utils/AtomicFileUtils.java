@@ -0,0 +1,74 @@
+package ninja.foxyv.vsync.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Target files are never written in place. The new contents go to a temporary file next to the target which is then
+ * renamed over it, so a crash mid-copy leaves either the old copy or the new one, never a missing or truncated file.
+ */
+public class AtomicFileUtils {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AtomicFileUtils.class);
+
+    /**
+     * The temporary file the new contents of the target are written to. It sits in the same directory as the target so
+     * the rename never crosses devices.
+     */
+    public static File temporaryFile(File targetFile) {
+        return new File(targetFile.getParentFile(), "." + targetFile.getName() + ".vsync-tmp");
+    }
+
+    /**
+     * Rename the temporary file over the target like replace, then give the target the read only flag of the source.
+     * The flag is only set after the rename, Windows refuses to rename over or delete a read only file.
+     */
+    public static void replace(Path temporaryFile, Path targetFile, Path source) {
+        replace(temporaryFile, targetFile);
+        MetadataUtils.preserveReadOnly(source, targetFile);
+    }
+
+    /**
+     * Rename the temporary file over the target in one step. File systems that cannot rename atomically fall back to a
+     * plain replacing move. A read only flag on the old target is cleared first.
+     */
+    public static void replace(Path temporaryFile, Path targetFile) {
+        try {
+            MetadataUtils.clearReadOnly(targetFile);
+            try {
+                Files.move(temporaryFile, targetFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                LOG.debug("Atomic moves are not supported, replacing: " + targetFile.toAbsolutePath());
+                Files.move(temporaryFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            deleteQuietly(temporaryFile);
+            throw new RuntimeException("FOXE-4957088978218335633 - Could not replace file: " + targetFile.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Remove a temporary file left behind by a failed write, logging rather than hiding the original failure.
+     */
+    public static void deleteQuietly(Path temporaryFile) {
+        try {
+            try {
+                Files.deleteIfExists(temporaryFile);
+            } catch (AccessDeniedException e) {
+                // Left read only by an older run.
+                MetadataUtils.clearReadOnly(temporaryFile);
+                Files.deleteIfExists(temporaryFile);
+            }
+        } catch (IOException e) {
+            LOG.warn("FOXE-8642284267498794674 - Could not delete temporary file: " + temporaryFile.toAbsolutePath(), e);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ninja.foxyv.vsync.utils;
+
+public class ChecksumUtils {
+
+    // The reflected Castagnoli polynomial used by CRC32C.
+    private static final long CRC32C_POLYNOMIAL = 0x82F63B78L;
+
+    /**
+     * Combine the CRC32C of two consecutive blocks of data into the CRC32C of the two blocks joined together, without
+     * reading the data again. This is the zlib crc32_combine method with the CRC32C polynomial: the first checksum is
+     * moved past len2 zero bytes with a matrix raised by repeated squaring, costing O(log len2) rather than O(len2).
+     *
+     * @param crc1 The CRC32C of the first block.
+     * @param crc2 The CRC32C of the second block.
+     * @param len2 The length of the second block.
+     * @return The CRC32C of the first block followed by the second block.
+     */
+    public static long combineCrc32c(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // The operator for one zero bit.
+        odd[0] = CRC32C_POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // Two zero bits, then four.
+        gf2MatrixSquare(even, odd);
+        gf2MatrixSquare(odd, even);
+
+        // Apply len2 zero bytes to crc1, the first squaring gives the operator for one zero byte.
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+
+        return (crc1 ^ crc2) & 0xffffffffL;
+    }
+
+    private static long gf2MatrixTimes(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(matrix, matrix[n]);
+        }
+    }
+}
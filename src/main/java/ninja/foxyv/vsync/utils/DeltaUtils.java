@@ -0,0 +1,378 @@
+package ninja.foxyv.vsync.utils;
+
+import ninja.foxyv.vsync.entities.DeltaResult;
+import ninja.foxyv.vsync.entities.FileFingerprint;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * An rsync style delta copy. The old copy of a file is split in to blocks that are indexed by a weak rolling checksum
+ * and a strong hash. The new version is then scanned with the rolling checksum, blocks found in the old copy are copied
+ * from it and only the bytes in between are written from the new version.
+ */
+public class DeltaUtils {
+
+    // 64kb blocks keep the signatures of a 50gb file around 50mb while still finding small changes.
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 64;
+
+    // The rolling sums are kept modulo 2^16. Masking stays correct even when the int arithmetic overflows.
+    private static final int WEAK_MASK = 0xffff;
+
+    /**
+     * Rebuild the source file in the output file, reusing every block of the target file that appears in the source.
+     * <p>
+     * Nothing is written while the source matches the target at the same offsets, so when the source turns out to be
+     * the same as the target the output is never created and the result is marked unchanged.
+     *
+     * @param source    The new version of the file.
+     * @param target    The old copy of the file whose blocks are reused.
+     * @param output    The file to write the rebuilt copy to, it must not be the target. It is preallocated to the size
+     *                  of the source.
+     * @param blockSize The size of the blocks compared.
+     * @return The fingerprint of the source, how many bytes were reused and whether the output was written.
+     */
+    public static DeltaResult deltaCopy(Path source, Path target, Path output, int blockSize) {
+        try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.READ);
+             DeltaWriter writer = new DeltaWriter(targetChannel, output, sourceChannel.size(), blockSize)) {
+            BlockSignatures signatures = BlockSignatures.of(targetChannel, blockSize);
+            FileFingerprint fingerprint = scan(source, sourceChannel, signatures, writer, blockSize);
+            boolean unchanged = writer.finish();
+            return new DeltaResult(fingerprint, writer.matchedBytes, writer.literalBytes, unchanged);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-2192040647496287641 - Could not delta copy file: " + source.toAbsolutePath() + " to: " + output.toAbsolutePath(), e);
+        }
+    }
+
+    private static FileFingerprint scan(Path source, FileChannel sourceChannel, BlockSignatures signatures, DeltaWriter writer, int blockSize) throws IOException {
+        CRC32C checksum = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(blockSize * 16, 1024 * 1024 * 4));
+        byte[] bytes = buffer.array();
+        long length = 0;
+        int filled = 0;
+        int position = 0;
+        int literalStart = 0;
+        boolean endOfFile = false;
+        boolean rolling = false;
+        int a = 0;
+        int b = 0;
+
+        while (true) {
+            // Keep at least one byte past the window loaded so the checksum can roll forward.
+            if (!endOfFile && filled - position <= blockSize) {
+                writer.literal(bytes, literalStart, position - literalStart);
+                System.arraycopy(bytes, position, bytes, 0, filled - position);
+                filled -= position;
+                position = 0;
+                literalStart = 0;
+
+                buffer.clear().position(filled);
+                while (!endOfFile && buffer.hasRemaining()) {
+                    int read = sourceChannel.read(buffer);
+                    if (read == -1) {
+                        endOfFile = true;
+                    } else {
+                        checksum.update(bytes, filled, read);
+                        filled += read;
+                        length += read;
+                    }
+                }
+            }
+
+            if (filled - position < blockSize) {
+                break;
+            }
+
+            if (!rolling) {
+                a = 0;
+                b = 0;
+                for (int i = 0; i < blockSize; i++) {
+                    a += bytes[position + i] & 0xff;
+                    b += (blockSize - i) * (bytes[position + i] & 0xff);
+                }
+                a &= WEAK_MASK;
+                b &= WEAK_MASK;
+                rolling = true;
+            }
+
+            // The window sits at this offset of the rebuilt file once the literal bytes before it are written.
+            long windowOffset = writer.position + (position - literalStart);
+            long match = signatures.find(a | (b << 16), bytes, position, windowOffset, writer.nextMatchOffset());
+            if (match >= 0) {
+                writer.literal(bytes, literalStart, position - literalStart);
+                writer.match(match);
+                position += blockSize;
+                literalStart = position;
+                rolling = false;
+                continue;
+            }
+
+            if (position + blockSize < filled) {
+                int out = bytes[position] & 0xff;
+                int in = bytes[position + blockSize] & 0xff;
+                a = (a - out + in) & WEAK_MASK;
+                b = (b - blockSize * out + a) & WEAK_MASK;
+            } else {
+                rolling = false;
+            }
+            position++;
+        }
+
+        writer.literal(bytes, literalStart, filled - literalStart);
+        return new FileFingerprint(source.getFileName().toString(), checksum, length);
+    }
+
+    /**
+     * The weak checksums and strong hashes of each full block of the old copy. Blocks are chained by weak checksum in
+     * primitive arrays so the signatures of a large file cost a few dozen bytes per block.
+     */
+    private static final class BlockSignatures {
+        final int blockSize;
+        final Map<Integer, Integer> firstBlock = new HashMap<>();
+        final MessageDigest digest = DigestUtils.sha256();
+        int[] nextBlock;
+        long[] strongHigh;
+        long[] strongLow;
+
+        private BlockSignatures(int blockSize, int blocks) {
+            this.blockSize = blockSize;
+            this.nextBlock = new int[blocks];
+            this.strongHigh = new long[blocks];
+            this.strongLow = new long[blocks];
+        }
+
+        static BlockSignatures of(FileChannel channel, int blockSize) throws IOException {
+            int blocks = (int) (channel.size() / blockSize);
+            BlockSignatures signatures = new BlockSignatures(blockSize, blocks);
+            ByteBuffer block = ByteBuffer.allocate(blockSize);
+            for (int index = 0; index < blocks; index++) {
+                block.clear();
+                while (block.hasRemaining() && channel.read(block, (long) index * blockSize + block.position()) != -1) {
+                    // Keep reading until the whole block is loaded
+                }
+                signatures.add(index, block.array());
+            }
+            return signatures;
+        }
+
+        private void add(int index, byte[] block) {
+            int a = 0;
+            int b = 0;
+            for (int i = 0; i < blockSize; i++) {
+                a += block[i] & 0xff;
+                b += (blockSize - i) * (block[i] & 0xff);
+            }
+            int weak = (a & WEAK_MASK) | ((b & WEAK_MASK) << 16);
+
+            byte[] strong = strongHash(block, 0);
+            strongHigh[index] = toLong(strong, 0);
+            strongLow[index] = toLong(strong, 8);
+
+            Integer previous = firstBlock.put(weak, index);
+            nextBlock[index] = previous == null ? -1 : previous;
+        }
+
+        /**
+         * Find a block of the old copy matching the window. Files with repeated blocks hold several matches, the block at
+         * the same offset as the window is preferred so unchanged data stays in place, then the block continuing the
+         * current run of matches.
+         *
+         * @param inPlace   The offset of the window in the rebuilt file.
+         * @param continued The offset that would extend the current run of matched blocks, or -1 when there is none.
+         * @return The offset of a block of the old copy matching the window, or -1 when there is none.
+         */
+        long find(int weak, byte[] window, int offset, long inPlace, long continued) {
+            Integer index = firstBlock.get(weak);
+            if (index == null) {
+                return -1;
+            }
+
+            // Only calculate the strong hash once the cheap weak checksum matches.
+            byte[] strong = strongHash(window, offset);
+            long high = toLong(strong, 0);
+            long low = toLong(strong, 8);
+            if (matches(inPlace, high, low)) {
+                return inPlace;
+            }
+            if (matches(continued, high, low)) {
+                return continued;
+            }
+            for (int i = index; i >= 0; i = nextBlock[i]) {
+                if (strongHigh[i] == high && strongLow[i] == low) {
+                    return (long) i * blockSize;
+                }
+            }
+            return -1;
+        }
+
+        private boolean matches(long blockOffset, long high, long low) {
+            if (blockOffset < 0 || blockOffset % blockSize != 0 || blockOffset / blockSize >= nextBlock.length) {
+                return false;
+            }
+            int i = (int) (blockOffset / blockSize);
+            return strongHigh[i] == high && strongLow[i] == low;
+        }
+
+        private byte[] strongHash(byte[] bytes, int offset) {
+            digest.update(bytes, offset, blockSize);
+            return Arrays.copyOf(digest.digest(), 16);
+        }
+
+        private static long toLong(byte[] bytes, int offset) {
+            return ByteBuffer.wrap(bytes, offset, Long.BYTES).getLong();
+        }
+    }
+
+    /**
+     * Writes the rebuilt file, merging runs of neighbouring matched blocks in to a single channel transfer. The output
+     * is only opened once the source stops matching the target in place, the bytes matched until then are copied over
+     * from the target in one transfer.
+     */
+    private static final class DeltaWriter implements Closeable {
+        final FileChannel targetChannel;
+        final Path output;
+        final long outputSize;
+        final int blockSize;
+        FileChannel outputChannel;
+        boolean inPlace = true;
+        long position;
+        long matchStart = -1;
+        long matchLength;
+        long matchedBytes;
+        long literalBytes;
+
+        DeltaWriter(FileChannel targetChannel, Path output, long outputSize, int blockSize) {
+            this.targetChannel = targetChannel;
+            this.output = output;
+            this.outputSize = outputSize;
+            this.blockSize = blockSize;
+        }
+
+        void match(long offset) throws IOException {
+            if (inPlace && offset == position) {
+                matchedBytes += blockSize;
+                position += blockSize;
+                return;
+            }
+
+            diverge();
+            position += blockSize;
+            if (matchStart >= 0 && matchStart + matchLength == offset) {
+                matchLength += blockSize;
+                return;
+            }
+
+            flush();
+            matchStart = offset;
+            matchLength = blockSize;
+        }
+
+        /**
+         * @return The offset of the old copy that would extend the current run of matched blocks, or -1.
+         */
+        long nextMatchOffset() {
+            return matchStart < 0 ? -1 : matchStart + matchLength;
+        }
+
+        void literal(byte[] bytes, int offset, int length) throws IOException {
+            if (length <= 0) {
+                return;
+            }
+
+            // The short last block is never in the signatures, compare it with the target directly.
+            if (inPlace && matchesTarget(bytes, offset, length)) {
+                matchedBytes += length;
+                position += length;
+                return;
+            }
+
+            diverge();
+            flush();
+            ByteBuffer literal = ByteBuffer.wrap(bytes, offset, length);
+            while (literal.hasRemaining()) {
+                outputChannel.write(literal);
+            }
+            literalBytes += length;
+            position += length;
+        }
+
+        /**
+         * Write out the last run of matched blocks.
+         *
+         * @return True when the source was the same as the target and nothing was written.
+         */
+        boolean finish() throws IOException {
+            if (inPlace && position == targetChannel.size()) {
+                return true;
+            }
+
+            diverge();
+            flush();
+            outputChannel.truncate(outputChannel.position());
+            return false;
+        }
+
+        private boolean matchesTarget(byte[] bytes, int offset, int length) throws IOException {
+            if (position + length > targetChannel.size()) {
+                return false;
+            }
+
+            ByteBuffer existing = ByteBuffer.allocate(length);
+            while (existing.hasRemaining() && targetChannel.read(existing, position + existing.position()) != -1) {
+                // Keep reading until the whole range is loaded
+            }
+            return Arrays.equals(existing.array(), 0, existing.position(), bytes, offset, offset + length);
+        }
+
+        /**
+         * Open the output and copy the prefix that matched the target in place.
+         */
+        private void diverge() throws IOException {
+            if (!inPlace) {
+                return;
+            }
+
+            inPlace = false;
+            outputChannel = FileChannelUtils.openPreallocated(output, outputSize);
+            transfer(0, position);
+        }
+
+        private void flush() throws IOException {
+            if (matchStart < 0) {
+                return;
+            }
+
+            transfer(matchStart, matchLength);
+            matchedBytes += matchLength;
+            matchStart = -1;
+        }
+
+        private void transfer(long start, long length) throws IOException {
+            long transferred = 0;
+            while (transferred < length) {
+                long count = targetChannel.transferTo(start + transferred, length - transferred, outputChannel);
+                if (count <= 0) {
+                    throw new IOException("FOXE-1233429272550712298 - The old copy was truncated while it was being reused.");
+                }
+                transferred += count;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (outputChannel != null) {
+                outputChannel.close();
+            }
+        }
+    }
+}
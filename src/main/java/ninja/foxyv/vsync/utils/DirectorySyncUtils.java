@@ -1,22 +1,56 @@
 package ninja.foxyv.vsync.utils;
 
+import ninja.foxyv.vsync.SyncSchedulers;
+import ninja.foxyv.vsync.entities.ChecksumValue;
 import ninja.foxyv.vsync.entities.DirectoryFingerprint;
 import ninja.foxyv.vsync.entities.FileFingerprint;
+import ninja.foxyv.vsync.entities.RangeChecksum;
+import ninja.foxyv.vsync.entities.RangedFingerprint;
 import ninja.foxyv.vsync.entities.SHA256Hash;
+import ninja.foxyv.vsync.index.FingerprintIndex;
+import ninja.foxyv.vsync.index.MerkleIndex;
 import ninja.foxyv.vsync.react.fs.FingerprintMono;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
 
 public class DirectorySyncUtils {
+
+    // Files of 64mb or more are fingerprinted through memory mapping rather than streamed through heap buffers.
+    public static final long MAPPED_FINGERPRINT_THRESHOLD = 1024 * 1024 * 64;
+
+    // Files of 1gb or more are split in to ranges that are hashed on several threads at once.
+    public static final long PARALLEL_FINGERPRINT_THRESHOLD = 1024L * 1024 * 1024;
+
+    // 64mb ranges give a 100gb file 1600 ranges, plenty to keep every core busy while keeping the range list small.
+    public static final long DEFAULT_RANGE_SIZE = 1024 * 1024 * 64;
+
     /**
      * Calculate fingerprints for the passed directory and it's subdirectories. Returning ONLY the passed directory fingerprint.
      *
@@ -24,60 +58,295 @@ public class DirectorySyncUtils {
      * @return A mono that, when subscribed to, will provide the fingerprint for the directory passed.
      */
     public static Mono<DirectoryFingerprint> fingerprintDirectory(File aDirectory) {
+        return fingerprintDirectory(aDirectory, null, null);
+    }
 
-        List<File> children = Arrays.asList(Objects.requireNonNull(aDirectory.listFiles(), "FOXE-7448228588131654119 - Could not list files for directory: " + aDirectory.getAbsolutePath()));
+    /**
+     * Calculate fingerprints for the passed directory and it's subdirectories, reusing the fingerprints recorded in the
+     * fingerprint index for files that have not changed. The fingerprint of every directory is recorded as a node of the
+     * Merkle index, so later syncs can compare whole subtrees by their hash.
+     *
+     * @param aDirectory       The directory to calculate the fingerprint for.
+     * @param fingerprintIndex The fingerprint index to check and update, or null to always read the files.
+     * @param merkleIndex      The Merkle index to record the directory fingerprints in, or null.
+     * @return A mono that, when subscribed to, will provide the fingerprint for the directory passed.
+     */
+    public static Mono<DirectoryFingerprint> fingerprintDirectory(File aDirectory, FingerprintIndex fingerprintIndex, MerkleIndex merkleIndex) {
+        return fingerprintDirectory(aDirectory, fingerprintIndex, merkleIndex, SyncSchedulers.of(Schedulers.immediate()));
+    }
 
-        // Collect the subdirectory fingerprints of the subdirectories
-        Mono<List<DirectoryFingerprint>> subdirectoryFingerprints = Flux.fromIterable(children)
-                .filter(File::isDirectory)
-                .flatMap(DirectorySyncUtils::fingerprintDirectory)
+    /**
+     * Calculate fingerprints for the passed directory and it's subdirectories like fingerprintDirectory, listing the
+     * directories on the I/O scheduler of their device and fingerprinting the files on the hash scheduler.
+     */
+    public static Mono<DirectoryFingerprint> fingerprintDirectory(File aDirectory, FingerprintIndex fingerprintIndex, MerkleIndex merkleIndex, SyncSchedulers schedulers) {
+        return Mono.defer(() -> fingerprintTree(aDirectory, fingerprintIndex, merkleIndex, schedulers.io(aDirectory.toPath()), schedulers.hash()));
+    }
+
+    private static Mono<DirectoryFingerprint> fingerprintTree(File aDirectory, FingerprintIndex fingerprintIndex, MerkleIndex merkleIndex, Scheduler ioScheduler, Scheduler hashScheduler) {
+        return fingerprintNode(aDirectory, subdirectory -> fingerprintTree(subdirectory, fingerprintIndex, merkleIndex, ioScheduler, hashScheduler),
+                fingerprintIndex, merkleIndex, ioScheduler, hashScheduler);
+    }
+
+    /**
+     * Bring the Merkle tree below the root up to date after the passed paths changed. Only the directories holding a
+     * changed path and their ancestors are listed again, every other subdirectory keeps the node already recorded for it.
+     * Changed directories, and directories without a current node, are fingerprinted in full.
+     *
+     * @param root             The root of the tree the Merkle index holds nodes for.
+     * @param changedPaths     The files and directories created, modified or deleted since the tree was fingerprinted.
+     * @param fingerprintIndex The fingerprint index to check and update, or null to always read the files.
+     * @param merkleIndex      The Merkle index to update.
+     * @return A mono that, when subscribed to, will provide the updated fingerprint for the root.
+     */
+    public static Mono<DirectoryFingerprint> updateDirectoryFingerprint(File root, Collection<Path> changedPaths, FingerprintIndex fingerprintIndex, MerkleIndex merkleIndex) {
+        Path rootPath = root.toPath().toAbsolutePath().normalize();
+        Set<Path> changedDirectories = new HashSet<>();
+        Set<Path> staleDirectories = new HashSet<>();
+        for (Path changedPath : changedPaths) {
+            Path path = changedPath.toAbsolutePath().normalize();
+            if (!path.startsWith(rootPath)) {
+                continue;
+            }
+
+            if (Files.isDirectory(path)) {
+                changedDirectories.add(path);
+            }
+
+            for (Path ancestor = path.equals(rootPath) ? path : path.getParent(); ancestor != null && ancestor.startsWith(rootPath); ancestor = ancestor.getParent()) {
+                staleDirectories.add(ancestor);
+            }
+        }
+
+        if (changedDirectories.contains(rootPath)) {
+            return fingerprintDirectory(root, fingerprintIndex, merkleIndex);
+        }
+
+        if (staleDirectories.isEmpty()) {
+            return Mono.fromCallable(() -> recordedFingerprint(rootPath, merkleIndex))
+                    .flatMap(recorded -> recorded.map(Mono::just).orElseGet(() -> fingerprintDirectory(root, fingerprintIndex, merkleIndex)));
+        }
+
+        // The deepest directories are updated first so their parents find their new nodes, the root is updated last.
+        List<Path> ordered = staleDirectories.stream()
+                .sorted(Comparator.comparingInt(Path::getNameCount).reversed())
                 .collect(Collectors.toList());
 
-        // Collect the file fingerprints for the files in the directory
-        Mono<List<FileFingerprint>> fileFingerprints = Flux.fromIterable(children)
-                .filter(File::isFile)
-                .flatMap(DirectorySyncUtils::fingerprintFile)
-                .collectList();
+        Function<File, Mono<DirectoryFingerprint>> subdirectoryFingerprint = subdirectory -> {
+            Path path = subdirectory.toPath().toAbsolutePath().normalize();
+            if (changedDirectories.contains(path) && !staleDirectories.contains(path)) {
+                return fingerprintDirectory(subdirectory, fingerprintIndex, merkleIndex);
+            }
+            return Mono.fromCallable(() -> recordedFingerprint(path, merkleIndex))
+                    .flatMap(recorded -> recorded.map(Mono::just).orElseGet(() -> fingerprintDirectory(subdirectory, fingerprintIndex, merkleIndex)));
+        };
+
+        return Flux.fromIterable(ordered)
+                // Directories that were deleted are dropped from the listing of their parent.
+                .filter(Files::isDirectory)
+                .concatMap(directory -> fingerprintNode(directory.toFile(), subdirectoryFingerprint, fingerprintIndex, merkleIndex, Schedulers.immediate(), Schedulers.immediate()))
+                .takeLast(1)
+                .next();
+    }
+
+    /**
+     * Fingerprint a single directory from the fingerprints of its files and subdirectories, recording it in the Merkle
+     * index when there is one.
+     */
+    private static Mono<DirectoryFingerprint> fingerprintNode(File aDirectory, Function<File, Mono<DirectoryFingerprint>> subdirectoryFingerprint, FingerprintIndex fingerprintIndex, MerkleIndex merkleIndex,
+                                                              Scheduler ioScheduler, Scheduler hashScheduler) {
+        return Mono.defer(() -> {
+            // The attributes are read before listing so a directory changed while it is fingerprinted is refreshed next time.
+            Optional<BasicFileAttributes> attributes = merkleIndex == null ? Optional.empty() : MetadataUtils.readAttributes(aDirectory.toPath());
+            long listingHash = merkleIndex == null ? 0 : listingHash(aDirectory.toPath(), subdirectory -> {
+            });
+
+            File[] children = Objects.requireNonNull(aDirectory.listFiles(), "FOXE-7448228588131654119 - Could not list files for directory: " + aDirectory.getAbsolutePath());
+            Arrays.sort(children, Comparator.comparing(File::getName));
 
-        return Mono.zip(subdirectoryFingerprints, fileFingerprints).map(t2 -> calculateFingerprint(aDirectory.getName(), t2.getT1(), t2.getT2()));
+            // Subdirectories and files are digested apart, each in name order as their fingerprints complete, so only the
+            // fingerprints still being waited on are held rather than a list of every one.
+            Mono<byte[]> subdirectoryDigest = Flux.fromArray(children)
+                    .filter(File::isDirectory)
+                    .flatMapSequential(subdirectoryFingerprint)
+                    .reduceWith(DigestUtils::sha256, (sha256, fingerprint) -> {
+                        sha256.update(fingerprint.directoryName().getBytes(StandardCharsets.UTF_16));
+                        sha256.update(fingerprint.hash().value());
+                        return sha256;
+                    })
+                    .map(MessageDigest::digest);
+
+            Mono<byte[]> fileDigest = Flux.fromArray(children)
+                    .filter(File::isFile)
+                    .flatMapSequential(file -> fingerprintFile(file, fingerprintIndex, hashScheduler).subscribeOn(hashScheduler))
+                    .reduceWith(DigestUtils::sha256, (sha256, fingerprint) -> {
+                        sha256.update(fingerprint.filename().getBytes(StandardCharsets.UTF_16));
+                        sha256.update(ByteBuffer.allocate(Long.BYTES).putLong(fingerprint.checksum().getValue()).array());
+                        return sha256;
+                    })
+                    .map(MessageDigest::digest);
+
+            return Mono.zip(subdirectoryDigest, fileDigest)
+                    .map(t2 -> {
+                        MessageDigest sha256 = DigestUtils.sha256();
+                        sha256.update(t2.getT1());
+                        sha256.update(t2.getT2());
+                        return new DirectoryFingerprint(aDirectory.getName(), new SHA256Hash(sha256.digest()));
+                    })
+                    .doOnNext(fingerprint -> attributes.ifPresent(attrs -> merkleIndex.record(aDirectory.toPath(), attrs, listingHash, fingerprint)));
+        }).subscribeOn(ioScheduler);
     }
 
     /**
-     * Take the subdirectory fingerprints and the file fingerprints, then calculate a fingerprint for the directory.
+     * Hash the name, size and last modified time of every entry in the directory without reading any contents, see
+     * MerkleIndex.entryHash. Links are hashed as entries, they are not followed.
      *
-     * @param subdirectoryFingerprints The fingerprints of subdirectories.
-     * @param fileFingerprints         The fingerprints of files in this directory.
-     * @return The calculated fingerprint.
+     * @param directory      The directory to list.
+     * @param subdirectories Given every subdirectory found in the listing.
+     * @return The listing hash of the directory.
      */
-    private static DirectoryFingerprint calculateFingerprint(String name, List<DirectoryFingerprint> subdirectoryFingerprints, List<FileFingerprint> fileFingerprints) {
-        MessageDigest sha256 = DigestUtils.sha256();
-
-        // Digest the subdirectory fingerprints after sorting by their names.
-        subdirectoryFingerprints.stream()
-                .sorted(Comparator.comparing(DirectoryFingerprint::directoryName))
-                .forEach(directoryFingerprint -> {
-                    sha256.update(directoryFingerprint.directoryName().getBytes(StandardCharsets.UTF_16));
-                    sha256.update(directoryFingerprint.hash().value());
-                });
-        fileFingerprints.stream()
-                .sorted(Comparator.comparing(FileFingerprint::filename))
-                .forEach(fingerprint -> {
-                    sha256.update(fingerprint.filename().getBytes(StandardCharsets.UTF_16));
-                    sha256.update(("" + fingerprint.checksum().getValue()).getBytes(StandardCharsets.UTF_8));
-                });
+    public static long listingHash(Path directory, Consumer<Path> subdirectories) {
+        long listing = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (Path entry : entries) {
+                BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                listing += MerkleIndex.entryHash(entry.getFileName().toString(), attributes);
+                if (attributes.isDirectory()) {
+                    subdirectories.accept(entry);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-7669185012446606324 - Could not list directory: " + directory.toAbsolutePath(), e);
+        }
+        return listing;
+    }
 
-        return new DirectoryFingerprint(name, new SHA256Hash(sha256.digest()));
+    private static Optional<DirectoryFingerprint> recordedFingerprint(Path directory, MerkleIndex merkleIndex) {
+        return MetadataUtils.readAttributes(directory).flatMap(attributes -> merkleIndex.lookup(directory, attributes));
     }
 
+    /**
+     * Fingerprint contents that have already been read in to memory, giving the same checksum as reading the file.
+     */
+    public static FileFingerprint fingerprintBytes(String filename, byte[] contents) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(contents);
+        return new FileFingerprint(filename, checksum, contents.length);
+    }
 
     public static Mono<FileFingerprint> fingerprintFile(File aFile) {
+        return fingerprintFile(aFile, Schedulers.boundedElastic());
+    }
+
+    /**
+     * Fingerprint the file, hashing the ranges of a very large file in parallel on the scheduler passed.
+     *
+     * @param aFile         The file to fingerprint.
+     * @param hashScheduler The scheduler the ranges of a very large file are hashed on, usually the hash scheduler of the
+     *                      sync so parallel hashing is bounded by the same pool as the rest of the checksums.
+     * @return A mono that, when subscribed to, will provide the fingerprint for the file passed.
+     */
+    public static Mono<FileFingerprint> fingerprintFile(File aFile, Scheduler hashScheduler) {
         if (aFile == null) {
             return Mono.empty();
         }
 
+        long length = aFile.length();
+        if (length >= PARALLEL_FINGERPRINT_THRESHOLD) {
+            return fingerprintRanges(aFile, DEFAULT_RANGE_SIZE, hashScheduler).map(RangedFingerprint::fingerprint);
+        }
+
+        // Large files are mapped into memory so the checksum runs over the mapped pages without copying them.
+        if (length >= MAPPED_FINGERPRINT_THRESHOLD) {
+            return Mono.fromCallable(() -> FileChannelUtils.fingerprintMapped(aFile.toPath(), FileChannelUtils.DEFAULT_MAP_WINDOW_SIZE));
+        }
+
         return FingerprintMono.fromFileBytesFlux(aFile.getName(), ReactiveFileUtils.streamFile(aFile));
     }
 
+    /**
+     * Fingerprint the file by splitting it in to ranges that are checksummed concurrently with positional reads. The
+     * range checksums are combined in to the CRC32C of the whole file, so the fingerprint is the same as hashing the file
+     * from start to end whatever the range size.
+     *
+     * @param aFile     The file to fingerprint.
+     * @param rangeSize The number of bytes in each range, the last range holds whatever is left.
+     * @param scheduler The scheduler the ranges are read on, it must allow blocking.
+     * @return A mono that, when subscribed to, will provide the fingerprint of the file and of each range.
+     */
+    public static Mono<RangedFingerprint> fingerprintRanges(File aFile, long rangeSize, Scheduler scheduler) {
+        Path path = aFile.toPath();
+        return Mono.using(
+                () -> FileChannel.open(path, StandardOpenOption.READ),
+                channel -> {
+                    long length;
+                    try {
+                        length = channel.size();
+                    } catch (IOException e) {
+                        return Mono.error(new RuntimeException("FOXE-2573943935322517182 - Could not read the size of file: " + aFile.getAbsolutePath(), e));
+                    }
+                    int rangeCount = (int) Math.max(1, (length + rangeSize - 1) / rangeSize);
+                    return Flux.range(0, rangeCount)
+                            .flatMapSequential(index -> Mono.fromCallable(() -> {
+                                long offset = index * rangeSize;
+                                return FileChannelUtils.checksumRange(channel, offset, Math.min(rangeSize, length - offset), FileChannelUtils.COPY_BUFFER_POOL);
+                            }).subscribeOn(scheduler), Runtime.getRuntime().availableProcessors())
+                            .collectList()
+                            .map(ranges -> {
+                                long crc = 0;
+                                for (RangeChecksum range : ranges) {
+                                    crc = ChecksumUtils.combineCrc32c(crc, range.checksum(), range.length());
+                                }
+                                return new RangedFingerprint(new FileFingerprint(aFile.getName(), new ChecksumValue(crc), length), ranges);
+                            });
+                },
+                channel -> {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        throw new RuntimeException("FOXE-467292269896455671 - Could not close file: " + aFile.getAbsolutePath(), e);
+                    }
+                });
+    }
+
+    /**
+     * Fingerprint the file, reusing the fingerprint recorded in the index when the size, last modified time and file key
+     * of the file have not changed. Newly calculated fingerprints are recorded in the index.
+     *
+     * @param aFile The file to fingerprint.
+     * @param index The fingerprint index to check and update, or null to always read the file.
+     * @return A mono that, when subscribed to, will provide the fingerprint for the file passed.
+     */
+    public static Mono<FileFingerprint> fingerprintFile(File aFile, FingerprintIndex index) {
+        return fingerprintFile(aFile, index, Schedulers.boundedElastic());
+    }
+
+    /**
+     * Fingerprint the file, reusing the fingerprint recorded in the index when the size, last modified time and file key
+     * of the file have not changed. Newly calculated fingerprints are recorded in the index.
+     *
+     * @param aFile         The file to fingerprint.
+     * @param index         The fingerprint index to check and update, or null to always read the file.
+     * @param hashScheduler The scheduler the ranges of a very large file are hashed on.
+     * @return A mono that, when subscribed to, will provide the fingerprint for the file passed.
+     */
+    public static Mono<FileFingerprint> fingerprintFile(File aFile, FingerprintIndex index, Scheduler hashScheduler) {
+        if (aFile == null) {
+            return Mono.empty();
+        }
+
+        if (index == null) {
+            return fingerprintFile(aFile, hashScheduler);
+        }
+
+        Path path = aFile.toPath();
+        return Mono.fromCallable(() -> Files.readAttributes(path, BasicFileAttributes.class))
+                .flatMap(attributes -> index.lookup(path, attributes)
+                        .map(Mono::just)
+                        // The attributes are read before the contents so a file modified while hashing is re-read next time.
+                        .orElseGet(() -> fingerprintFile(aFile, hashScheduler).doOnNext(fingerprint -> index.record(path, attributes, fingerprint))));
+    }
+
     public static Mono<FileFingerprint> fingerprintFile(File aFile, int bufferSize) {
         if (aFile == null) {
             return Mono.empty();
@@ -0,0 +1,410 @@
+package ninja.foxyv.vsync.utils;
+
+import ninja.foxyv.vsync.entities.FileFingerprint;
+import ninja.foxyv.vsync.entities.RangeChecksum;
+import ninja.foxyv.vsync.react.fs.ByteBufferPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+public class FileChannelUtils {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileChannelUtils.class);
+
+    // 64 1mb direct buffers for copies that hash the data as it is written.
+    public static final ByteBufferPool COPY_BUFFER_POOL = new ByteBufferPool(1024 * 1024, 64, true);
+
+    // Map 256mb of the file at a time, large enough to avoid remapping overhead and small enough for 32-bit address space.
+    public static final long DEFAULT_MAP_WINDOW_SIZE = 1024 * 1024 * 256;
+
+    // Transfer 8mb at a time so progress is reported regularly on large files.
+    public static final long DEFAULT_TRANSFER_CHUNK_SIZE = 1024 * 1024 * 8;
+
+    // Sample the head, the tail and 6 blocks between them, 64kb each, before hashing whole files.
+    public static final int DEFAULT_MIDDLE_SAMPLES = 6;
+    public static final int DEFAULT_SAMPLE_SIZE = 1024 * 64;
+
+    /**
+     * Copy the source file to the target file with FileChannel.transferTo. The target is created or replaced, and
+     * preallocated to the size of the source before the first byte is written.
+     *
+     * @param source    The file to copy.
+     * @param target    The file to write.
+     * @param chunkSize The largest number of bytes moved by a single transfer.
+     * @param onChunk   Called with the number of bytes moved after each transfer completes.
+     * @return The total number of bytes copied.
+     */
+    public static long transfer(Path source, Path target, long chunkSize, LongConsumer onChunk) {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = openPreallocated(target, in.size())) {
+            long position = 0;
+            while (true) {
+                long transferred = in.transferTo(position, chunkSize, out);
+                // Re-check the size when nothing moved in case the source was truncated while it was being copied.
+                if (transferred <= 0 && position >= in.size()) {
+                    break;
+                }
+                position += transferred;
+                onChunk.accept(transferred);
+            }
+            out.truncate(position);
+            return position;
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-3598845452653966972 - Could not transfer file: " + source.toAbsolutePath() + " to: " + target.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Copy the source file to the target file with FileChannel.transferTo, continuing a copy whose first bytes are
+     * already in the target. Every checkpoint interval the target is forced to the storage device, then the checkpoint
+     * callback is told how many bytes will survive a crash, so the copy can be resumed from there.
+     *
+     * @param source             The file to copy.
+     * @param target             The file to write. It is created and preallocated when starting from zero, and must
+     *                           hold the bytes before the offset otherwise.
+     * @param offset             The number of bytes already copied.
+     * @param chunkSize          The largest number of bytes moved by a single transfer.
+     * @param checkpointInterval The number of bytes copied between checkpoints.
+     * @param onChunk            Called with the number of bytes moved after each transfer completes.
+     * @param onCheckpoint       Called with the number of bytes forced to the device after each checkpoint.
+     * @return The length of the target.
+     */
+    public static long transferResumable(Path source, Path target, long offset, long chunkSize, long checkpointInterval, LongConsumer onChunk, LongConsumer onCheckpoint) {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = offset == 0 ? openPreallocated(target, in.size()) : FileChannel.open(target, StandardOpenOption.WRITE)) {
+            // transferTo writes at the position of the target channel.
+            out.position(offset);
+            long position = offset;
+            long checkpoint = offset + checkpointInterval;
+            while (true) {
+                long transferred = in.transferTo(position, Math.min(chunkSize, checkpoint - position), out);
+                if (transferred <= 0 && position >= in.size()) {
+                    break;
+                }
+                position += transferred;
+                onChunk.accept(transferred);
+                if (position >= checkpoint) {
+                    out.force(false);
+                    onCheckpoint.accept(position);
+                    checkpoint = position + checkpointInterval;
+                }
+            }
+            out.truncate(position);
+            return position;
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-7747093446393685721 - Could not transfer file: " + source.toAbsolutePath() + " to: " + target.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Compare a range of two files byte for byte.
+     *
+     * @return True when both files hold the range and its bytes are the same.
+     */
+    public static boolean rangesMatch(Path first, Path second, long offset, int length) {
+        try (FileChannel firstChannel = FileChannel.open(first, StandardOpenOption.READ);
+             FileChannel secondChannel = FileChannel.open(second, StandardOpenOption.READ)) {
+            if (firstChannel.size() < offset + length || secondChannel.size() < offset + length) {
+                return false;
+            }
+            ByteBuffer firstBuffer = ByteBuffer.allocate(length);
+            ByteBuffer secondBuffer = ByteBuffer.allocate(length);
+            return readFully(firstChannel, firstBuffer, offset) && readFully(secondChannel, secondBuffer, offset)
+                    && firstBuffer.flip().equals(secondBuffer.flip());
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-2970456251764624003 - Could not compare: " + first.toAbsolutePath() + " with: " + second.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Compare two files byte for byte, a block at a time.
+     *
+     * @return True when the files are the same size and hold the same bytes.
+     */
+    public static boolean contentsMatch(Path first, Path second) {
+        try (FileChannel firstChannel = FileChannel.open(first, StandardOpenOption.READ);
+             FileChannel secondChannel = FileChannel.open(second, StandardOpenOption.READ)) {
+            long length = firstChannel.size();
+            if (length != secondChannel.size()) {
+                return false;
+            }
+
+            ByteBuffer firstBuffer = ByteBuffer.allocate(1024 * 1024);
+            ByteBuffer secondBuffer = ByteBuffer.allocate(1024 * 1024);
+            for (long offset = 0; offset < length; offset += firstBuffer.capacity()) {
+                firstBuffer.clear().limit((int) Math.min(firstBuffer.capacity(), length - offset));
+                secondBuffer.clear().limit(firstBuffer.limit());
+                if (!readFully(firstChannel, firstBuffer, offset) || !readFully(secondChannel, secondBuffer, offset)
+                        || !firstBuffer.flip().equals(secondBuffer.flip())) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-5616376885716296244 - Could not compare: " + first.toAbsolutePath() + " with: " + second.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Compare samples of two files at the same fixed offsets: the head, the tail and blocks spread evenly between them.
+     * Samples that differ prove the contents differ without reading the rest of either file, samples that match prove
+     * nothing and the files still have to be compared in full.
+     *
+     * @param middleSamples The number of blocks sampled between the head and the tail.
+     * @param sampleSize    The size of each sample.
+     * @return True when the files are the same size and every sample matches.
+     */
+    public static boolean samplesMatch(Path first, Path second, int middleSamples, int sampleSize) {
+        try (FileChannel firstChannel = FileChannel.open(first, StandardOpenOption.READ);
+             FileChannel secondChannel = FileChannel.open(second, StandardOpenOption.READ)) {
+            long length = firstChannel.size();
+            if (length != secondChannel.size()) {
+                return false;
+            }
+
+            ByteBuffer firstBuffer = ByteBuffer.allocate(sampleSize);
+            ByteBuffer secondBuffer = ByteBuffer.allocate(sampleSize);
+            long last = Math.max(0, length - sampleSize);
+            for (int sample = 0; sample <= middleSamples + 1; sample++) {
+                long offset = last * sample / (middleSamples + 1);
+                firstBuffer.clear().limit((int) Math.min(sampleSize, length - offset));
+                secondBuffer.clear().limit(firstBuffer.limit());
+                if (!readFully(firstChannel, firstBuffer, offset) || !readFully(secondChannel, secondBuffer, offset)
+                        || !firstBuffer.flip().equals(secondBuffer.flip())) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-1297803605407860091 - Could not sample: " + first.toAbsolutePath() + " and: " + second.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * @return False when the file ended before the buffer was filled.
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copy the source file to the target file and calculate the CRC32C fingerprint of the source from the same buffers
+     * that are written, so the fingerprint costs no extra reads. The target is created or replaced, and preallocated to
+     * the size of the source before the first byte is written.
+     *
+     * @param source  The file to copy.
+     * @param target  The file to write.
+     * @param pool    The pool the copy buffer is leased from.
+     * @param onChunk Called with the number of bytes written after each buffer is written.
+     * @return The fingerprint of the bytes written to the target.
+     */
+    public static FileFingerprint copyAndFingerprint(Path source, Path target, ByteBufferPool pool, LongConsumer onChunk) {
+        ByteBuffer buffer = pool.acquire();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = openPreallocated(target, in.size())) {
+            CRC32C checksum = new CRC32C();
+            long length = 0;
+            while (in.read(buffer) != -1) {
+                buffer.flip();
+                int chunk = buffer.remaining();
+
+                // Checksum a view so the buffer position is left for the write.
+                checksum.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+
+                length += chunk;
+                onChunk.accept(chunk);
+                buffer.clear();
+            }
+            out.truncate(length);
+            return new FileFingerprint(source.getFileName().toString(), checksum, length);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-412937012139936530 - Could not copy file: " + source.toAbsolutePath() + " to: " + target.toAbsolutePath(), e);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Copy the source file to the target file like copyAndFingerprint, continuing a copy whose first bytes are already in
+     * the target and checkpointing like transferResumable. The bytes already copied are checksummed from the target, so
+     * the fingerprint covers the whole file without reading its start from the source again.
+     *
+     * @param offset             The number of bytes already copied.
+     * @param checkpointInterval The number of bytes copied between checkpoints.
+     * @param onCheckpoint       Called with the number of bytes forced to the device after each checkpoint.
+     * @return The fingerprint of the whole file.
+     */
+    public static FileFingerprint copyAndFingerprintResumable(Path source, Path target, long offset, ByteBufferPool pool, long checkpointInterval,
+                                                              LongConsumer onChunk, LongConsumer onCheckpoint) {
+        ByteBuffer buffer = pool.acquire();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = offset == 0 ? openPreallocated(target, in.size()) : FileChannel.open(target, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            CRC32C checksum = new CRC32C();
+            long position = 0;
+            while (position < offset) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), offset - position));
+                if (out.read(buffer, position) == -1) {
+                    throw new IOException("FOXE-8750324797663230450 - The partial copy is shorter than its checkpoint.");
+                }
+                buffer.flip();
+                position += buffer.remaining();
+                checksum.update(buffer);
+            }
+
+            long checkpoint = offset + checkpointInterval;
+            buffer.clear();
+            while (in.read(buffer, position) != -1) {
+                buffer.flip();
+                int chunk = buffer.remaining();
+                checksum.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    out.write(buffer, position + (chunk - buffer.remaining()));
+                }
+
+                position += chunk;
+                onChunk.accept(chunk);
+                if (position >= checkpoint) {
+                    out.force(false);
+                    onCheckpoint.accept(position);
+                    checkpoint = position + checkpointInterval;
+                }
+                buffer.clear();
+            }
+            out.truncate(position);
+            return new FileFingerprint(source.getFileName().toString(), checksum, position);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-3855373775033184167 - Could not copy file: " + source.toAbsolutePath() + " to: " + target.toAbsolutePath(), e);
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Open a file for writing with its length set to the expected size up front, so the file system can allocate the
+     * file in one contiguous run instead of growing it a buffer at a time. NTFS reserves the clusters without writing
+     * them, most Unix file systems leave the file sparse until it is written. Anything already in the file is
+     * overwritten, truncate the channel to the bytes written once done in case fewer arrived than expected.
+     *
+     * @param target The file to write, created when it does not exist.
+     * @param length The number of bytes expected to be written.
+     */
+    public static FileChannel openPreallocated(Path target, long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(target.toFile(), "rw");
+        try {
+            file.setLength(length);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        // Closing the channel closes the file.
+        return file.getChannel();
+    }
+
+    /**
+     * Calculate the CRC32C fingerprint of a file by mapping it into memory in windows. The checksum is updated directly
+     * from the mapped memory so the bytes are never copied into heap buffers.
+     *
+     * @param file       The file to fingerprint.
+     * @param windowSize The number of bytes mapped at a time.
+     * @return The fingerprint of the file.
+     */
+    public static FileFingerprint fingerprintMapped(Path file, long windowSize) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            CRC32C checksum = new CRC32C();
+            long length = channel.size();
+            for (long position = 0; position < length; position += windowSize) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(windowSize, length - position));
+                try {
+                    checksum.update(window);
+                } finally {
+                    unmap(window);
+                }
+            }
+            return new FileFingerprint(file.getFileName().toString(), checksum, length);
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-511178399462616956 - Could not fingerprint mapped file: " + file.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Calculate the CRC32C of one range of a file with positional reads, so several ranges of the same channel can be
+     * checksummed by different threads at the same time.
+     *
+     * @param channel The channel of the file, positional reads do not move its position.
+     * @param offset  The position of the first byte of the range.
+     * @param length  The number of bytes in the range.
+     * @param pool    The pool the read buffer is leased from.
+     * @return The checksum of the range.
+     */
+    public static RangeChecksum checksumRange(FileChannel channel, long offset, long length, ByteBufferPool pool) throws IOException {
+        ByteBuffer buffer = pool.acquire();
+        try {
+            CRC32C checksum = new CRC32C();
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read == -1) {
+                    throw new IOException("FOXE-1589470679282994011 - The file was truncated while it was being fingerprinted.");
+                }
+                buffer.flip();
+                checksum.update(buffer);
+                position += read;
+            }
+            return new RangeChecksum(offset, length, checksum.getValue());
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    /**
+     * Free the memory of a direct buffer straight away rather than when the buffer is garbage collected. The buffer must
+     * not be used afterwards.
+     */
+    public static void freeDirectBuffer(ByteBuffer buffer) {
+        unmap(buffer);
+    }
+
+    /**
+     * Release a mapping straight away rather than waiting for the garbage collector. Windows will not let a file be
+     * deleted or replaced while it is mapped, which would break replacing a target right after fingerprinting it.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Could not unmap buffer, leaving it to the garbage collector.", e);
+        }
+    }
+}
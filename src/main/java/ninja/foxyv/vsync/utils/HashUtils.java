@@ -0,0 +1,47 @@
+package ninja.foxyv.vsync.utils;
+
+import java.nio.file.Path;
+
+public class HashUtils {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Calculate a stable 64-bit hash of a path. The value is persisted in fingerprint indexes, so it must never depend on
+     * the JVM (String.hashCode is only 32 bits and Path.hashCode is platform specific).
+     *
+     * @param path The path to hash.
+     * @return A non-zero 64-bit hash of the absolute path.
+     */
+    public static long pathHash(Path path) {
+        return hash64(path.toAbsolutePath().normalize().toString());
+    }
+
+    /**
+     * FNV-1a over the UTF-16 characters of the string followed by a murmur3 finalizer to spread the bits. Zero is reserved
+     * to mark empty slots in hash tables so it is never returned.
+     */
+    public static long hash64(String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            hash ^= (c & 0xff);
+            hash *= FNV_PRIME;
+            hash ^= (c >>> 8);
+            hash *= FNV_PRIME;
+        }
+
+        hash = mix64(hash);
+        return hash == 0 ? 1 : hash;
+    }
+
+    public static long mix64(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
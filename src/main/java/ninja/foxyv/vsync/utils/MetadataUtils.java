@@ -0,0 +1,144 @@
+package ninja.foxyv.vsync.utils;
+
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.DosFileAttributeView;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+public class MetadataUtils {
+
+    /**
+     * Read the size, times and file key of a file with a single call. This replaces separate exists, length and
+     * lastModified calls which each cost a system call.
+     *
+     * @param path The file to read the attributes of.
+     * @return The attributes or empty when the file does not exist.
+     */
+    public static Optional<BasicFileAttributes> readAttributes(Path path) {
+        try {
+            return Optional.of(Files.readAttributes(path, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-6511499745673017488 - Could not read the attributes of file: " + path.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * The rsync style quick check. Files are considered the same when their sizes match and their last modified times are
+     * within the modify window of each other. The window allows for file systems that store times with less precision.
+     */
+    public static boolean metadataMatches(BasicFileAttributes source, BasicFileAttributes target, Duration modifyWindow) {
+        if (source.size() != target.size()) {
+            return false;
+        }
+
+        long difference = source.lastModifiedTime().to(TimeUnit.NANOSECONDS) - target.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        return Math.abs(difference) <= modifyWindow.toNanos();
+    }
+
+    /**
+     * Copy the last modified time of the source file to the target file so the next quick check can match them.
+     */
+    public static void preserveLastModified(Path source, Path target) {
+        try {
+            setLastModifiedTime(target, Files.getLastModifiedTime(source));
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-7210885261580358380 - Could not copy the last modified time to file: " + target.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Set the last modified time of a file, even when the file is read only. Windows needs write access to change the
+     * time, so a read only flag is cleared for the change and set again afterwards.
+     */
+    public static void setLastModifiedTime(Path target, FileTime time) throws IOException {
+        try {
+            Files.setLastModifiedTime(target, time);
+        } catch (AccessDeniedException e) {
+            DosFileAttributeView dos = Files.getFileAttributeView(target, DosFileAttributeView.class);
+            if (dos == null || !dos.readAttributes().isReadOnly()) {
+                throw e;
+            }
+            dos.setReadOnly(false);
+            try {
+                Files.setLastModifiedTime(target, time);
+            } finally {
+                dos.setReadOnly(true);
+            }
+        }
+    }
+
+    /**
+     * Copy the last modified time and the permissions of the source file to the target file. Used on a temporary file
+     * before it is moved over the target, so the target appears with its final metadata in the same step as its
+     * contents. POSIX permissions are copied where both files support them. The DOS read only flag is left to
+     * preserveReadOnly once the temporary file has replaced the target, a read only file can not be renamed over or
+     * deleted on Windows.
+     *
+     * @param sourceAttributes The attributes of the source read by the walk, so its time is not read again.
+     */
+    public static void preserveAttributes(Path source, BasicFileAttributes sourceAttributes, Path target) {
+        try {
+            Files.setLastModifiedTime(target, sourceAttributes.lastModifiedTime());
+
+            PosixFileAttributeView sourcePosix = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+            PosixFileAttributeView targetPosix = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+            if (sourcePosix != null && targetPosix != null) {
+                targetPosix.setPermissions(sourcePosix.readAttributes().permissions());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-8318207135092951696 - Could not copy the attributes of: " + source.toAbsolutePath() + " to: " + target.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Copy the DOS read only flag of the source to the target, where both files have one and POSIX permissions are not
+     * available. Called on the final target after the rename.
+     */
+    public static void preserveReadOnly(Path source, Path target) {
+        try {
+            if (Files.getFileAttributeView(target, PosixFileAttributeView.class) != null) {
+                return;
+            }
+
+            DosFileAttributeView sourceDos = Files.getFileAttributeView(source, DosFileAttributeView.class);
+            DosFileAttributeView targetDos = Files.getFileAttributeView(target, DosFileAttributeView.class);
+            if (sourceDos != null && targetDos != null) {
+                DosFileAttributes attributes = sourceDos.readAttributes();
+                if (attributes.isReadOnly()) {
+                    targetDos.setReadOnly(true);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("FOXE-2381262017086592749 - Could not copy the read only flag of: " + source.toAbsolutePath() + " to: " + target.toAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Clear the DOS read only flag of a file, so it can be replaced or deleted on Windows. Does nothing when the file
+     * does not exist or has no DOS attributes.
+     */
+    public static void clearReadOnly(Path path) throws IOException {
+        DosFileAttributeView dos = Files.getFileAttributeView(path, DosFileAttributeView.class);
+        if (dos == null || Files.getFileAttributeView(path, PosixFileAttributeView.class) != null) {
+            return;
+        }
+        try {
+            if (dos.readAttributes().isReadOnly()) {
+                dos.setReadOnly(false);
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing to clear.
+        }
+    }
+}
@@ -1,8 +1,11 @@
 package ninja.foxyv.vsync.utils;
 
+import ninja.foxyv.vsync.entities.FileEntry;
+import ninja.foxyv.vsync.react.fs.ByteBufferPool;
+import ninja.foxyv.vsync.react.fs.DirectoryWalker;
 import ninja.foxyv.vsync.react.fs.InputStreamFlux;
 import reactor.core.publisher.Flux;
-import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -16,21 +19,23 @@ public class ReactiveFileUtils {
             return Flux.just(directory);
         }
 
+        Flux<File> fileFlux = DirectoryWalker.of(directory.toPath())
+                .withMaxDepth(recursive ? Integer.MAX_VALUE : 1)
+                .flux(Schedulers.boundedElastic())
+                .map(FileEntry::toFile);
+
         if (recursive) {
-            Flux<File> fileFlux = Mono.justOrEmpty(directory).filter(File::isDirectory)
-                    .flatMap(f -> Mono.justOrEmpty(f.listFiles()).switchIfEmpty(Mono.just(new File[0])))
-                    .flatMapMany(Flux::fromArray).flatMap(file -> listFiles(file, true));
             return Flux.merge(fileFlux, Flux.just(directory));
         } else {
-            Flux<File> fileFlux = Mono.justOrEmpty(directory).filter(File::isDirectory)
-                    .flatMap(f -> Mono.justOrEmpty(f.listFiles()).switchIfEmpty(Mono.just(new File[0]))).flatMapMany(Flux::fromArray);
-
-            return Flux.merge(fileFlux);
+            return fileFlux;
         }
     }
 
+    /**
+     * Stream the file in buffers leased from the default buffer pool. Each buffer is only valid until onNext returns.
+     */
     public static Flux<ByteBuffer> streamFile(File aFile) {
-        return streamFile(aFile, InputStreamFlux.DEFAULT_BUFFER_SIZE);
+        return streamFile(aFile, ByteBufferPool.DEFAULT);
     }
 
     public static Flux<ByteBuffer> streamFile(File aFile, int bufferSize) {
@@ -38,6 +43,11 @@ public class ReactiveFileUtils {
         return Flux.using(() -> new FileInputStream(aFile), is -> InputStreamFlux.flux(is, bufferSize), is -> closeStream(absolutePath, is));
     }
 
+    public static Flux<ByteBuffer> streamFile(File aFile, ByteBufferPool pool) {
+        String absolutePath = aFile.getAbsolutePath();
+        return Flux.using(() -> new FileInputStream(aFile), is -> InputStreamFlux.flux(is, pool), is -> closeStream(absolutePath, is));
+    }
+
     private static void closeStream(String absolutePath, FileInputStream is) {
         try {
             is.close();
@@ -1,23 +1,42 @@
 package test;
 
+import ninja.foxyv.vsync.entities.ChecksumValue;
+import ninja.foxyv.vsync.entities.CompactFingerprint;
+import ninja.foxyv.vsync.entities.DeltaResult;
 import ninja.foxyv.vsync.entities.DirectoryFingerprint;
+import ninja.foxyv.vsync.entities.FileEntry;
 import ninja.foxyv.vsync.entities.FileFingerprint;
+import ninja.foxyv.vsync.entities.RangeChecksum;
+import ninja.foxyv.vsync.entities.RangedFingerprint;
+import ninja.foxyv.vsync.index.FingerprintIndex;
+import ninja.foxyv.vsync.index.FingerprintTable;
+import ninja.foxyv.vsync.metrics.Histogram;
+import ninja.foxyv.vsync.react.fs.DirectoryWalker;
+import ninja.foxyv.vsync.react.fs.WalkOrder;
+import ninja.foxyv.vsync.utils.DeltaUtils;
 import ninja.foxyv.vsync.utils.DirectorySyncUtils;
+import ninja.foxyv.vsync.utils.FileChannelUtils;
 import ninja.foxyv.vsync.utils.ReactiveFileUtils;
+import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Timed;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.zip.CRC32C;
 import java.util.zip.Checksum;
 
@@ -45,6 +64,73 @@ public class TestDirectorySyncUtils {
 
     }
 
+    @Test
+    public void testDirectoryWalker() throws IOException {
+        File tmp = new File("tmp");
+        prepareTMPDirectory(tmp);
+        File root = new File(tmp, "walk-" + System.nanoTime());
+
+        try {
+            // Three levels of directories with two files in each directory
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    File directory = new File(root, "a" + i + "/b" + j);
+                    Assertions.assertTrue(directory.mkdirs());
+                    Files.writeString(new File(directory, "one.txt").toPath(), "1");
+                    Files.writeString(new File(directory, "two.txt").toPath(), "22");
+                }
+                Files.writeString(new File(root, "a" + i + "/file.txt").toPath(), "333");
+            }
+
+            List<FileEntry> entries = DirectoryWalker.of(root.toPath())
+                    .withOrder(WalkOrder.BREADTH_FIRST)
+                    .withMaxConcurrentReads(1)
+                    .flux(Schedulers.boundedElastic())
+                    .collectList()
+                    .block();
+            Assertions.assertNotNull(entries);
+            Assertions.assertEquals(12, entries.stream().filter(FileEntry::isDirectory).count());
+            Assertions.assertEquals(21, entries.stream().filter(FileEntry::isFile).count());
+            Assertions.assertEquals(3 * (3 * 3 + 3), entries.stream().mapToLong(FileEntry::size).filter(size -> size < 4).sum());
+
+            // Breadth first reads every directory at one depth before the next
+            int lastDepth = 0;
+            for (FileEntry entry : entries) {
+                int depth = root.toPath().relativize(entry.path()).getNameCount();
+                Assertions.assertTrue(depth >= lastDepth, "Entry out of breadth first order: " + entry.path());
+                lastDepth = depth;
+            }
+
+            Long concurrentCount = DirectoryWalker.of(root.toPath())
+                    .withOrder(WalkOrder.DEPTH_FIRST)
+                    .withMaxConcurrentReads(4)
+                    .flux(Schedulers.boundedElastic())
+                    .count()
+                    .block();
+            Assertions.assertEquals(33, concurrentCount);
+
+            List<FileEntry> topLevel = DirectoryWalker.of(root.toPath())
+                    .withMaxDepth(1)
+                    .flux(Schedulers.boundedElastic())
+                    .collectList()
+                    .block();
+            Assertions.assertNotNull(topLevel);
+            Assertions.assertEquals(3, topLevel.size());
+
+            // Only the requested entries are emitted before cancelling
+            List<FileEntry> firstFive = DirectoryWalker.of(root.toPath())
+                    .flux(Schedulers.boundedElastic())
+                    .limitRate(1)
+                    .take(5)
+                    .collectList()
+                    .block();
+            Assertions.assertNotNull(firstFive);
+            Assertions.assertEquals(5, firstFive.size());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
     @Test
     public void testFingerprintDirectory() {
         File tmp = new File("tmp");
@@ -88,6 +174,141 @@ public class TestDirectorySyncUtils {
         Assertions.assertNotNull(fingerprint2);
         Assertions.assertEquals(fingerprint.length(), fingerprint2.length());
         Assertions.assertEquals(fingerprint.checksum().getValue(), fingerprint2.checksum().getValue());
+
+        // Small windows force the mapped fingerprint across several mappings
+        FileFingerprint mapped = FileChannelUtils.fingerprintMapped(mobyDick.toPath(), 4096);
+        Assertions.assertEquals(fingerprint.length(), mapped.length());
+        Assertions.assertEquals(fingerprint.checksum().getValue(), mapped.checksum().getValue());
+    }
+
+    @Test
+    public void testFingerprintIndex() throws IOException, NoSuchAlgorithmException {
+        File tmp = new File("tmp");
+        prepareTMPDirectory(tmp);
+
+        File indexFile = new File(tmp, "fingerprints-" + System.nanoTime() + ".idx");
+        File mobyDick = new File(tmp, "MobyDick.txt");
+
+        try {
+            try (FingerprintIndex index = FingerprintIndex.open(indexFile.toPath())) {
+                FileFingerprint fingerprint = DirectorySyncUtils.fingerprintFile(mobyDick, index).block();
+                Assertions.assertNotNull(fingerprint);
+                Assertions.assertEquals(crc32c(mobyDick).getValue(), fingerprint.checksum().getValue());
+                Assertions.assertEquals(1, index.size());
+            }
+
+            // Re-open the index to make sure the fingerprint was persisted
+            try (FingerprintIndex index = FingerprintIndex.open(indexFile.toPath())) {
+                BasicFileAttributes attributes = Files.readAttributes(mobyDick.toPath(), BasicFileAttributes.class);
+                FileFingerprint stored = index.lookup(mobyDick.toPath(), attributes).orElseThrow();
+                Assertions.assertEquals(crc32c(mobyDick).getValue(), stored.checksum().getValue());
+                Assertions.assertEquals(mobyDick.length(), stored.length());
+
+                // Changing the last modified time must invalidate the stored fingerprint
+                Files.setLastModifiedTime(mobyDick.toPath(), FileTime.fromMillis(attributes.lastModifiedTime().toMillis() - 60000));
+                attributes = Files.readAttributes(mobyDick.toPath(), BasicFileAttributes.class);
+                Assertions.assertTrue(index.lookup(mobyDick.toPath(), attributes).isEmpty());
+
+                // Many entries force the index to grow
+                for (int i = 0; i < 100000; i++) {
+                    index.record(new File(tmp, "file-" + i).toPath(), attributes, stored);
+                }
+                Assertions.assertEquals(100001, index.size());
+                Assertions.assertTrue(index.lookup(new File(tmp, "file-99999").toPath(), attributes).isPresent());
+            }
+        } finally {
+            Files.deleteIfExists(indexFile.toPath());
+        }
+    }
+
+    @Test
+    public void testFingerprintRanges() throws IOException, NoSuchAlgorithmException {
+        File tmp = new File("tmp");
+        prepareTMPDirectory(tmp);
+
+        File mobyDick = new File(tmp, "MobyDick.txt");
+        File changedCopy = new File(tmp, "ranges-changed-" + System.nanoTime());
+
+        try {
+            // The combined checksum matches hashing the file in one pass, whatever the range size
+            long expected = crc32c(mobyDick).getValue();
+            for (long rangeSize : new long[]{4096, 100000, 1000003, mobyDick.length() * 2}) {
+                RangedFingerprint fingerprint = DirectorySyncUtils.fingerprintRanges(mobyDick, rangeSize, Schedulers.boundedElastic()).block();
+                Assertions.assertNotNull(fingerprint);
+                Assertions.assertEquals(expected, fingerprint.fingerprint().checksum().getValue());
+                Assertions.assertEquals(mobyDick.length(), fingerprint.fingerprint().length());
+                Assertions.assertEquals((mobyDick.length() + rangeSize - 1) / rangeSize, fingerprint.ranges().size());
+            }
+
+            // Only the range holding the changed bytes differs
+            byte[] bytes = Files.readAllBytes(mobyDick.toPath());
+            bytes[250000] ^= 1;
+            Files.write(changedCopy.toPath(), bytes);
+            RangedFingerprint original = DirectorySyncUtils.fingerprintRanges(mobyDick, 100000, Schedulers.boundedElastic()).block();
+            RangedFingerprint changed = DirectorySyncUtils.fingerprintRanges(changedCopy, 100000, Schedulers.boundedElastic()).block();
+            Assertions.assertNotNull(original);
+            Assertions.assertNotNull(changed);
+            List<RangeChecksum> differing = changed.differingRanges(original);
+            Assertions.assertEquals(1, differing.size());
+            Assertions.assertEquals(200000, differing.get(0).offset());
+        } finally {
+            Files.deleteIfExists(changedCopy.toPath());
+        }
+    }
+
+    @Test
+    public void testDeltaCopy() throws IOException, NoSuchAlgorithmException {
+        File tmp = new File("tmp");
+        prepareTMPDirectory(tmp);
+
+        File oldCopy = new File(tmp, "delta-old-" + System.nanoTime());
+        File newVersion = new File(tmp, "delta-new-" + System.nanoTime());
+        File rebuilt = new File(tmp, "delta-rebuilt-" + System.nanoTime());
+
+        try {
+            byte[] original = new byte[1024 * 1024];
+            new Random(42).nextBytes(original);
+            Files.write(oldCopy.toPath(), original);
+
+            // Insert a few bytes near the start, overwrite some in the middle and truncate the end
+            byte[] changed = new byte[original.length - 10000 + 7];
+            System.arraycopy(original, 0, changed, 0, 1000);
+            System.arraycopy("INSERTED".getBytes(), 0, changed, 1000, 7);
+            System.arraycopy(original, 1000, changed, 1007, original.length - 10000 - 1000);
+            Arrays.fill(changed, 500000, 500100, (byte) 1);
+            Files.write(newVersion.toPath(), changed);
+
+            DeltaResult result = DeltaUtils.deltaCopy(newVersion.toPath(), oldCopy.toPath(), rebuilt.toPath(), 4096);
+
+            Assertions.assertArrayEquals(changed, Files.readAllBytes(rebuilt.toPath()));
+            Assertions.assertEquals(changed.length, result.matchedBytes() + result.literalBytes());
+            Assertions.assertTrue(result.literalBytes() < 4096 * 4, "Too many literal bytes: " + result.literalBytes());
+            Assertions.assertEquals(changed.length, result.fingerprint().length());
+            Assertions.assertEquals(crc32c(newVersion).getValue(), result.fingerprint().checksum().getValue());
+            Assertions.assertFalse(result.unchanged());
+
+            // Rebuilding the file from an identical copy, short last block included, writes nothing
+            Files.delete(rebuilt.toPath());
+            Files.write(oldCopy.toPath(), changed);
+            DeltaResult same = DeltaUtils.deltaCopy(newVersion.toPath(), oldCopy.toPath(), rebuilt.toPath(), 4096);
+            Assertions.assertTrue(same.unchanged());
+            Assertions.assertEquals(changed.length, same.matchedBytes());
+            Assertions.assertEquals(0, same.literalBytes());
+            Assertions.assertFalse(rebuilt.exists());
+
+            // Identical files made of the same block over and over keep every block in place
+            byte[] repeated = new byte[1024 * 1024];
+            Files.write(oldCopy.toPath(), repeated);
+            Files.write(newVersion.toPath(), repeated);
+            DeltaResult zeros = DeltaUtils.deltaCopy(newVersion.toPath(), oldCopy.toPath(), rebuilt.toPath(), 4096);
+            Assertions.assertTrue(zeros.unchanged());
+            Assertions.assertEquals(repeated.length, zeros.matchedBytes());
+            Assertions.assertFalse(rebuilt.exists());
+        } finally {
+            Files.deleteIfExists(oldCopy.toPath());
+            Files.deleteIfExists(newVersion.toPath());
+            Files.deleteIfExists(rebuilt.toPath());
+        }
     }
 
     private Checksum crc32c(File mobyDick) throws NoSuchAlgorithmException {
@@ -104,5 +325,58 @@ public class TestDirectorySyncUtils {
         }
     }
 
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        Assertions.assertEquals(0, histogram.percentile(0.99));
+        for (long value = 1; value <= 100_000; value++) {
+            histogram.record(value);
+        }
+
+        Assertions.assertEquals(100_000, histogram.count());
+        Assertions.assertEquals(100_000, histogram.max());
+        Assertions.assertEquals(50_000, histogram.mean());
+        // Each power of two is split in eight, so percentiles are at most an eighth too high
+        long median = histogram.percentile(0.5);
+        Assertions.assertTrue(median >= 50_000 && median <= 50_000 * 9 / 8, "Median: " + median);
+        long p99 = histogram.percentile(0.99);
+        Assertions.assertTrue(p99 >= 99_000 && p99 <= 100_000, "99th percentile: " + p99);
+        Assertions.assertEquals(1, histogram.percentile(0.00001));
+    }
+
+    @Test
+    public void testFingerprintTable() throws IOException {
+        try (FingerprintTable table = FingerprintTable.create(16)) {
+            long initialMemory = table.memoryUsed();
+            // Enough files to grow the table past the capacity it was created with
+            for (long key = 1; key <= 5_000; key++) {
+                table.put(key, key * 31, key * 7);
+            }
+            table.put(42, 1, 2);
 
+            Assertions.assertEquals(5_000, table.size());
+            Assertions.assertTrue(table.memoryUsed() > initialMemory);
+            Assertions.assertEquals(new CompactFingerprint(42, 1, 2), table.lookup(42).orElseThrow());
+            Assertions.assertEquals(new CompactFingerprint(4_999, 4_999 * 31, 4_999 * 7), table.lookup(4_999).orElseThrow());
+            Assertions.assertTrue(table.lookup(5_001).isEmpty());
+            long[] visited = new long[1];
+            table.forEach(fingerprint -> visited[0]++);
+            Assertions.assertEquals(5_000, visited[0]);
+        }
+
+        File tmp = new File("tmp");
+        prepareTMPDirectory(tmp);
+        File mobyDick = new File(tmp, "MobyDick.txt");
+        FileFingerprint expected = DirectorySyncUtils.fingerprintFile(mobyDick).block();
+        Assertions.assertNotNull(expected);
+        Assertions.assertInstanceOf(ChecksumValue.class, expected.checksum(), "Fingerprints should only hold the checksum value.");
+
+        try (FingerprintTable table = FingerprintTable.create(1)) {
+            table.put(mobyDick.toPath().toAbsolutePath(), expected);
+            Assertions.assertEquals(1, table.size());
+            CompactFingerprint compact = table.lookup(mobyDick.toPath().toAbsolutePath()).orElseThrow();
+            Assertions.assertEquals(expected.checksum().getValue(), compact.checksum());
+            Assertions.assertEquals(mobyDick.length(), compact.length());
+        }
+    }
 }
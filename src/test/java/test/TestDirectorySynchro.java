@@ -1,18 +1,65 @@
 package test;
 
+import ninja.foxyv.vsync.ComparisonStrategy;
+import ninja.foxyv.vsync.CopyEngine;
+import ninja.foxyv.vsync.DedupMode;
+import ninja.foxyv.vsync.MirrorMode;
+import ninja.foxyv.vsync.SyncOptions;
+import ninja.foxyv.vsync.SyncSchedulers;
+import ninja.foxyv.vsync.WatchSynchronizer;
+import ninja.foxyv.vsync.entities.CopiedFile;
 import ninja.foxyv.vsync.entities.CopyCounters;
+import ninja.foxyv.vsync.entities.DirectoryFingerprint;
+import ninja.foxyv.vsync.entities.FileFingerprint;
+import ninja.foxyv.vsync.entities.ProgressEstimator;
+import ninja.foxyv.vsync.index.ContentIndex;
+import ninja.foxyv.vsync.index.FingerprintIndex;
+import ninja.foxyv.vsync.index.MerkleIndex;
+import ninja.foxyv.vsync.index.SyncJournal;
+import ninja.foxyv.vsync.metrics.MetricsReporter;
+import ninja.foxyv.vsync.metrics.SyncMetrics;
+import ninja.foxyv.vsync.metrics.SyncOutcome;
+import ninja.foxyv.vsync.metrics.SyncStage;
+import ninja.foxyv.vsync.plan.PlanAction;
+import ninja.foxyv.vsync.plan.PlannedFile;
+import ninja.foxyv.vsync.plan.SyncPlan;
+import ninja.foxyv.vsync.utils.AtomicFileUtils;
+import ninja.foxyv.vsync.utils.DirectorySyncUtils;
+import ninja.foxyv.vsync.utils.FileChannelUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.Disposable;
+import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Scheduler;
 import reactor.core.scheduler.Schedulers;
 import test.utils.TmpDirectoryUtils;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.DosFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Random;
 import java.util.UUID;
+import java.util.zip.CRC32C;
 
 import static ninja.foxyv.vsync.ReactiveDirectorySynchronizer.*;
 
@@ -21,7 +68,7 @@ public class TestDirectorySynchro {
     private static final Logger LOG = LoggerFactory.getLogger(TestDirectorySynchro.class);
     Scheduler scheduler = Schedulers.newParallel("Test", 10);
     @Test
-    public void test() {
+    public void test() throws IOException {
         File tmp = new File("tmp");
 
         String uuid = UUID.randomUUID().toString();
@@ -42,14 +89,17 @@ public class TestDirectorySynchro {
             // Copy src directory to target directory
             CopyCounters copyCounter = new CopyCounters();
             copyDirectory(src, target, true, scheduler, copyCounter)
-                    .subscribe(file -> LOG.info("Copying file: " + file.getAbsolutePath())
-                    );
+                    .sequential()
+                    .doOnNext(file -> LOG.info("Copying file: " + file.getAbsolutePath()))
+                    .blockLast();
 
             Long fileCountNonRecursive = countFiles(target, false, scheduler).block();
             Assertions.assertNotNull(fileCountNonRecursive);
             Assertions.assertTrue(fileCountNonRecursive > 0, "No files were copied...");
             Assertions.assertEquals(3, fileCountNonRecursive);
             Assertions.assertEquals(4, countFiles(target, true, scheduler).block());
+            Assertions.assertArrayEquals(Files.readAllBytes(new File(src, "images/ThreeRectangles.png").toPath()),
+                    Files.readAllBytes(new File(target, "images/ThreeRectangles.png").toPath()));
 
         } finally {
             deleteRecursive(src);
@@ -57,6 +107,970 @@ public class TestDirectorySynchro {
         }
     }
 
+    @Test
+    public void testQuickCheck() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        try {
+            CopyCounters firstCopy = new CopyCounters();
+            ProgressEstimator progressEstimator = new ProgressEstimator();
+            copyDirectory(src, target, true, scheduler, firstCopy, SyncOptions.defaults()
+                    .withComparisonStrategy(ComparisonStrategy.METADATA_ONLY)
+                    .withCopyEngine(CopyEngine.STREAM)
+                    .withProgressEstimator(progressEstimator))
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(4, firstCopy.fileCounter.get());
+            // The copy walk discovered every file and all of them were completed
+            Assertions.assertEquals(4, progressEstimator.filesDiscovered());
+            Assertions.assertEquals(firstCopy.byteCounter.get(), progressEstimator.bytesDiscovered());
+            Assertions.assertEquals(0, progressEstimator.remainingFiles());
+            Assertions.assertEquals(0, progressEstimator.remainingBytes());
+            Assertions.assertArrayEquals(Files.readAllBytes(new File(src, "MobyDick.txt").toPath()),
+                    Files.readAllBytes(new File(target, "MobyDick.txt").toPath()));
+
+            // Nothing changed so every file must be skipped without hashing
+            CopyCounters secondCopy = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, secondCopy, SyncOptions.defaults().withComparisonStrategy(ComparisonStrategy.METADATA_ONLY))
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(0, secondCopy.fileCounter.get());
+            Assertions.assertEquals(0, secondCopy.filesHashed.get());
+            Assertions.assertEquals(4, secondCopy.filesSkipped.get());
+
+            // A changed source is recopied, and paranoid files are hashed even though their metadata matches
+            Files.writeString(new File(src, "RomeoAndJuliet.txt").toPath(), "Changed");
+            CopyCounters thirdCopy = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, thirdCopy, SyncOptions.defaults()
+                    .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH)
+                    .withParanoidGlobs("**.png"))
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(1, thirdCopy.fileCounter.get());
+            Assertions.assertEquals(2, thirdCopy.filesHashed.get());
+            Assertions.assertEquals(2, thirdCopy.filesSkipped.get());
+            Assertions.assertEquals("Changed", Files.readString(new File(target, "RomeoAndJuliet.txt").toPath()));
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    @Test
+    public void testHashOnCopy() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+        File indexFile = new File(tmp, "fingerprints-" + uuid + ".idx");
+
+        try (FingerprintIndex index = FingerprintIndex.open(indexFile.toPath())) {
+            SyncOptions options = SyncOptions.defaults()
+                    .withFingerprintIndex(index)
+                    .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH)
+                    .withHashOnCopy(true);
+
+            List<CopiedFile> copied = synchronizeDirectory(src, target, true, scheduler, new CopyCounters(), options)
+                    .sequential()
+                    .collectList()
+                    .block();
+            Assertions.assertNotNull(copied);
+            Assertions.assertEquals(4, copied.size());
+            for (CopiedFile copiedFile : copied) {
+                FileFingerprint expected = DirectorySyncUtils.fingerprintFile(copiedFile.file()).block();
+                Assertions.assertNotNull(expected);
+                Assertions.assertEquals(expected.checksum().getValue(), copiedFile.fingerprint().checksum().getValue());
+            }
+
+            // Both the sources and the targets were recorded while copying
+            Assertions.assertEquals(8, index.size());
+
+            // A changed file is copied through a temporary file that replaces the target
+            Files.writeString(new File(src, "RomeoAndJuliet.txt").toPath(), "Changed");
+            CopyCounters secondCopy = new CopyCounters();
+            synchronizeDirectory(src, target, true, scheduler, secondCopy, options).sequential().blockLast();
+            Assertions.assertEquals(1, secondCopy.fileCounter.get());
+            Assertions.assertEquals(3, secondCopy.filesSkipped.get());
+            Assertions.assertEquals("Changed", Files.readString(new File(target, "RomeoAndJuliet.txt").toPath()));
+            Assertions.assertEquals(4, countFiles(target, true, scheduler).block());
+
+            // A file only touched is copied speculatively, found the same and not counted as copied
+            File mobyDick = new File(src, "MobyDick.txt");
+            Assertions.assertTrue(mobyDick.setLastModified(mobyDick.lastModified() - 60_000));
+            CopyCounters touchedCopy = new CopyCounters();
+            synchronizeDirectory(src, target, true, scheduler, touchedCopy, options).sequential().blockLast();
+            Assertions.assertEquals(0, touchedCopy.fileCounter.get());
+            Assertions.assertEquals(1, touchedCopy.filesHashed.get());
+            Assertions.assertEquals(1, touchedCopy.metrics().getFilesUnchanged());
+            // The copy thrown away counts as hashing the source, not as bytes written
+            Assertions.assertEquals(0, touchedCopy.metrics().getBytesWritten());
+            Assertions.assertEquals(0, touchedCopy.metrics().getBytesCopied());
+            Assertions.assertEquals(mobyDick.lastModified(), new File(target, "MobyDick.txt").lastModified());
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+            Files.deleteIfExists(indexFile.toPath());
+        }
+    }
+
+    @Test
+    public void testMerkleTree() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+        File fingerprintFile = new File(tmp, "fingerprints-" + uuid + ".idx");
+        File merkleFile = new File(tmp, "merkle-" + uuid + ".idx");
+
+        try (FingerprintIndex fingerprintIndex = FingerprintIndex.open(fingerprintFile.toPath());
+             MerkleIndex merkleIndex = MerkleIndex.open(merkleFile.toPath())) {
+            SyncOptions options = SyncOptions.defaults()
+                    .withFingerprintIndex(fingerprintIndex)
+                    .withMerkleIndex(merkleIndex)
+                    .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH);
+
+            DirectoryFingerprint sourceFingerprint = DirectorySyncUtils.fingerprintDirectory(src, fingerprintIndex, merkleIndex).block();
+            Assertions.assertNotNull(sourceFingerprint);
+            Assertions.assertEquals(2, merkleIndex.size());
+
+            CopyCounters firstCopy = new CopyCounters();
+            synchronizeTree(src, target, SyncSchedulers.of(scheduler), firstCopy, options).blockLast();
+            Assertions.assertEquals(4, firstCopy.fileCounter.get());
+            Assertions.assertEquals(0, firstCopy.directoriesPruned.get());
+            Assertions.assertEquals(4, countFiles(target, true, scheduler).block());
+
+            // Nothing changed so the whole tree is skipped at the root
+            CopyCounters secondCopy = new CopyCounters();
+            synchronizeTree(src, target, SyncSchedulers.of(scheduler), secondCopy, options).blockLast();
+            Assertions.assertEquals(1, secondCopy.directoriesPruned.get());
+            Assertions.assertEquals(0, secondCopy.filesSkipped.get());
+
+            // Only the changed file and the directories above it are updated, the root files are skipped and the
+            // unchanged subdirectory is pruned
+            Files.writeString(new File(src, "RomeoAndJuliet.txt").toPath(), "Changed");
+            DirectoryFingerprint updated = DirectorySyncUtils.updateDirectoryFingerprint(src,
+                    List.of(new File(src, "RomeoAndJuliet.txt").toPath()), fingerprintIndex, merkleIndex).block();
+            Assertions.assertNotNull(updated);
+            Assertions.assertNotEquals(sourceFingerprint.hash(), updated.hash());
+            Assertions.assertEquals(Objects.requireNonNull(DirectorySyncUtils.fingerprintDirectory(src).block()).hash(), updated.hash());
+
+            CopyCounters thirdCopy = new CopyCounters();
+            synchronizeTree(src, target, SyncSchedulers.of(scheduler), thirdCopy, options).blockLast();
+            Assertions.assertEquals(1, thirdCopy.fileCounter.get());
+            Assertions.assertEquals(2, thirdCopy.filesSkipped.get());
+            Assertions.assertEquals(1, thirdCopy.directoriesPruned.get());
+            Assertions.assertEquals("Changed", Files.readString(new File(target, "RomeoAndJuliet.txt").toPath()));
+
+            // A target file modified in place below the root is noticed although no directory time changed above it
+            Path targetImage = new File(target, "images/ThreeRectangles.png").toPath();
+            Files.writeString(targetImage, "Damaged");
+            CopyCounters fourthCopy = new CopyCounters();
+            synchronizeTree(src, target, SyncSchedulers.of(scheduler), fourthCopy, options).blockLast();
+            Assertions.assertEquals(1, fourthCopy.fileCounter.get());
+            Assertions.assertEquals(0, fourthCopy.directoriesPruned.get());
+            Assertions.assertArrayEquals(Files.readAllBytes(new File(src, "images/ThreeRectangles.png").toPath()), Files.readAllBytes(targetImage));
+
+            // So is a source file added below the root without updating the tree
+            Files.writeString(new File(src, "images/Added.txt").toPath(), "Added");
+            CopyCounters fifthCopy = new CopyCounters();
+            synchronizeTree(src, target, SyncSchedulers.of(scheduler), fifthCopy, options).blockLast();
+            Assertions.assertEquals(1, fifthCopy.fileCounter.get());
+            Assertions.assertEquals(0, fifthCopy.directoriesPruned.get());
+            Assertions.assertEquals("Added", Files.readString(new File(target, "images/Added.txt").toPath()));
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+            Files.deleteIfExists(fingerprintFile.toPath());
+            Files.deleteIfExists(merkleFile.toPath());
+        }
+    }
+
+    @Test
+    public void testSyncSchedulers() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        // Give the device holding the test directories a single reader
+        SyncSchedulers schedulers = SyncSchedulers.create().withIoConcurrency(src.toPath(), 1);
+        try {
+            Assertions.assertSame(schedulers.io(src.toPath()), schedulers.io(new File(target, "missing/file.txt").toPath()));
+            // Copies to the device take a permit from the same limit as its reads, and checksums may block on their reads
+            Assertions.assertSame(schedulers.writes(src.toPath()), schedulers.writes(new File(target, "missing/file.txt").toPath()));
+            Assertions.assertEquals(Boolean.FALSE, Mono.fromCallable(Schedulers::isInNonBlockingThread).subscribeOn(schedulers.hash()).block());
+            Assertions.assertEquals(4, countFiles(src, true, schedulers).block());
+
+            CopyCounters copyCounter = new CopyCounters();
+            copyDirectory(src, target, true, schedulers, copyCounter, SyncOptions.defaults())
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(4, copyCounter.fileCounter.get());
+
+            // Fingerprinting on the separate pools gives the same result as on the calling thread
+            DirectoryFingerprint sourceFingerprint = DirectorySyncUtils.fingerprintDirectory(src, null, null, schedulers).block();
+            DirectoryFingerprint targetFingerprint = DirectorySyncUtils.fingerprintDirectory(target).block();
+            Assertions.assertNotNull(sourceFingerprint);
+            Assertions.assertNotNull(targetFingerprint);
+            Assertions.assertEquals(targetFingerprint.hash(), sourceFingerprint.hash());
+        } finally {
+            schedulers.dispose();
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    @Test
+    public void testVirtualSchedulers() throws IOException {
+        if (!SyncSchedulers.isVirtualThreadsSupported()) {
+            Assertions.assertThrows(UnsupportedOperationException.class, SyncSchedulers::virtual);
+            return;
+        }
+
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        // Many rails waiting on a device limited to two reads at a time
+        SyncSchedulers schedulers = SyncSchedulers.virtual().withIoConcurrency(src.toPath(), 2);
+        try {
+            Assertions.assertEquals(SyncSchedulers.DEFAULT_VIRTUAL_IO_CONCURRENCY, schedulers.parallelism());
+            Assertions.assertEquals(4, countFiles(src, true, schedulers).block());
+
+            CopyCounters copyCounter = new CopyCounters();
+            copyDirectory(src, target, true, schedulers, copyCounter, SyncOptions.defaults())
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(4, copyCounter.fileCounter.get());
+
+            DirectoryFingerprint sourceFingerprint = DirectorySyncUtils.fingerprintDirectory(src, null, null, schedulers).block();
+            DirectoryFingerprint targetFingerprint = DirectorySyncUtils.fingerprintDirectory(target).block();
+            Assertions.assertNotNull(sourceFingerprint);
+            Assertions.assertNotNull(targetFingerprint);
+            Assertions.assertEquals(targetFingerprint.hash(), sourceFingerprint.hash());
+        } finally {
+            schedulers.dispose();
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    @Test
+    public void testSmallFiles() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        try {
+            // The image and Romeo and Juliet take the small file path, the other two books are copied as before
+            SyncOptions options = SyncOptions.defaults().withSmallFileThreshold(1024 * 200);
+            CopyCounters firstCopy = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, firstCopy, options)
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(4, firstCopy.fileCounter.get());
+            Assertions.assertArrayEquals(Files.readAllBytes(new File(src, "images/ThreeRectangles.png").toPath()),
+                    Files.readAllBytes(new File(target, "images/ThreeRectangles.png").toPath()));
+            Assertions.assertEquals(new File(src, "RomeoAndJuliet.txt").lastModified(), new File(target, "RomeoAndJuliet.txt").lastModified());
+
+            // A target changed without changing its size is found by comparing the bytes
+            File targetRomeo = new File(target, "RomeoAndJuliet.txt");
+            byte[] corrupted = Files.readAllBytes(targetRomeo.toPath());
+            corrupted[0] = (byte) (corrupted[0] + 1);
+            Files.write(targetRomeo.toPath(), corrupted);
+            CopyCounters secondCopy = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, secondCopy, options)
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(1, secondCopy.fileCounter.get());
+            Assertions.assertEquals(3, secondCopy.filesHashed.get());
+            Assertions.assertArrayEquals(Files.readAllBytes(new File(src, "RomeoAndJuliet.txt").toPath()), Files.readAllBytes(targetRomeo.toPath()));
+
+            // The times were kept so a quick check skips every file
+            CopyCounters thirdCopy = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, thirdCopy, SyncOptions.defaults()
+                    .withSmallFileThreshold(1024 * 200)
+                    .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH))
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(0, thirdCopy.fileCounter.get());
+            Assertions.assertEquals(4, thirdCopy.filesSkipped.get());
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    @Test
+    public void testAtomicReplace() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        try {
+            // Old copies larger than the sources, the preallocated output has to be cut down to the new size
+            byte[] stale = new byte[1024 * 1024 * 2];
+            Files.write(new File(target, "RomeoAndJuliet.txt").toPath(), stale);
+            Files.write(new File(target, "MobyDick.txt").toPath(), stale);
+            File sourceRomeo = new File(src, "RomeoAndJuliet.txt");
+            boolean posix = Files.getFileStore(src.toPath()).supportsFileAttributeView("posix");
+            if (posix) {
+                Files.setPosixFilePermissions(sourceRomeo.toPath(), PosixFilePermissions.fromString("rw-r-----"));
+            }
+
+            for (CopyEngine copyEngine : CopyEngine.values()) {
+                CopyCounters copyCounter = new CopyCounters();
+                copyDirectory(src, target, true, scheduler, copyCounter, SyncOptions.defaults()
+                        .withComparisonStrategy(ComparisonStrategy.METADATA_ONLY)
+                        .withCopyEngine(copyEngine))
+                        .sequential()
+                        .blockLast();
+
+                for (String name : List.of("RomeoAndJuliet.txt", "MobyDick.txt")) {
+                    Assertions.assertArrayEquals(Files.readAllBytes(new File(src, name).toPath()), Files.readAllBytes(new File(target, name).toPath()));
+                    Assertions.assertEquals(new File(src, name).lastModified(), new File(target, name).lastModified());
+                }
+                Assertions.assertEquals(0, Objects.requireNonNull(target.listFiles((dir, name) -> name.endsWith(".vsync-tmp"))).length);
+
+                // Make the copies stale again for the next engine
+                Files.write(new File(target, "MobyDick.txt").toPath(), stale);
+            }
+
+            if (posix) {
+                Assertions.assertEquals(Files.getPosixFilePermissions(sourceRomeo.toPath()),
+                        Files.getPosixFilePermissions(new File(target, "RomeoAndJuliet.txt").toPath()));
+            }
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    @Test
+    public void testReadOnlyTarget() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        File sourceRomeo = new File(src, "RomeoAndJuliet.txt");
+        File targetRomeo = new File(target, "RomeoAndJuliet.txt");
+        try {
+            Assertions.assertTrue(sourceRomeo.setReadOnly());
+            for (String contents : List.of("First change", "Second change")) {
+                // A read only file changed on the source, its read only copy on the target has to be replaced
+                Assertions.assertTrue(sourceRomeo.setWritable(true));
+                Files.writeString(sourceRomeo.toPath(), contents);
+                Assertions.assertTrue(sourceRomeo.setReadOnly());
+
+                for (CopyEngine copyEngine : CopyEngine.values()) {
+                    copyDirectory(src, target, true, scheduler, new CopyCounters(), SyncOptions.defaults().withCopyEngine(copyEngine))
+                            .sequential()
+                            .blockLast();
+                }
+
+                Assertions.assertEquals(contents, Files.readString(targetRomeo.toPath()));
+                boolean readOnly = Files.getFileStore(target.toPath()).supportsFileAttributeView("posix")
+                        ? !Files.getPosixFilePermissions(targetRomeo.toPath()).contains(PosixFilePermission.OWNER_WRITE)
+                        : Files.readAttributes(targetRomeo.toPath(), DosFileAttributes.class).isReadOnly();
+                Assertions.assertTrue(readOnly, "The target should be read only like the source.");
+                Assertions.assertEquals(0, Objects.requireNonNull(target.listFiles((dir, name) -> name.endsWith(".vsync-tmp"))).length);
+            }
+        } finally {
+            sourceRomeo.setWritable(true);
+            targetRomeo.setWritable(true);
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    @Test
+    public void testMetrics() throws IOException, JMException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+        File metricsFile = new File(tmp, "metrics-" + uuid + ".jsonl");
+
+        SyncMetrics metrics = SyncMetrics.create();
+        Disposable beans = metrics.registerMBeans("test-" + uuid);
+        try {
+            SyncOptions options = SyncOptions.defaults()
+                    .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH)
+                    .withMetrics(metrics);
+            copyDirectory(src, target, true, scheduler, new CopyCounters(), options)
+                    .sequential()
+                    .blockLast();
+
+            // Two directories listed holding four files and the images directory, the files checked and created
+            Assertions.assertEquals(2, metrics.stage(SyncStage.LIST).getCount());
+            Assertions.assertEquals(5, metrics.stage(SyncStage.LIST).size().sum());
+            Assertions.assertTrue(metrics.stage(SyncStage.STAT).getCount() >= 8);
+            Assertions.assertEquals(4, metrics.stage(SyncStage.COPY).getCount());
+            Assertions.assertEquals(0, metrics.stage(SyncStage.COPY).getInFlight());
+            Assertions.assertEquals(4, metrics.getFilesCreated());
+            long sourceBytes = 0;
+            for (File file : Objects.requireNonNull(src.listFiles(File::isFile))) {
+                sourceBytes += file.length();
+            }
+            sourceBytes += new File(src, "images/ThreeRectangles.png").length();
+            Assertions.assertEquals(sourceBytes, metrics.getBytesCopied());
+            Assertions.assertEquals(new File(src, "MobyDick.txt").length(), metrics.stage(SyncStage.COPY).size().max());
+
+            // Nothing changed the second time
+            copyDirectory(src, target, true, scheduler, new CopyCounters(), options)
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(4, metrics.getFilesSkipped());
+            Assertions.assertEquals(4, metrics.stage(SyncStage.COPY).getCount());
+
+            ObjectName copyStage = new ObjectName("ninja.foxyv.vsync:type=SyncStage,name=" + ObjectName.quote("test-" + uuid) + ",stage=COPY");
+            Assertions.assertEquals(4L, ManagementFactory.getPlatformMBeanServer().getAttribute(copyStage, "Count"));
+
+            MetricsReporter.append(metrics, metricsFile.toPath());
+            MetricsReporter.append(metrics, metricsFile.toPath());
+            List<String> lines = Files.readAllLines(metricsFile.toPath());
+            Assertions.assertEquals(2, lines.size());
+            Assertions.assertTrue(lines.get(0).startsWith("{\"time\":"));
+            Assertions.assertTrue(lines.get(0).contains("\"filesSkipped\":4"));
+            Assertions.assertTrue(lines.get(0).contains("{\"stage\":\"COPY\",\"count\":4,"));
+
+            beans.dispose();
+            Assertions.assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(copyStage));
+        } finally {
+            beans.dispose();
+            deleteRecursive(src);
+            deleteRecursive(target);
+            Files.deleteIfExists(metricsFile.toPath());
+        }
+    }
+
+    @Test
+    public void testSyncPlan() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+        File planFile = new File(tmp, "plan-" + uuid + ".txt");
+
+        try {
+            SyncSchedulers schedulers = SyncSchedulers.of(scheduler);
+            SyncOptions options = SyncOptions.defaults().withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH);
+            copyDirectory(src, target, true, schedulers, new CopyCounters(), options)
+                    .sequential()
+                    .blockLast();
+
+            Files.writeString(new File(src, "RomeoAndJuliet.txt").toPath(), "Changed");
+            Files.writeString(new File(src, "images/new.txt").toPath(), "New");
+            Files.writeString(new File(target, "extra.txt").toPath(), "Extra");
+
+            SyncPlan plan = planDirectory(src, target, true, schedulers, options).block();
+            Assertions.assertNotNull(plan);
+            Assertions.assertEquals(List.of(new PlannedFile(Path.of("images", "new.txt"), PlanAction.NEW, 3, -1)), plan.files(PlanAction.NEW));
+            Assertions.assertEquals(1, plan.count(PlanAction.CHANGED));
+            Assertions.assertEquals(3, plan.count(PlanAction.UNCHANGED));
+            Assertions.assertEquals(1, plan.count(PlanAction.EXTRA));
+            Assertions.assertEquals(10, plan.bytesToCopy());
+            // Planning reads no contents and writes nothing
+            Assertions.assertFalse(new File(target, "images/new.txt").exists());
+
+            // The plan survives being written out and read back
+            plan.write(planFile.toPath());
+            SyncPlan readPlan = SyncPlan.read(planFile.toPath());
+            Assertions.assertEquals(plan.source(), readPlan.source());
+            Assertions.assertEquals(plan.target(), readPlan.target());
+            Assertions.assertEquals(plan.files(), readPlan.files());
+
+            // Only the new and changed files are worked on, and the estimate knows all of them before the first copy
+            CopyCounters copyCounter = new CopyCounters();
+            ProgressEstimator progressEstimator = new ProgressEstimator();
+            executePlan(readPlan, schedulers, copyCounter, SyncOptions.defaults()
+                    .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH)
+                    .withProgressEstimator(progressEstimator))
+                    .blockLast();
+            Assertions.assertEquals(2, copyCounter.fileCounter.get());
+            Assertions.assertEquals(3, copyCounter.filesSkipped.get());
+            Assertions.assertEquals(2, progressEstimator.filesDiscovered());
+            Assertions.assertEquals(0, progressEstimator.remainingFiles());
+            Assertions.assertEquals("Changed", Files.readString(new File(target, "RomeoAndJuliet.txt").toPath()));
+            Assertions.assertEquals("New", Files.readString(new File(target, "images/new.txt").toPath()));
+            Assertions.assertTrue(new File(target, "extra.txt").exists());
+
+            SyncPlan nextPlan = planDirectory(src, target, true, schedulers, options).block();
+            Assertions.assertNotNull(nextPlan);
+            Assertions.assertEquals(5, nextPlan.count(PlanAction.UNCHANGED));
+            Assertions.assertEquals(0, nextPlan.bytesToCopy());
+
+            // Small files are spread between the large ones, each group in directory order
+            PlannedFile large1 = new PlannedFile(Path.of("a", "large1"), PlanAction.NEW, 100, -1);
+            PlannedFile large2 = new PlannedFile(Path.of("b", "large2"), PlanAction.NEW, 100, -1);
+            PlannedFile small1 = new PlannedFile(Path.of("a", "small1"), PlanAction.NEW, 1, -1);
+            PlannedFile small2 = new PlannedFile(Path.of("a", "small2"), PlanAction.NEW, 1, -1);
+            PlannedFile small3 = new PlannedFile(Path.of("b", "small3"), PlanAction.NEW, 1, -1);
+            Assertions.assertEquals(List.of(large1, small1, small2, large2, small3),
+                    SyncPlan.executionOrder(List.of(small3, large2, small2, large1, small1), 100));
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+            Files.deleteIfExists(planFile.toPath());
+        }
+    }
+
+    @Test
+    public void testMirror() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+        File quarantine = new File(target, ".quarantine");
+
+        try {
+            SyncSchedulers schedulers = SyncSchedulers.of(scheduler);
+            copyDirectory(src, target, true, schedulers, new CopyCounters(), SyncOptions.defaults())
+                    .sequential()
+                    .blockLast();
+
+            // Mirroring is off unless asked for
+            Files.delete(new File(src, "RomeoAndJuliet.txt").toPath());
+            Assertions.assertNull(mirrorDirectory(src, target, schedulers, new CopyCounters(), SyncOptions.defaults()).blockLast());
+            Assertions.assertTrue(new File(target, "RomeoAndJuliet.txt").exists());
+
+            Files.delete(new File(src, "images/ThreeRectangles.png").toPath());
+            Files.delete(new File(src, "images").toPath());
+            File oldFile = new File(target, "old/deep/file.txt");
+            Assertions.assertTrue(oldFile.getParentFile().mkdirs());
+            Files.writeString(oldFile.toPath(), "Old");
+
+            // Target only entries are moved to the quarantine, which is itself left alone though it is in the target
+            CopyCounters copyCounter = new CopyCounters();
+            SyncOptions quarantineOptions = SyncOptions.defaults().withMirror(MirrorMode.QUARANTINE, quarantine.toPath());
+            List<Path> removed = mirrorDirectory(src, target, schedulers, copyCounter, quarantineOptions).collectList().block();
+            Assertions.assertNotNull(removed);
+            Assertions.assertEquals(3, removed.size());
+            Assertions.assertEquals(3, copyCounter.entriesRemoved.get());
+            Assertions.assertFalse(new File(target, "RomeoAndJuliet.txt").exists());
+            Assertions.assertFalse(new File(target, "images").exists());
+            Assertions.assertTrue(new File(target, "MobyDick.txt").exists());
+            Assertions.assertTrue(new File(quarantine, "RomeoAndJuliet.txt").exists());
+            Assertions.assertTrue(new File(quarantine, "images/ThreeRectangles.png").exists());
+            Assertions.assertEquals("Old", Files.readString(new File(quarantine, "old/deep/file.txt").toPath()));
+            Assertions.assertNull(mirrorDirectory(src, target, schedulers, new CopyCounters(), quarantineOptions).blockLast());
+
+            File extraFile = new File(target, "extra.txt");
+            Files.writeString(extraFile.toPath(), "Extra");
+            Assertions.assertEquals(List.of(extraFile.toPath().toAbsolutePath().normalize()),
+                    mirrorDirectory(src, target, schedulers, new CopyCounters(), SyncOptions.defaults().withMirror(MirrorMode.DELETE, quarantine.toPath())).collectList().block());
+            Assertions.assertFalse(extraFile.exists());
+            Assertions.assertFalse(new File(quarantine, "extra.txt").exists());
+
+            // A missing source is an error rather than an empty directory
+            File missing = new File(tmp, "missing-" + uuid);
+            Assertions.assertThrows(RuntimeException.class, () -> mirrorDirectory(missing, target, schedulers, new CopyCounters(), quarantineOptions).blockLast());
+            Assertions.assertTrue(new File(target, "MobyDick.txt").exists());
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    @Test
+    public void testJournal() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+        File journalFile = new File(tmp, "journal-" + uuid);
+        File indexFile = new File(tmp, "fingerprints-" + uuid);
+
+        try {
+            Path mobyDick = new File(src, "MobyDick.txt").toPath();
+            Path prideAndPrejudice = new File(src, "PrideAndPrejudice.txt").toPath();
+            int copiedBeforeCrash = 512 * 1024;
+
+            // A run that died halfway through copying one large file after finishing another
+            try (SyncJournal journal = SyncJournal.open(journalFile.toPath())) {
+                File partialCopy = AtomicFileUtils.temporaryFile(new File(target, "MobyDick.txt"));
+                Files.write(partialCopy.toPath(), Arrays.copyOf(Files.readAllBytes(mobyDick), copiedBeforeCrash));
+                journal.partial(mobyDick, Files.readAttributes(mobyDick, BasicFileAttributes.class), copiedBeforeCrash);
+                journal.done(prideAndPrejudice, Files.readAttributes(prideAndPrejudice, BasicFileAttributes.class));
+            }
+            // Along with a record torn by the crash
+            Files.write(journalFile.toPath(), new byte[]{2, 7, 7}, StandardOpenOption.APPEND);
+
+            try (SyncJournal journal = SyncJournal.open(journalFile.toPath()).withCheckpointInterval(256 * 1024);
+                 FingerprintIndex fingerprintIndex = FingerprintIndex.open(indexFile.toPath())) {
+                Assertions.assertEquals(1, journal.size());
+                CopyCounters copyCounter = new CopyCounters();
+                SyncOptions options = SyncOptions.defaults().withJournal(journal).withHashOnCopy(true).withFingerprintIndex(fingerprintIndex);
+                copyDirectory(src, target, true, scheduler, copyCounter, options)
+                        .sequential()
+                        .blockLast();
+
+                // The finished file is skipped without looking at the target, the interrupted one continues where it stopped
+                Assertions.assertFalse(new File(target, "PrideAndPrejudice.txt").exists());
+                Assertions.assertEquals(1, copyCounter.filesSkipped.get());
+                Assertions.assertArrayEquals(Files.readAllBytes(mobyDick), Files.readAllBytes(new File(target, "MobyDick.txt").toPath()));
+                Assertions.assertEquals(Files.size(mobyDick) - copiedBeforeCrash
+                                + new File(src, "RomeoAndJuliet.txt").length() + new File(src, "images/ThreeRectangles.png").length(),
+                        copyCounter.byteCounter.get());
+                Assertions.assertEquals(4, journal.size());
+                // The resumed copy is fingerprinted as a whole, the start checksummed from the partial copy
+                FileFingerprint expected = DirectorySyncUtils.fingerprintFile(mobyDick.toFile()).block();
+                Path targetMobyDick = new File(target, "MobyDick.txt").toPath();
+                FileFingerprint recorded = fingerprintIndex.lookup(targetMobyDick, Files.readAttributes(targetMobyDick, BasicFileAttributes.class)).orElseThrow();
+                Assertions.assertEquals(Objects.requireNonNull(expected).checksum().getValue(), recorded.checksum().getValue());
+
+                CopyCounters secondRun = new CopyCounters();
+                copyDirectory(src, target, true, scheduler, secondRun, options)
+                        .sequential()
+                        .blockLast();
+                Assertions.assertEquals(4, secondRun.filesSkipped.get());
+                Assertions.assertEquals(0, secondRun.fileCounter.get());
+
+                // A finished sync clears the journal so the next one checks everything again
+                journal.clear();
+                Assertions.assertEquals(0, journal.size());
+            }
+
+            try (SyncJournal journal = SyncJournal.open(journalFile.toPath())) {
+                Assertions.assertEquals(0, journal.size());
+            }
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+            Files.deleteIfExists(journalFile.toPath());
+            Files.deleteIfExists(indexFile.toPath());
+        }
+    }
+
+    @Test
+    public void testSampledComparison() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        try {
+            copyDirectory(src, target, true, scheduler, new CopyCounters(), SyncOptions.defaults())
+                    .sequential()
+                    .blockLast();
+
+            // A change to the head of the target is caught by the samples, a change between them needs the full hash
+            Path mobyDick = new File(target, "MobyDick.txt").toPath();
+            byte[] contents = Files.readAllBytes(mobyDick);
+            contents[10_000]++;
+            Files.write(mobyDick, contents);
+            Assertions.assertTrue(FileChannelUtils.samplesMatch(new File(src, "MobyDick.txt").toPath(), mobyDick, 6, 4096));
+            contents[0]++;
+            Files.write(mobyDick, contents);
+            Assertions.assertFalse(FileChannelUtils.samplesMatch(new File(src, "MobyDick.txt").toPath(), mobyDick, 6, 4096));
+
+            // Touched but unchanged, so its samples match and it is hashed in full
+            Path prideAndPrejudice = new File(target, "PrideAndPrejudice.txt").toPath();
+            Files.setLastModifiedTime(prideAndPrejudice, FileTime.fromMillis(0));
+            Files.setLastModifiedTime(mobyDick, FileTime.fromMillis(0));
+
+            CopyCounters copyCounter = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, copyCounter, SyncOptions.defaults()
+                    .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH)
+                    .withSampledComparison(256 * 1024, 6, 4096))
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(1, copyCounter.samplesDiffered.get());
+            Assertions.assertEquals(1, copyCounter.filesHashed.get());
+            Assertions.assertEquals(1, copyCounter.fileCounter.get());
+            Assertions.assertEquals(2, copyCounter.filesSkipped.get());
+            Assertions.assertArrayEquals(Files.readAllBytes(new File(src, "MobyDick.txt").toPath()), Files.readAllBytes(mobyDick));
+            Assertions.assertEquals(new File(src, "PrideAndPrejudice.txt").lastModified(), prideAndPrejudice.toFile().lastModified());
+
+            // Large files are sampled before the delta copy, which writes nothing when every block matched in place
+            Files.setLastModifiedTime(prideAndPrejudice, FileTime.fromMillis(0));
+            contents[0]--;
+            Files.write(mobyDick, contents);
+            SyncMetrics metrics = SyncMetrics.create();
+            CopyCounters deltaCounter = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, deltaCounter, SyncOptions.defaults()
+                    .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH)
+                    .withSampledComparison(256 * 1024, 6, 4096)
+                    .withDeltaCopy(256 * 1024, 4096)
+                    .withMetrics(metrics))
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(1, deltaCounter.fileCounter.get());
+            Assertions.assertEquals(1, metrics.getFilesChanged());
+            Assertions.assertEquals(1, metrics.getFilesUnchanged());
+            Assertions.assertEquals(new File(src, "PrideAndPrejudice.txt").lastModified(), prideAndPrejudice.toFile().lastModified());
+            Assertions.assertArrayEquals(Files.readAllBytes(new File(src, "MobyDick.txt").toPath()), Files.readAllBytes(mobyDick));
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    @Test
+    public void testDeduplication() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        File fingerprintFile = new File(tmp, "fingerprints-" + uuid + ".idx");
+        File contentFile = new File(tmp, "content-" + uuid + ".idx");
+
+        try (FingerprintIndex fingerprintIndex = FingerprintIndex.open(fingerprintFile.toPath())) {
+            ContentIndex contentIndex = ContentIndex.open(contentFile.toPath());
+            SyncOptions options = SyncOptions.defaults()
+                    .withFingerprintIndex(fingerprintIndex)
+                    .withDeduplication(contentIndex, DedupMode.LINK, 256 * 1024);
+            copyDirectory(src, target, true, scheduler, new CopyCounters(), options)
+                    .sequential()
+                    .blockLast();
+            // Moby Dick and Pride and Prejudice are large enough to be fingerprinted while copied and recorded
+            Assertions.assertEquals(2, contentIndex.size());
+
+            // Duplicates of a file already on the target, one with the same time and one without
+            Path mobyDick = new File(src, "MobyDick.txt").toPath();
+            Path duplicates = Files.createDirectories(src.toPath().resolve("duplicates"));
+            Files.copy(mobyDick, duplicates.resolve("SameTime.txt"), StandardCopyOption.COPY_ATTRIBUTES);
+            Files.copy(mobyDick, duplicates.resolve("OtherTime.txt"));
+            Files.setLastModifiedTime(duplicates.resolve("OtherTime.txt"), FileTime.fromMillis(0));
+
+            // Only sources with a recorded fingerprint are looked up, the index is reopened from its file
+            contentIndex.close();
+            contentIndex = ContentIndex.open(contentFile.toPath());
+            Assertions.assertEquals(2, contentIndex.size());
+            options.withDeduplication(contentIndex, DedupMode.LINK, 256 * 1024);
+            DirectorySyncUtils.fingerprintDirectory(src, fingerprintIndex, null).block();
+
+            CopyCounters copyCounter = new CopyCounters();
+            SyncMetrics metrics = SyncMetrics.create();
+            copyDirectory(src, target, true, scheduler, copyCounter, options.withMetrics(metrics))
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(2, copyCounter.fileCounter.get());
+            Assertions.assertEquals(0, copyCounter.byteCounter.get());
+            Assertions.assertEquals(2 * Files.size(mobyDick), copyCounter.dedupBytes.get());
+            Assertions.assertEquals(2, metrics.outcomes(SyncOutcome.DEDUPLICATED));
+            Assertions.assertEquals(2 * Files.size(mobyDick), metrics.getBytesDeduplicated());
+
+            Path targetMobyDick = new File(target, "MobyDick.txt").toPath();
+            Path sameTime = target.toPath().resolve("duplicates/SameTime.txt");
+            Path otherTime = target.toPath().resolve("duplicates/OtherTime.txt");
+            Assertions.assertTrue(Files.isSameFile(targetMobyDick, sameTime));
+            Assertions.assertFalse(Files.isSameFile(targetMobyDick, otherTime));
+            Assertions.assertArrayEquals(Files.readAllBytes(mobyDick), Files.readAllBytes(otherTime));
+            Assertions.assertEquals(FileTime.fromMillis(0), Files.getLastModifiedTime(otherTime));
+            Assertions.assertEquals(Files.getLastModifiedTime(mobyDick), Files.getLastModifiedTime(targetMobyDick));
+
+            // A duplicate that was never fingerprinted is copied, and fingerprinted on the way for the next time
+            Files.copy(mobyDick, duplicates.resolve("Unfingerprinted.txt"));
+            CopyCounters unfingerprinted = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, unfingerprinted, options)
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(Files.size(mobyDick), unfingerprinted.byteCounter.get());
+            Assertions.assertEquals(0, unfingerprinted.dedupBytes.get());
+            Path unfingerprintedSource = duplicates.resolve("Unfingerprinted.txt");
+            Assertions.assertTrue(fingerprintIndex.lookup(unfingerprintedSource, Files.readAttributes(unfingerprintedSource, BasicFileAttributes.class)).isPresent());
+
+            // Files with the same length and checksum but different bytes are compared and never deduplicated
+            byte[][] heads = crc32cCollision();
+            byte[] tail = new byte[512 * 1024];
+            new Random(7).nextBytes(tail);
+            Path collisions = Files.createDirectories(src.toPath().resolve("collisions"));
+            byte[] first = ByteBuffer.allocate(heads[0].length + tail.length).put(heads[0]).put(tail).array();
+            byte[] second = ByteBuffer.allocate(heads[1].length + tail.length).put(heads[1]).put(tail).array();
+            Files.write(collisions.resolve("First.bin"), first);
+            copyDirectory(src, target, true, scheduler, new CopyCounters(), options)
+                    .sequential()
+                    .blockLast();
+            Files.write(collisions.resolve("Second.bin"), second);
+            Files.setLastModifiedTime(collisions.resolve("Second.bin"), Files.getLastModifiedTime(collisions.resolve("First.bin")));
+            DirectorySyncUtils.fingerprintDirectory(src, fingerprintIndex, null).block();
+            Assertions.assertEquals(Objects.requireNonNull(DirectorySyncUtils.fingerprintFile(collisions.resolve("First.bin").toFile()).block()).checksum().getValue(),
+                    Objects.requireNonNull(DirectorySyncUtils.fingerprintFile(collisions.resolve("Second.bin").toFile()).block()).checksum().getValue());
+
+            CopyCounters collision = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, collision, options)
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(1, collision.fileCounter.get());
+            Assertions.assertEquals(0, collision.dedupBytes.get());
+            Path targetSecond = target.toPath().resolve("collisions/Second.bin");
+            Assertions.assertArrayEquals(second, Files.readAllBytes(targetSecond));
+            Assertions.assertFalse(Files.isSameFile(target.toPath().resolve("collisions/First.bin"), targetSecond));
+            contentIndex.close();
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+            Files.deleteIfExists(fingerprintFile.toPath());
+            Files.deleteIfExists(contentFile.toPath());
+        }
+    }
+
+    @Test
+    public void testMoveDetection() throws IOException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        try {
+            SyncOptions options = SyncOptions.defaults().withMoveDetection(true);
+            copyDirectory(src, target, true, scheduler, new CopyCounters(), options)
+                    .sequential()
+                    .blockLast();
+
+            // A renamed directory, a file moved in to a new directory and a file whose contents changed as it moved
+            Files.move(src.toPath().resolve("images"), src.toPath().resolve("pictures"));
+            Files.createDirectories(src.toPath().resolve("books"));
+            Files.move(src.toPath().resolve("RomeoAndJuliet.txt"), src.toPath().resolve("books/RomeoAndJuliet.txt"));
+            Path prideAndPrejudice = src.toPath().resolve("PrideAndPrejudice.txt");
+            FileTime prideTime = Files.getLastModifiedTime(prideAndPrejudice);
+            byte[] contents = Files.readAllBytes(prideAndPrejudice);
+            contents[0]++;
+            Files.delete(prideAndPrejudice);
+            Files.write(src.toPath().resolve("books/PrideAndPrejudice.txt"), contents);
+            Files.setLastModifiedTime(src.toPath().resolve("books/PrideAndPrejudice.txt"), prideTime);
+
+            CopyCounters copyCounter = new CopyCounters();
+            List<Path> moved = detectMoves(src, target, SyncSchedulers.of(scheduler), copyCounter, options)
+                    .collectList()
+                    .block();
+            Assertions.assertNotNull(moved);
+            Assertions.assertEquals(2, moved.size());
+            Assertions.assertEquals(2, copyCounter.entriesMoved.get());
+            Assertions.assertFalse(new File(target, "images").exists());
+            Assertions.assertTrue(new File(target, "pictures/ThreeRectangles.png").isFile());
+            Assertions.assertFalse(new File(target, "RomeoAndJuliet.txt").exists());
+            Assertions.assertTrue(new File(target, "books/RomeoAndJuliet.txt").isFile());
+            // Hashing showed the contents differ, so it is left for the sync to copy
+            Assertions.assertTrue(new File(target, "PrideAndPrejudice.txt").exists());
+            Assertions.assertFalse(new File(target, "books/PrideAndPrejudice.txt").exists());
+
+            CopyCounters syncCounter = new CopyCounters();
+            copyDirectory(src, target, true, scheduler, syncCounter, options)
+                    .sequential()
+                    .blockLast();
+            Assertions.assertEquals(1, syncCounter.fileCounter.get());
+            Assertions.assertEquals(contents.length, syncCounter.byteCounter.get());
+            Assertions.assertArrayEquals(contents, Files.readAllBytes(new File(target, "books/PrideAndPrejudice.txt").toPath()));
+
+            // Files with the same size and time but different recorded fingerprints are never moved
+            File indexFile = new File(tmp, "fingerprints-" + uuid + ".idx");
+            try (FingerprintIndex index = FingerprintIndex.open(indexFile.toPath())) {
+                Path renamed = src.toPath().resolve("books/Renamed.txt");
+                Path stale = target.toPath().resolve("Stale.txt");
+                Path same = src.toPath().resolve("books/Same.txt");
+                Path original = target.toPath().resolve("Original.txt");
+                Files.writeString(renamed, "First");
+                Files.writeString(stale, "Other");
+                Files.writeString(same, "Equal contents");
+                Files.writeString(original, "Equal contents");
+                FileTime time = Files.getLastModifiedTime(renamed);
+                for (Path path : List.of(stale, same, original)) {
+                    Files.setLastModifiedTime(path, time);
+                }
+                for (Path path : List.of(renamed, stale, same, original)) {
+                    DirectorySyncUtils.fingerprintFile(path.toFile(), index).block();
+                }
+
+                List<Path> recordedMoves = detectMoves(src, target, SyncSchedulers.of(scheduler), new CopyCounters(), options.withFingerprintIndex(index))
+                        .collectList()
+                        .block();
+                Assertions.assertEquals(List.of(target.toPath().toAbsolutePath().resolve("books/Same.txt")), recordedMoves);
+                Assertions.assertTrue(Files.exists(stale));
+                Assertions.assertFalse(Files.exists(original));
+            } finally {
+                Files.deleteIfExists(indexFile.toPath());
+            }
+        } finally {
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    @Test
+    public void testWatch()throws IOException, InterruptedException {
+        File tmp = new File("tmp");
+
+        String uuid = UUID.randomUUID().toString();
+        File src = createTestSourceDirectory("source-" + uuid, tmp);
+        File target = createTestTargetDirectory("target-" + uuid, tmp);
+
+        CopyCounters copyCounter = new CopyCounters();
+        Disposable watch = WatchSynchronizer.of(src, target, SyncSchedulers.of(scheduler), copyCounter, SyncOptions.defaults()
+                        .withComparisonStrategy(ComparisonStrategy.METADATA_THEN_HASH))
+                .withDebounce(Duration.ofMillis(200))
+                .watch()
+                .subscribe();
+        try {
+            // Only the changed file and the new directory are synchronized, the rest of the tree is never read
+            Files.writeString(new File(src, "RomeoAndJuliet.txt").toPath(), "Changed");
+            File newDirectory = new File(src, "new");
+            Assertions.assertTrue(newDirectory.mkdirs());
+            Files.writeString(new File(newDirectory, "new.txt").toPath(), "New");
+
+            File changedTarget = new File(target, "RomeoAndJuliet.txt");
+            File newTarget = new File(target, "new/new.txt");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!(changedTarget.exists() && newTarget.exists()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            // Let the batch finish writing
+            Thread.sleep(500);
+
+            Assertions.assertEquals("Changed", Files.readString(changedTarget.toPath()));
+            Assertions.assertEquals("New", Files.readString(newTarget.toPath()));
+            Assertions.assertEquals(2, copyCounter.fileCounter.get());
+            Assertions.assertFalse(new File(target, "MobyDick.txt").exists());
+        } finally {
+            watch.dispose();
+            deleteRecursive(src);
+            deleteRecursive(target);
+        }
+    }
+
+    /**
+     * @return Two different eight byte messages with the same CRC32C. Any bytes appended to both keep the checksums the
+     * same, since the CRC of messages of the same length differs by the CRC of their difference.
+     */
+    private static byte[][] crc32cCollision() {
+        Random random = new Random(42);
+        Map<Long, byte[]> seen = new HashMap<>();
+        while (true) {
+            byte[] message = new byte[8];
+            random.nextBytes(message);
+            CRC32C crc = new CRC32C();
+            crc.update(message);
+            byte[] previous = seen.putIfAbsent(crc.getValue(), message);
+            if (previous != null && !Arrays.equals(previous, message)) {
+                return new byte[][]{previous, message};
+            }
+        }
+    }
+
     private void deleteRecursive(File target) {
         if (target.isDirectory()) {
             for (File file : Objects.requireNonNull(target.listFiles())) {
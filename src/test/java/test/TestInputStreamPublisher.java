@@ -1,12 +1,18 @@
 package test;
 
+import ninja.foxyv.vsync.react.fs.ByteBufferPool;
 import ninja.foxyv.vsync.react.fs.InputStreamFlux;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscription;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import reactor.core.publisher.BaseSubscriber;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import static test.utils.TmpDirectoryUtils.prepareTMPDirectory;
 
@@ -18,7 +24,7 @@ public class TestInputStreamPublisher {
         File tmp = new File("tmp");
         prepareTMPDirectory(tmp);
 
-        File mobyDick = new File(tmp, "files/MobyDick.txt");
+        File mobyDick = new File(tmp, "MobyDick.txt");
 
         String mobyDickText;
         try (InputStream is = new FileInputStream(mobyDick)) {
@@ -42,4 +48,46 @@ public class TestInputStreamPublisher {
 
         Assertions.assertEquals(expected, mobyDickText);
     }
+
+    @Test
+    public void testBackpressure() throws IOException {
+        File tmp = new File("tmp");
+        prepareTMPDirectory(tmp);
+
+        File mobyDick = new File(tmp, "MobyDick.txt");
+        ByteBufferPool pool = new ByteBufferPool(1024, 2, true);
+
+        try (InputStream is = new FileInputStream(mobyDick); ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            List<Integer> chunkSizes = new ArrayList<>();
+            InputStreamFlux.flux(is, pool).subscribe(new BaseSubscriber<>() {
+                @Override
+                protected void hookOnSubscribe(Subscription subscription) {
+                    // Nothing may be read until it has been requested
+                    Assertions.assertTrue(chunkSizes.isEmpty());
+                    request(1);
+                }
+
+                @Override
+                protected void hookOnNext(ByteBuffer buffer) {
+                    chunkSizes.add(buffer.remaining());
+                    byte[] chunk = new byte[buffer.remaining()];
+                    buffer.get(chunk);
+                    baos.writeBytes(chunk);
+
+                    // Cancel part way through the file
+                    if (chunkSizes.size() == 10) {
+                        cancel();
+                    } else {
+                        request(1);
+                    }
+                }
+            });
+
+            Assertions.assertEquals(10, chunkSizes.size());
+            Assertions.assertEquals(10 * 1024, baos.size());
+
+            // The stream was left where the flux stopped reading
+            Assertions.assertEquals(mobyDick.length() - 10 * 1024, is.available());
+        }
+    }
 }